@@ -2,9 +2,15 @@ package org.javaseis.examples.imaging;
 
 import static org.junit.Assert.*;
 
+import java.util.Arrays;
+import java.util.Random;
+
 import org.junit.Test;
 
+import beta.javaseis.distributed.DistributedArray;
 import beta.javaseis.parallel.IParallelContext;
+import beta.javaseis.parallel.ParallelTask;
+import beta.javaseis.parallel.ParallelTaskExecutor;
 import beta.javaseis.parallel.UniprocessorContext;
 import beta.javaseis.regulargrid.RegularGrid;
 
@@ -31,4 +37,284 @@ public class JTestShotMigPhaseShift {
     
   }
 
+  @Test
+  public void testPhaseShiftCache() {
+    int nkx = 8, nky = 4;
+    // Room for two operators
+    PhaseShiftCache cache = new PhaseShiftCache(nkx, nky, 0.001, 0.002, 1, 2 * 8 * nkx * nky);
+    assertEquals(2, cache.getCapacity());
+    PhaseShiftCache.Operator op = cache.get(3, 1000f, 10f);
+    assertSame(op, cache.get(3, 1000f, 10f));
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+    // Propagating samples have unit modulus, evanescent samples are zero
+    for (int j = 0; j < nky; j++) {
+      for (int i = 0; i < nkx; i++) {
+        double kx = 0.001 * ShotMigPhaseShift.getKindex(nkx / 2, nkx, i);
+        double ky = 0.002 * ShotMigPhaseShift.getKindex(nky / 2, nky, j);
+        double kz2 = 9e-6 - kx * kx - ky * ky;
+        double re = op.shift[j][2 * i], im = op.shift[j][2 * i + 1];
+        if (kz2 > 1e-12) {
+          assertEquals(Math.cos(10 * Math.sqrt(kz2)), re, 1e-6);
+          assertEquals(Math.sin(10 * Math.sqrt(kz2)), im, 1e-6);
+        } else {
+          assertEquals(0, re * re + im * im, 0);
+        }
+      }
+    }
+    // The least recently used operator is dropped
+    cache.get(4, 1000f, 10f);
+    cache.get(3, 1000f, 10f);
+    cache.get(5, 1000f, 10f);
+    assertEquals(2, cache.size());
+    assertSame(op, cache.get(3, 1000f, 10f));
+    assertEquals(3, cache.getMisses());
+    // Source and receiver are shifted in opposite directions
+    float[][] s = new float[nky][2 * nkx];
+    float[][] r = new float[nky][2 * nkx];
+    s[0][2] = r[0][2] = 1;
+    op.apply(s, r);
+    assertEquals(s[0][2], r[0][2], 1e-6);
+    assertEquals(-s[0][3], r[0][3], 1e-6);
+  }
+
+  @Test
+  public void testSymmetricShift() {
+    int nx = 30;
+    int ny = 25;
+    int nf = 33;
+    int nz = 2;
+    float dz = 10;
+    int[] shape = new int[] { 2 * nx, ny, nf };
+    double[] deltas = new double[] { 10, 10, 1 / 1.28 };
+    IParallelContext pc = new UniprocessorContext();
+    RegularGrid shot = new RegularGrid(shape, deltas, pc);
+    RegularGrid rcvr = new RegularGrid(shape, deltas, pc);
+    RegularGrid image = new RegularGrid(new int[] { nx, ny, nz }, new double[] { 10, 10, dz }, pc);
+    float[] vels = new float[] { 1500f, 2500f };
+    ShotMigPhaseShift smps = new ShotMigPhaseShift(0, 0, nf, nz, dz, rcvr, shot, image, vels);
+    int nkx = smps.nkx, nky = smps.nky;
+    Random random = new Random(11);
+    float[][] s1 = new float[nky][2 * nkx], r1 = new float[nky][2 * nkx];
+    float[][] s2 = new float[nky][2 * nkx], r2 = new float[nky][2 * nkx];
+    // Frequencies up to the last one have both propagating and evanescent samples
+    for (int ifreq = 0; ifreq < nf; ifreq += 4) {
+      for (int j = 0; j < nky; j++) {
+        for (int i = 0; i < 2 * nkx; i++) {
+          s1[j][i] = s2[j][i] = random.nextFloat() - 0.5f;
+          r1[j][i] = r2[j][i] = random.nextFloat() - 0.5f;
+        }
+      }
+      smps.applyPhaseShift(ifreq, vels[ifreq % 2], dz, s1, r1);
+      smps.applyPhaseSymmetric(ifreq, vels[ifreq % 2], dz, s2, r2);
+      for (int j = 0; j < nky; j++) {
+        assertArrayEquals("Source ky index " + j, s1[j], s2[j], 1e-6f);
+        assertArrayEquals("Receiver ky index " + j, r1[j], r2[j], 1e-6f);
+      }
+    }
+  }
+
+  @Test
+  public void testReferenceVelocities() {
+    float[][] slice = new float[][] { { 2000f, 1000f }, { 4000f, 2000f } };
+    float[][][] model = new float[][][] { slice, { { 1500f, 1500f } }, { { 1100f, 1900f } },
+        { { 1400f, 1900f } } };
+    // Evenly spaced in slowness from 1/1000 to 1/4000 over the whole model
+    float[] ladder = ShotMigPhaseShift.referenceLadder(model, 4);
+    assertArrayEquals(new float[] { 1000f, 1333.3334f, 2000f, 4000f }, ladder, 0.01f);
+    assertArrayEquals(ladder, ShotMigPhaseShift.referenceVelocities(slice, ladder), 0f);
+    // A constant slice needs only its own velocity
+    assertArrayEquals(new float[] { 1500f }, ShotMigPhaseShift.referenceVelocities(model[1],
+        ladder), 0f);
+    // Other slices use the references that bracket them
+    assertArrayEquals(new float[] { 1000f, 1333.3334f, 2000f }, ShotMigPhaseShift
+        .referenceVelocities(model[2], ladder), 0.01f);
+    assertArrayEquals(new float[] { 1333.3334f, 2000f }, ShotMigPhaseShift.referenceVelocities(
+        model[3], ladder), 0.01f);
+    // One reference at the mean slowness
+    ladder = ShotMigPhaseShift.referenceLadder(model, 1);
+    assertArrayEquals(new float[] { 2000f / 1.125f }, ShotMigPhaseShift.referenceVelocities(
+        slice, ladder), 0.01f);
+  }
+
+  private static final int MIG_NX = 16, MIG_NY = 8, MIG_NF = 9, MIG_NZ = 5;
+
+  /** Image assembled from the depths held by each task */
+  private static float[][][] taskImage;
+
+  /**
+   * Set up a migration of a random shot whose values depend only on their
+   * position, so any task count sees the same data
+   */
+  private static ShotMigPhaseShift randomShot(IParallelContext pc) {
+    int[] shape = new int[] { 2 * MIG_NX, MIG_NY, MIG_NF };
+    double[] deltas = new double[] { 10, 10, 1 / 1.28 };
+    RegularGrid shot = new RegularGrid(shape, deltas, pc);
+    RegularGrid rcvr = new RegularGrid(shape, deltas, pc);
+    RegularGrid image = new RegularGrid(new int[] { MIG_NX, MIG_NY, MIG_NZ }, new double[] {
+        10, 10, 10 }, pc);
+    float[] trace = new float[2 * MIG_NX];
+    int[] position = new int[3];
+    for (int k = 0; k < rcvr.getLocalLengths()[2]; k++) {
+      position[2] = rcvr.localToGlobal(2, k);
+      for (position[1] = 0; position[1] < MIG_NY; position[1]++) {
+        Random random = new Random(1000L * position[2] + position[1]);
+        for (int i = 0; i < trace.length; i++) {
+          trace[i] = random.nextFloat() - 0.5f;
+        }
+        rcvr.getGrid().putTrace(trace, position);
+        for (int i = 0; i < trace.length; i++) {
+          trace[i] = random.nextFloat() - 0.5f;
+        }
+        shot.getGrid().putTrace(trace, position);
+      }
+    }
+    float[] vels = new float[] { 1500f, 1800f, 2000f, 2500f, 3000f };
+    return new ShotMigPhaseShift(0, 0, MIG_NF, MIG_NZ, 10f, rcvr, shot, image, vels);
+  }
+
+  /** Copy the depths of the output image held by this task */
+  private static void readImage(ShotMigPhaseShift smps, float[][][] out) {
+    DistributedArray da = smps.image.getGrid();
+    int[] position = new int[3];
+    for (int k = 0; k < smps.image.getLocalLengths()[2]; k++) {
+      position[2] = smps.image.localToGlobal(2, k);
+      for (position[1] = 0; position[1] < MIG_NY; position[1]++) {
+        da.getTrace(out[position[2]][position[1]], position);
+      }
+    }
+  }
+
+  /** Migrates the random shot with two threads in each task */
+  public static class MigrationTask extends ParallelTask {
+    @Override
+    public void run() {
+      ShotMigPhaseShift smps = randomShot(getParallelContext());
+      smps.setThreadCount(2);
+      smps.migrate();
+      synchronized (JTestShotMigPhaseShift.class) {
+        readImage(smps, taskImage);
+      }
+    }
+  }
+
+  private static float[][][] migrateRandomShot(int threads) {
+    ShotMigPhaseShift smps = randomShot(new UniprocessorContext());
+    smps.setThreadCount(threads);
+    smps.migrate();
+    float[][][] out = new float[MIG_NZ][MIG_NY][MIG_NX];
+    readImage(smps, out);
+    return out;
+  }
+
+  private static void assertImageEquals(String message, float[][][] expected, float[][][] actual,
+      float tolerance) {
+    float max = 0;
+    for (float[][] slice : expected) {
+      for (float[] row : slice) {
+        for (float v : row) {
+          max = Math.max(max, Math.abs(v));
+        }
+      }
+    }
+    assertTrue("Image is empty", max > 0);
+    for (int iz = 0; iz < MIG_NZ; iz++) {
+      for (int iy = 0; iy < MIG_NY; iy++) {
+        assertArrayEquals(message + " depth " + iz + " y " + iy, expected[iz][iy],
+            actual[iz][iy], tolerance * max);
+      }
+    }
+  }
+
+  @Test
+  public void testMigrateSumsAcrossThreadsAndTasks() throws Exception {
+    float[][][] expected = migrateRandomShot(1);
+    assertImageEquals("Three threads", expected, migrateRandomShot(3), 1e-5f);
+    taskImage = new float[MIG_NZ][MIG_NY][MIG_NX];
+    ParallelTaskExecutor.runTasks(MigrationTask.class, 2);
+    assertImageEquals("Two tasks", expected, taskImage, 1e-5f);
+  }
+
+  @Test
+  public void testPspiMatchesLayeredModel() {
+    float[][][] expected = migrateRandomShot(1);
+    ShotMigPhaseShift smps = randomShot(new UniprocessorContext());
+    // Laterally constant, with the velocities of the v(z) migration
+    float[][][] model = new float[MIG_NZ][MIG_NY][MIG_NX];
+    for (int iz = 0; iz < MIG_NZ; iz++) {
+      for (int iy = 0; iy < MIG_NY; iy++) {
+        Arrays.fill(model[iz][iy], smps.vels[iz]);
+      }
+    }
+    smps.setVelocityModel(model, 3);
+    smps.setThreadCount(1);
+    smps.migrate();
+    float[][][] actual = new float[MIG_NZ][MIG_NY][MIG_NX];
+    readImage(smps, actual);
+    // PSPI transforms the wavefields at each depth, the v(z) path only once
+    assertImageEquals("PSPI", expected, actual, 1e-4f);
+  }
+
+  /**
+   * Migrate a plane wave source and its reflection from a flat reflector in
+   * a constant velocity, and return the image trace in the middle of the
+   * survey
+   */
+  private static float[] flatReflectorImage(int nz, float dz, float v, float depth,
+      boolean symmetric) {
+    int nx = 32, ny = 16, nf = 33;
+    double df = 2;
+    int[] shape = new int[] { 2 * nx, ny, nf };
+    IParallelContext pc = new UniprocessorContext();
+    RegularGrid shot = new RegularGrid(shape, new double[] { 10, 10, df }, pc);
+    RegularGrid rcvr = new RegularGrid(shape, new double[] { 10, 10, df }, pc);
+    RegularGrid image = new RegularGrid(new int[] { nx, ny, nz }, new double[] { 10, 10, dz },
+        pc);
+    // The reflection arrives after the two way time to the reflector
+    double time = 2 * depth / v;
+    float[] source = new float[2 * nx];
+    float[] reflection = new float[2 * nx];
+    int[] position = new int[3];
+    for (position[2] = 0; position[2] < nf; position[2]++) {
+      double phase = 2 * Math.PI * df * position[2] * time;
+      for (int ix = 0; ix < nx; ix++) {
+        source[2 * ix] = 1;
+        reflection[2 * ix] = (float) Math.cos(phase);
+        reflection[2 * ix + 1] = (float) Math.sin(phase);
+      }
+      for (position[1] = 0; position[1] < ny; position[1]++) {
+        shot.getGrid().putTrace(source, position);
+        rcvr.getGrid().putTrace(reflection, position);
+      }
+    }
+    float[] vels = new float[nz];
+    Arrays.fill(vels, v);
+    ShotMigPhaseShift smps = new ShotMigPhaseShift(0, 0, nf, nz, dz, rcvr, shot, image, vels);
+    smps.setSymmetricShift(symmetric);
+    smps.migrate();
+    float[] trace = new float[nx];
+    float[] depths = new float[nz];
+    position[1] = ny / 2;
+    for (position[2] = 0; position[2] < nz; position[2]++) {
+      image.getGrid().getTrace(trace, position);
+      depths[position[2]] = trace[nx / 2];
+    }
+    return depths;
+  }
+
+  @Test
+  public void testFlatReflectorDepth() {
+    int nz = 20;
+    float dz = 10;
+    for (boolean symmetric : new boolean[] { false, true }) {
+      float[] depths = flatReflectorImage(nz, dz, 2000f, 100f, symmetric);
+      int peak = 0;
+      for (int iz = 1; iz < nz; iz++) {
+        if (depths[iz] > depths[peak])
+          peak = iz;
+      }
+      assertEquals("Reflector depth index", 10, peak);
+      assertTrue("Image peak is positive", depths[peak] > 0);
+    }
+  }
 }
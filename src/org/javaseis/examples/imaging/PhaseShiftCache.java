@@ -0,0 +1,187 @@
+package org.javaseis.examples.imaging;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of phase shift operators for one wavenumber grid. An operator
+ * depends only on the frequency index, velocity and depth step, so in layered
+ * models and across shots on the same grid the square roots and complex
+ * exponentials are computed once and then applied as a complex multiply.
+ * <p>
+ * The cache is safe to share between threads. When it holds more than its
+ * memory budget, the least recently used operators are dropped.
+ */
+public class PhaseShiftCache {
+
+  /**
+   * Phase shift exp(i*kz*dz) for every (kx,ky) sample, stored as interleaved
+   * complex values in an (nky) x (2*nkx) array. Evanescent samples are zero,
+   * so applying the operator also zeroes them.
+   */
+  public static class Operator {
+
+    final float[][] shift;
+
+    Operator(float[][] values) {
+      shift = values;
+    }
+
+    /**
+     * Shift a source wavefield down by the operator and a receiver wavefield
+     * by its conjugate, in place
+     *
+     * @param shot - complex source wavefield in kx and ky
+     * @param rcvr - complex receiver wavefield in kx and ky
+     */
+    public void apply(float[][] shot, float[][] rcvr) {
+      for (int j = 0; j < shift.length; j++) {
+        float[] c = shift[j];
+        float[] s = shot[j];
+        float[] r = rcvr[j];
+        for (int i = 0; i < c.length; i += 2) {
+          float cr = c[i], ci = c[i + 1];
+          float sr = s[i], si = s[i + 1];
+          s[i] = sr * cr - si * ci;
+          s[i + 1] = sr * ci + si * cr;
+          float rr = r[i], ri = r[i + 1];
+          r[i] = rr * cr + ri * ci;
+          r[i + 1] = ri * cr - rr * ci;
+        }
+      }
+    }
+  }
+
+  /** Default memory budget in bytes */
+  public static final long DEFAULT_BYTES = 256L << 20;
+
+  final int nkx, nky;
+
+  final double dkx, dky, dw;
+
+  private final int maxOperators;
+
+  private final Map<String, Operator> operators;
+
+  private long hits, misses;
+
+  /**
+   * @param kxLength - transform length in kx
+   * @param kyLength - transform length in ky
+   * @param kxDelta - kx sample interval
+   * @param kyDelta - ky sample interval
+   * @param omegaDelta - angular frequency sample interval
+   * @param maxBytes - memory budget for the cached operators
+   */
+  public PhaseShiftCache(int kxLength, int kyLength, double kxDelta, double kyDelta,
+      double omegaDelta, long maxBytes) {
+    nkx = kxLength;
+    nky = kyLength;
+    dkx = kxDelta;
+    dky = kyDelta;
+    dw = omegaDelta;
+    long operatorBytes = 8L * nkx * nky;
+    maxOperators = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxBytes / operatorBytes));
+    // Access order makes the eldest entry the least recently used
+    operators = new LinkedHashMap<String, Operator>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Operator> eldest) {
+        return size() > maxOperators;
+      }
+    };
+  }
+
+  /**
+   * @return true if the cache holds operators for the given wavenumber grid
+   */
+  public boolean matches(int kxLength, int kyLength, double kxDelta, double kyDelta,
+      double omegaDelta) {
+    return nkx == kxLength && nky == kyLength && dkx == kxDelta && dky == kyDelta
+        && dw == omegaDelta;
+  }
+
+  /**
+   * Return the operator for a frequency, velocity and depth step, computing
+   * it if it is not cached
+   *
+   * @param ifreq - frequency index
+   * @param v - velocity
+   * @param depthStep - depth step
+   * @return phase shift operator, which must not be changed
+   */
+  public Operator get(int ifreq, float v, float depthStep) {
+    String key = ifreq + ":" + Float.floatToIntBits(v) + ":" + Float.floatToIntBits(depthStep);
+    synchronized (operators) {
+      Operator op = operators.get(key);
+      if (op != null) {
+        hits++;
+        return op;
+      }
+      misses++;
+    }
+    // Compute outside the lock so other threads are not held up, a duplicate
+    // computation by a racing thread gives the same values
+    Operator op = compute(ifreq, v, depthStep);
+    synchronized (operators) {
+      operators.put(key, op);
+    }
+    return op;
+  }
+
+  Operator compute(int ifreq, float v, float depthStep) {
+    final double EPS = 1e-12;
+    double omega = dw * ifreq;
+    double wv2 = (omega * omega) / (v * v);
+    float[][] values = new float[nky][2 * nkx];
+    for (int j = 0; j < nky; j++) {
+      double ky = dky * ShotMigPhaseShift.getKindex(nky / 2, nky, j);
+      double ky2 = ky * ky;
+      float[] row = values[j];
+      for (int i = 0; i < nkx; i++) {
+        double kx = dkx * ShotMigPhaseShift.getKindex(nkx / 2, nkx, i);
+        double kz2 = wv2 - kx * kx - ky2;
+        if (kz2 > EPS) {
+          double shift = depthStep * Math.sqrt(kz2);
+          row[2 * i] = (float) Math.cos(shift);
+          row[2 * i + 1] = (float) Math.sin(shift);
+        }
+      }
+    }
+    return new Operator(values);
+  }
+
+  /** @return number of cached operators */
+  public int size() {
+    synchronized (operators) {
+      return operators.size();
+    }
+  }
+
+  /** @return number of operators the memory budget allows */
+  public int getCapacity() {
+    return maxOperators;
+  }
+
+  /** @return number of requests served from the cache */
+  public long getHits() {
+    synchronized (operators) {
+      return hits;
+    }
+  }
+
+  /** @return number of requests that computed an operator */
+  public long getMisses() {
+    synchronized (operators) {
+      return misses;
+    }
+  }
+
+  /** Drop all cached operators */
+  public void clear() {
+    synchronized (operators) {
+      operators.clear();
+    }
+  }
+}
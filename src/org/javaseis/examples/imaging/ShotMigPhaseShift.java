@@ -1,11 +1,22 @@
 package org.javaseis.examples.imaging;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.javaseis.array.ElementType;
 import org.javaseis.properties.DataDomain;
+import org.javaseis.volume.TraceKernels;
 
 import edu.mines.jtk.util.ArrayMath;
-import beta.javaseis.complex.ComplexArrays;
+import beta.javaseis.array.TransposeType;
+import beta.javaseis.distributed.Decomposition;
+import beta.javaseis.distributed.DistributedArray;
 import beta.javaseis.distributed.DistributedFrameIterator;
 import beta.javaseis.fft.Fft2d;
 import beta.javaseis.fft.IFFT;
@@ -53,6 +64,18 @@ public class ShotMigPhaseShift {
   int nqx, nqy;
   /** FFT sampling */
   double dw, dkx, dky;
+  /** FFT padding factors */
+  float padx, pady;
+  /** Phase shift operators, shared by the worker threads */
+  PhaseShiftCache operators;
+  /** Velocity model v(x,y,z) for PSPI migration, or null to use vels */
+  float[][][] model;
+  /** PSPI reference velocities for each depth step, in increasing order */
+  float[][] refVels;
+  /** Compute operators with applyPhaseSymmetric instead of caching them */
+  boolean symmetricShift;
+  /** Number of worker threads in each task */
+  int threadCount = Runtime.getRuntime().availableProcessors();
 
   /**
    * Initialize a Phase Shift shot migration
@@ -67,7 +90,7 @@ public class ShotMigPhaseShift {
    * @param outputImage - Output RegularGrid for the image in X,Y,Z domain
    * @param velocity - Interval velocity model for imaging
    */
-  public ShotMigPhaseShift(float padx, float pady, int maxFreqIndex,
+  public ShotMigPhaseShift(float padX, float padY, int maxFreqIndex,
       int maxDepthIndex, float depthStep, RegularGrid recordedData,
       RegularGrid initialSource, RegularGrid outputImage, float[] velocity) {
     // Check a few things for consistency
@@ -91,6 +114,8 @@ public class ShotMigPhaseShift {
     // Save the parallel context packaged with the input data
     pc = recordedData.getGrid().getParallelContext();
     // Initialize 2D FFT
+    padx = padX;
+    pady = padY;
     nx = rcvr.getGrid().getLength(0)/2;
     ny = rcvr.getGrid().getLength(1);
     f2d = new Fft2d(nx, ny, padx, pady, IFFT.Type.COMPLEX, IFFT.Type.COMPLEX,
@@ -103,6 +128,7 @@ public class ShotMigPhaseShift {
     dkx = 2 * Math.PI / (nkx * deltas[0]);
     dky = 2 * Math.PI / (nky * deltas[1]);
     dw = 2 * Math.PI * deltas[2];
+    operators = new PhaseShiftCache(nkx, nky, dkx, dky, dw, PhaseShiftCache.DEFAULT_BYTES);
     // Create work arrays for FFT's, shifts, and image
     // Complex arrays require two elements per sample
     sc = new float[nky][2 * nkx];
@@ -145,6 +171,455 @@ public class ShotMigPhaseShift {
     }
   }
 
+  /**
+   * Use an operator cache shared with other migrations on the same grid, such
+   * as the other shots of a survey
+   *
+   * @param cache - operator cache for the wavenumber grid of this migration
+   */
+  public void setOperatorCache(PhaseShiftCache cache) {
+    if (!cache.matches(nkx, nky, dkx, dky, dw))
+      throw new IllegalArgumentException("Operator cache is for a different wavenumber grid");
+    operators = cache;
+  }
+
+  /** @return operator cache used by this migration */
+  public PhaseShiftCache getOperatorCache() {
+    return operators;
+  }
+
+  /**
+   * Migrate with a laterally varying velocity model using phase shift plus
+   * interpolation (PSPI). Reference velocities are chosen once for the model,
+   * evenly spaced in slowness over its whole range, and at each depth step
+   * the wavefields are phase shifted with the references that span the
+   * slowness range at that depth. Depths whose velocity is laterally constant
+   * use that velocity alone, as in the v(z) migration. Each sample in x,y is then corrected by a split step
+   * phase for the difference between its velocity and each reference, and
+   * interpolated linearly in slowness between the two nearest references.
+   * <p>
+   * Reference phase shifts come from the operator cache, so they are shared
+   * by the worker threads, by depths that use the same references and, with
+   * setOperatorCache, by other shots. More
+   * references improve accuracy where the velocity varies strongly, at the
+   * cost of one inverse FFT per reference and wavefield at each depth.
+   *
+   * @param velocity - interval velocity model indexed [iz][iy][ix], with the
+   *          x,y size of the image and nz depths
+   * @param referenceCount - number of reference velocities for the model, 1
+   *          gives split step Fourier migration
+   */
+  public void setVelocityModel(float[][][] velocity, int referenceCount) {
+    if (referenceCount < 1)
+      throw new IllegalArgumentException("Reference velocity count must be at least 1");
+    if (velocity.length != nz || velocity[0].length != ny || velocity[0][0].length != nx)
+      throw new IllegalArgumentException("Velocity model must be " + nz + " x " + ny + " x " + nx);
+    model = velocity;
+    float[] ladder = referenceLadder(velocity, referenceCount);
+    refVels = new float[nz][];
+    for (int iz = 0; iz < nz; iz++) {
+      refVels[iz] = referenceVelocities(velocity[iz], ladder);
+    }
+  }
+
+  /**
+   * Choose reference velocities evenly spaced in slowness between the
+   * smallest and largest slowness of a velocity model
+   *
+   * @param velocity - velocities indexed [iz][iy][ix]
+   * @param count - number of references
+   * @return reference velocities in increasing order
+   */
+  static float[] referenceLadder(float[][][] velocity, int count) {
+    float vmin = Float.MAX_VALUE, vmax = 0;
+    for (float[][] slice : velocity) {
+      for (float[] row : slice) {
+        for (float v : row) {
+          if (!(v > 0))
+            throw new IllegalArgumentException("Velocities must be positive, found " + v);
+          vmin = Math.min(vmin, v);
+          vmax = Math.max(vmax, v);
+        }
+      }
+    }
+    if (count == 1 || vmin == vmax)
+      return new float[] { vmin };
+    double smin = 1.0 / vmax, smax = 1.0 / vmin;
+    float[] ladder = new float[count];
+    for (int r = 0; r < count; r++) {
+      ladder[r] = (float) (1.0 / (smax - r * (smax - smin) / (count - 1)));
+    }
+    // Keep the ends exact so every velocity is bracketed
+    ladder[0] = vmin;
+    ladder[count - 1] = vmax;
+    return ladder;
+  }
+
+  /**
+   * Choose the reference velocities for a depth slice. A laterally constant
+   * slice uses its velocity, and with a single reference the mean slowness is
+   * used. Otherwise the slice uses the references of the model that bracket
+   * its velocities, so depths with similar velocities share operators.
+   *
+   * @param slice - velocities of one depth, indexed [iy][ix]
+   * @param ladder - reference velocities of the model, in increasing order
+   * @return reference velocities in increasing order
+   */
+  static float[] referenceVelocities(float[][] slice, float[] ladder) {
+    float vmin = Float.MAX_VALUE, vmax = 0;
+    double ssum = 0;
+    int n = 0;
+    for (float[] row : slice) {
+      for (float v : row) {
+        if (!(v > 0))
+          throw new IllegalArgumentException("Velocities must be positive, found " + v);
+        vmin = Math.min(vmin, v);
+        vmax = Math.max(vmax, v);
+        ssum += 1.0 / v;
+        n++;
+      }
+    }
+    if (vmin == vmax)
+      return new float[] { vmin };
+    if (ladder.length == 1)
+      return new float[] { (float) (n / ssum) };
+    int a = 0;
+    while (a < ladder.length - 1 && ladder[a + 1] <= vmin)
+      a++;
+    int b = ladder.length - 1;
+    while (b > a && ladder[b - 1] >= vmax)
+      b--;
+    return Arrays.copyOfRange(ladder, a, b + 1);
+  }
+
+  /**
+   * Choose how depth steps are applied. Cached operators are fastest when
+   * frequency, velocity and depth step values repeat, as in v(z) models and
+   * across shots. Direct symmetric computation needs no operator memory.
+   *
+   * @param symmetric - true to compute each operator with applyPhaseSymmetric,
+   *          false to use applyPhaseShift and the operator cache
+   */
+  public void setSymmetricShift(boolean symmetric) {
+    symmetricShift = symmetric;
+  }
+
+  /**
+   * Shift source and receiver wavefields with the selected method
+   */
+  void shiftWavefields(int ifreq, float v, float depthStep, float[][] shot, float[][] rcvr) {
+    if (symmetricShift)
+      applyPhaseSymmetric(ifreq, v, depthStep, shot, rcvr);
+    else
+      applyPhaseShift(ifreq, v, depthStep, shot, rcvr);
+  }
+
+  /**
+   * Set the number of worker threads each task uses in migrate
+   *
+   * @param threads - number of threads, at least 1
+   */
+  public void setThreadCount(int threads) {
+    threadCount = Math.max(1, threads);
+  }
+
+  /**
+   * Migrate the shot into the output image. Frequencies are spread across the
+   * tasks of the parallel context by the decomposition of the input grids,
+   * and within each task across worker threads that each have their own FFT
+   * and image. Worker images are summed and then reduced across tasks once,
+   * after all frequencies are done, each task summing the depths it holds.
+   * This is a collective call.
+   */
+  public void migrate() {
+    // Frequencies held by this task
+    int localFreqs = rcvr.getLocalLengths()[2];
+    final int[] freqs = new int[localFreqs];
+    int count = 0;
+    for (int k = 0; k < localFreqs; k++) {
+      int ifreq = rcvr.localToGlobal(2, k);
+      if (ifreq < nf)
+        freqs[count++] = ifreq;
+    }
+    final int freqCount = count;
+    final AtomicInteger nextFreq = new AtomicInteger();
+    int workerCount = Math.max(1, Math.min(threadCount, freqCount));
+    List<MigrationWorker> workers = new ArrayList<MigrationWorker>();
+    List<Future<?>> results = new ArrayList<Future<?>>();
+    ExecutorService threads = Executors.newFixedThreadPool(workerCount);
+    try {
+      for (int i = 0; i < workerCount; i++) {
+        final MigrationWorker worker = new MigrationWorker();
+        workers.add(worker);
+        results.add(threads.submit(new Runnable() {
+          @Override
+          public void run() {
+            int k;
+            while ((k = nextFreq.getAndIncrement()) < freqCount) {
+              worker.migrateFrequency(freqs[k]);
+            }
+          }
+        }));
+      }
+      for (Future<?> result : results) {
+        result.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Migration was interrupted", e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException("Migration worker failed", e.getCause());
+    } finally {
+      threads.shutdown();
+    }
+    // Sum the worker images, then across tasks
+    float[][][] total = workers.get(0).img;
+    for (int i = 1; i < workers.size(); i++) {
+      float[][][] part = workers.get(i).img;
+      for (int iz = 0; iz < nz; iz++) {
+        for (int iy = 0; iy < ny; iy++) {
+          TraceKernels.add(total[iz][iy], 0, part[iz][iy], 0, nx);
+        }
+      }
+    }
+    reduceImage(total);
+    storeImage(total);
+  }
+
+  /**
+   * Sum an image across all tasks for the depths this task holds in the
+   * output image. Each task puts its image into its own plane of a
+   * distributed array, one trace per depth, and a transpose brings the planes
+   * of each depth to the task that holds it. Each task sends and receives
+   * about one image, rather than holding the images of every task.
+   */
+  void reduceImage(float[][][] total) {
+    int ntask = pc.size();
+    if (ntask == 1)
+      return;
+    int[] dtypes = new int[] { Decomposition.NONE, Decomposition.BLOCK, Decomposition.BLOCK };
+    int[] shape = DistributedArray.getTransposeShape(pc, 3, new int[] { nx * ny, nz, ntask },
+        dtypes);
+    DistributedArray planes = new DistributedArray(pc, ElementType.FLOAT, shape, dtypes);
+    float[] trace = new float[nx * ny];
+    int[] position = new int[] { 0, 0, pc.rank() };
+    for (position[1] = 0; position[1] < nz; position[1]++) {
+      for (int iy = 0; iy < ny; iy++) {
+        System.arraycopy(total[position[1]][iy], 0, trace, iy * nx, nx);
+      }
+      planes.putTrace(trace, position);
+    }
+    // Depths are now decomposed over tasks, with the planes on the middle axis
+    planes.transpose(TransposeType.T132);
+    RegularGrid depths = new RegularGrid(planes);
+    int localDepths = depths.getLocalLengths()[2];
+    int reduced = 0;
+    for (int k = 0; k < localDepths; k++) {
+      position[2] = depths.localToGlobal(2, k);
+      if (position[2] >= nz)
+        continue;
+      if (!image.isPositionLocal(new int[] { 0, 0, position[2] }))
+        throw new IllegalStateException("Depth " + position[2]
+            + " is reduced on a different task than the one holding it in the image");
+      float[][] slice = total[position[2]];
+      for (int iy = 0; iy < ny; iy++) {
+        Arrays.fill(slice[iy], 0f);
+      }
+      // Add in rank order so the sums do not depend on the task count
+      for (position[1] = 0; position[1] < ntask; position[1]++) {
+        planes.getTrace(trace, position);
+        for (int iy = 0; iy < ny; iy++) {
+          TraceKernels.add(slice[iy], 0, trace, iy * nx, nx);
+        }
+      }
+      reduced++;
+    }
+    if (reduced != image.getLocalLengths()[2])
+      throw new IllegalStateException("Image depths are not decomposed like the reduction");
+  }
+
+  /**
+   * Copy the depths of an image held by this task into the output image
+   */
+  void storeImage(float[][][] total) {
+    DistributedArray da = image.getGrid();
+    int[] position = new int[3];
+    int localDepths = image.getLocalLengths()[2];
+    for (int k = 0; k < localDepths; k++) {
+      position[2] = image.localToGlobal(2, k);
+      for (position[1] = 0; position[1] < ny; position[1]++) {
+        da.putTrace(total[position[2]][position[1]], position);
+      }
+    }
+  }
+
+  /**
+   * Migrates single frequencies with its own FFT, work arrays and image, so
+   * workers can run in separate threads
+   */
+  class MigrationWorker {
+    final Fft2d fft = new Fft2d(nx, ny, padx, pady, IFFT.Type.COMPLEX, IFFT.Type.COMPLEX, -1, -1,
+        IFFT.Scale.SYMMETRIC, IFFT.Scale.SYMMETRIC);
+    /** Source and receiver wavefields in x,y and in kx,ky */
+    final float[][] sxy = new float[ny][2 * nx], rxy = new float[ny][2 * nx];
+    final float[][] sk = new float[nky][2 * nkx], rk = new float[nky][2 * nkx];
+    /** Copy of a wavefield for inverse transforms, which keeps sk and rk intact */
+    final float[][] kwork = new float[nky][2 * nkx];
+    /** Image accumulated over the frequencies of this worker */
+    final float[][][] img = new float[nz][ny][nx];
+    final int[] position = new int[3];
+    /** PSPI wavefields in kx,ky and in x,y for each reference velocity */
+    float[][] kshot, krcvr;
+    float[][][] sref, rref;
+
+    MigrationWorker() {
+      if (model == null)
+        return;
+      int nref = 0;
+      for (float[] refs : refVels) {
+        nref = Math.max(nref, refs.length);
+      }
+      kshot = new float[nky][2 * nkx];
+      krcvr = new float[nky][2 * nkx];
+      sref = new float[nref][ny][2 * nx];
+      rref = new float[nref][ny][2 * nx];
+    }
+
+    /**
+     * Extrapolate one frequency through all depths and add its contribution
+     * to the image. The wavefields stay in the wavenumber domain between depth
+     * steps, so each wavefield is forward transformed once per frequency and
+     * inverse transformed once per depth for the imaging condition. With a
+     * velocity model the wavefields are stepped in x,y by PSPI instead.
+     *
+     * @param ifreq - frequency index
+     */
+    void migrateFrequency(int ifreq) {
+      readFrame(shot.getGrid(), ifreq, sxy);
+      readFrame(rcvr.getGrid(), ifreq, rxy);
+      if (model != null) {
+        // Band limit to the range defined by the slowest surface reference
+        ArrayMath.fill(0, sk);
+        ArrayMath.fill(0, rk);
+        fft.forwardComplex(sxy, sk);
+        fft.forwardComplex(rxy, rk);
+        shiftWavefields(ifreq, refVels[0][0], 0f, sk, rk);
+        inverse(sk, sxy);
+        inverse(rk, rxy);
+        for (int iz = 0; iz < nz; iz++) {
+          addImage(iz);
+          if (iz < nz - 1)
+            stepPspi(ifreq, iz);
+        }
+        return;
+      }
+      ArrayMath.fill(0, sk);
+      ArrayMath.fill(0, rk);
+      fft.forwardComplex(sxy, sk);
+      fft.forwardComplex(rxy, rk);
+      // Band limit to the range defined by the first velocity
+      shiftWavefields(ifreq, vels[0], 0f, sk, rk);
+      for (int iz = 0; iz < nz; iz++) {
+        inverse(sk, sxy);
+        inverse(rk, rxy);
+        addImage(iz);
+        // Step down to the next depth through interval velocity vels[iz]
+        if (iz < nz - 1)
+          shiftWavefields(ifreq, vels[iz], (float) dz, sk, rk);
+      }
+    }
+
+    /**
+     * Step the x,y wavefields down one depth through the velocity model,
+     * using the reference velocities of that depth
+     */
+    void stepPspi(int ifreq, int iz) {
+      ArrayMath.fill(0, sk);
+      ArrayMath.fill(0, rk);
+      fft.forwardComplex(sxy, sk);
+      fft.forwardComplex(rxy, rk);
+      float[] refs = refVels[iz];
+      int nref = refs.length;
+      for (int r = 0; r < nref; r++) {
+        for (int j = 0; j < nky; j++) {
+          System.arraycopy(sk[j], 0, kshot[j], 0, 2 * nkx);
+          System.arraycopy(rk[j], 0, krcvr[j], 0, 2 * nkx);
+        }
+        shiftWavefields(ifreq, refs[r], (float) dz, kshot, krcvr);
+        fft.inverseComplex(kshot, sref[r]);
+        fft.inverseComplex(krcvr, rref[r]);
+      }
+      double phase = dw * ifreq * dz;
+      float[][] v = model[iz];
+      for (int iy = 0; iy < ny; iy++) {
+        for (int ix = 0; ix < nx; ix++) {
+          double slowness = 1.0 / v[iy][ix];
+          // Bracketing references a <= b and the weight of a
+          int a = 0;
+          while (a < nref - 1 && refs[a + 1] <= v[iy][ix])
+            a++;
+          int b = Math.min(a + 1, nref - 1);
+          float w = 1f;
+          if (b != a && v[iy][ix] > refs[a])
+            w = (float) ((slowness - 1.0 / refs[b]) / (1.0 / refs[a] - 1.0 / refs[b]));
+          int k = 2 * ix;
+          float sr = 0, si = 0, rr = 0, ri = 0;
+          for (int n = 0; n < 2; n++) {
+            int r = (n == 0 ? a : b);
+            float weight = (n == 0 ? w : 1 - w);
+            if (weight == 0)
+              continue;
+            // Split step correction from the reference to the local velocity
+            double shift = phase * (slowness - 1.0 / refs[r]);
+            float c = (float) (weight * Math.cos(shift));
+            float sn = (float) (weight * Math.sin(shift));
+            float[] s = sref[r][iy];
+            float[] q = rref[r][iy];
+            sr += s[k] * c - s[k + 1] * sn;
+            si += s[k] * sn + s[k + 1] * c;
+            rr += q[k] * c + q[k + 1] * sn;
+            ri += q[k + 1] * c - q[k] * sn;
+          }
+          sxy[iy][k] = sr;
+          sxy[iy][k + 1] = si;
+          rxy[iy][k] = rr;
+          rxy[iy][k + 1] = ri;
+        }
+      }
+    }
+
+    /** Inverse transform a wavefield without changing it */
+    void inverse(float[][] k, float[][] xy) {
+      for (int j = 0; j < nky; j++) {
+        System.arraycopy(k[j], 0, kwork[j], 0, 2 * nkx);
+      }
+      fft.inverseComplex(kwork, xy);
+    }
+
+    /**
+     * Cross correlation imaging condition, the real part of the source times
+     * the conjugate of the receiver wavefield
+     */
+    void addImage(int iz) {
+      for (int iy = 0; iy < ny; iy++) {
+        float[] s = sxy[iy];
+        float[] r = rxy[iy];
+        float[] out = img[iz][iy];
+        for (int ix = 0; ix < nx; ix++) {
+          out[ix] += s[2 * ix] * r[2 * ix] + s[2 * ix + 1] * r[2 * ix + 1];
+        }
+      }
+    }
+
+    void readFrame(DistributedArray da, int ifreq, float[][] frame) {
+      position[0] = 0;
+      position[2] = ifreq;
+      for (position[1] = 0; position[1] < ny; position[1]++) {
+        da.getTrace(frame[position[1]], position);
+      }
+    }
+  }
+
   /**
    * Compute the sample shift for a given frequency, velocity and depth step
    * 
@@ -164,7 +639,7 @@ public class ShotMigPhaseShift {
       ky = dky * getKindex(nqy, nky, j);
       ky2 = ky * ky;
       for (int i = 0; i < nkx; i++) {
-        kx = dkx * getKindex(nqx, nky, i);
+        kx = dkx * getKindex(nqx, nkx, i);
         kx2 = kx * kx;
         kz2 = wv2 - kx2 - ky2;
         if (kz2 > EPS) {
@@ -177,50 +652,18 @@ public class ShotMigPhaseShift {
   }
 
   /**
-   * Apply phase shift operator at a given frequency, velocity and depth step
+   * Apply phase shift operator at a given frequency, velocity and depth step.
+   * The operator comes from the operator cache, so it is computed once for
+   * each frequency, velocity and depth step.
    * 
-   * @param ifreq - input angular frequency
+   * @param ifreq - input frequency index
    * @param v - input velocity
    * @param depthStep - input depth step
    * @param shot - Complex wavefield array for source signature in kx and ky
    * @param rcvr - Complex wavefield array for receiver data in kx and ky
    */
   public void applyPhaseShift(int ifreq, float v, float depthStep, float[][] shot, float[][] rcvr ) {
-    final double EPS = 1e-12;
-    // Wavenumber values
-    double kx2, ky2, kz2, shift;
-    // K vector magnitude
-    double omega = dw*ifreq;
-    double wv2 = (omega * omega) / (v * v);
-    // Wavenumber delta values squared
-    double dkx2 = dkx*dkx;
-    double dky2 = dky*dky;
-    // Signed wavenumber index values
-    int kx, ky;
-    // Outer loop over Ky axis
-    for (int j = 0; j < nky; j++) {
-      // Get signed wavenumber index for Y
-      ky = (j <= nqy ? j : j-nky);
-      ky2 = dky2 * ky * ky;
-      // Inner loop over Kx axis
-      for (int i = 0; i < nkx; i++) {
-        // Signed wavenumber index for X
-        kx = (i <= nqx ? i : i-nkx);
-        kx2 = dkx2* kx * kx;
-        // Vertical wavenumber squared
-        kz2 = wv2 - kx2 - ky2;
-        // Apply shift if not evanescent
-        if (kz2 > EPS) {
-          shift = depthStep * Math.sqrt(kz2);
-          ComplexArrays.cshift(shot[j], i, shift );
-          ComplexArrays.cshift(rcvr[j], i, -shift );
-        } else {
-          // Zero evanescent values
-          ComplexArrays.eq(shot[j], i, 0f, 0f);
-          ComplexArrays.eq(rcvr[j], i, 0f, 0f);
-        }
-      }
-    }
+    operators.get(ifreq, v, depthStep).apply(shot, rcvr);
   }
 
   /**
@@ -236,123 +679,66 @@ public class ShotMigPhaseShift {
   }
 
   /**
-   * Optimized phase shift application (not tested ;-) Exploits quadrant
-   * symmetry of phase shift values to reduce sqrt and sin/cos computations
+   * Phase shift application that computes the operator directly instead of
+   * using the operator cache. Exploits quadrant symmetry of phase shift values,
+   * so each sqrt and sin/cos is computed once and applied to the samples at
+   * (+-kx,+-ky) of both wavefields.
    * 
-   * @param omega - angular frequency in radians/sec
+   * @param ifreq - input frequency index
    * @param v - input velocity
    * @param depthStep - depth step size
-   * @param p - input/output 2D wavefield array of size (nky) x (2*nkx)
+   * @param shot - Complex wavefield array for source signature in kx and ky
+   * @param rcvr - Complex wavefield array for receiver data in kx and ky
    */
-  public void applyPhaseSymmetric(float omega, float v, float depthStep,
-      float[][] p) {
+  public void applyPhaseSymmetric(int ifreq, float v, float depthStep,
+      float[][] shot, float[][] rcvr) {
     final double EPS = 1e-12;
     // Wavenumber values
-    double kx, ky, kx2, ky2, kz2, shift;
+    double ky2, kz2, shift;
     // K vector magnitude
+    double omega = dw * ifreq;
     double wv2 = (omega * omega) / (v * v);
-
-    // Handle ky=0 as a separate case
-    ComplexArrays.cshift(p[0], 0, depthStep * Math.sqrt(wv2));
-    int im = nkx - 2;
-    for (int i = 1; i <= nqx - 1; i++, im--) {
-      kx = dkx * i;
-      kx2 = kx * kx;
-      kz2 = wv2 - kx2;
-      if (kz2 > EPS) {
-        shift = depthStep * Math.sqrt(kz2);
-        ComplexArrays.cshift(p[0], i, shift);
-        ComplexArrays.cshift(p[0], im, shift);
-      } else {
-        p[0][i] = p[0][im] = 0;
-      }
-    }
-    kx = dkx * nqx;
-    kx2 = kx * kx;
-    kz2 = wv2 - kx2;
-    if (kz2 > EPS) {
-      ComplexArrays.cshift(p[0], nqx, depthStep * Math.sqrt(wv2));
-    } else {
-      p[0][nqx] = 0;
-    }
-
-    // Loop over symmetric ky range
-    int jm = nky - 2;
-    for (int j = 1; j <= nqy - 1; j++, jm--) {
-      ky = dky * j;
-      ky2 = ky * ky;
-      // Handle zero kx
-      kz2 = wv2 - ky2;
-      if (kz2 > EPS) {
-        // Values are not evanescent
-        ComplexArrays.cshift(p[j], 0, depthStep * Math.sqrt(wv2));
-      } else {
-        // Set evanescent values to zero
-        Arrays.fill(p[j], 0f);
-        Arrays.fill(p[jm], 0f);
-        continue;
-      }
-      // Loop over symmetric kx range
-      im = nkx - 2;
-      for (int i = 1; i <= nqx - 1; i++, im--) {
-        kx = dkx * i;
-        kx2 = kx * kx;
-        kz2 = wv2 - kx2 - ky2;
+    float c, sn;
+    for (int j = 0; j <= nqy; j++) {
+      // Mirror index for -ky, or -1 at zero and even length Nyquist
+      int jm = (j == 0 || nky - j == j ? -1 : nky - j);
+      ky2 = (dky * j) * (dky * j);
+      for (int i = 0; i <= nqx; i++) {
+        int im = (i == 0 || nkx - i == i ? -1 : nkx - i);
+        kz2 = wv2 - (dkx * i) * (dkx * i) - ky2;
         if (kz2 > EPS) {
           shift = depthStep * Math.sqrt(kz2);
-          ComplexArrays.cshift(p[j], i, shift);
-          ComplexArrays.cshift(p[j], im, shift);
-          ComplexArrays.cshift(p[jm], i, shift);
-          ComplexArrays.cshift(p[jm], im, shift);
+          c = (float) Math.cos(shift);
+          sn = (float) Math.sin(shift);
         } else {
-          p[j][i] = p[jm][i] = p[j][im] = p[jm][im] = 0;
+          // Zero evanescent values
+          c = sn = 0;
+        }
+        rotate(shot[j], rcvr[j], i, c, sn);
+        if (im >= 0)
+          rotate(shot[j], rcvr[j], im, c, sn);
+        if (jm >= 0) {
+          rotate(shot[jm], rcvr[jm], i, c, sn);
+          if (im >= 0)
+            rotate(shot[jm], rcvr[jm], im, c, sn);
         }
-      }
-      // Now handle Nyquist kx
-      kx = dkx * nqx;
-      kx2 = kx * kx;
-      kz2 = wv2 - kx2 - ky2;
-      if (kz2 > EPS) {
-        shift = depthStep * Math.sqrt(kz2);
-        ComplexArrays.cshift(p[j], nqx, shift);
-        ComplexArrays.cshift(p[jm], nqx, shift);
-      } else {
-        p[j][nqx] = p[jm][nqx] = 0;
       }
     }
+  }
 
-    // Separate case for ky=nyquist
-
-    ky = dky * nqy;
-    ky2 = kx * kx;
-    kz2 = wv2 - ky2;
-    if (kz2 > EPS) {
-      ComplexArrays.cshift(p[nqy], 0, depthStep * Math.sqrt(wv2));
-    } else {
-      Arrays.fill(p[nqy], 0);
-      return;
-    }
-    im = nkx - 2;
-    for (int i = 1; i <= nqx - 1; i++, im--) {
-      kx = dkx * i;
-      kx2 = kx * kx;
-      kz2 = wv2 - kx2 - ky2;
-      if (kz2 > EPS) {
-        shift = depthStep * Math.sqrt(kz2);
-        ComplexArrays.cshift(p[nqy], i, shift);
-        ComplexArrays.cshift(p[nqy], im, shift);
-      } else {
-        p[nqy][i] = p[nqy][im] = 0;
-      }
-    }
-    kx = dkx * nqx;
-    kx2 = kx * kx;
-    kz2 = wv2 - kx2 - ky2;
-    if (kz2 > EPS) {
-      ComplexArrays.cshift(p[0], nqx, depthStep * Math.sqrt(wv2));
-    } else {
-      p[0][nqx] = 0;
-    }
+  /**
+   * Multiply a complex source sample by (c,sn) and a receiver sample by its
+   * conjugate
+   */
+  private static void rotate(float[] s, float[] r, int i, float c, float sn) {
+    int k = 2 * i;
+    float re = s[k], im = s[k + 1];
+    s[k] = re * c - im * sn;
+    s[k + 1] = re * sn + im * c;
+    re = r[k];
+    im = r[k + 1];
+    r[k] = re * c + im * sn;
+    r[k + 1] = im * c - re * sn;
   }
 
   /**
@@ -1,11 +1,15 @@
 package org.javaseis.examples.io;
 
 import java.io.File;
+import java.nio.FloatBuffer;
 import java.util.Iterator;
 
 import org.javaseis.io.Seisio;
 import org.javaseis.parset.ParameterSetIO;
 import org.javaseis.util.SeisException;
+import org.javaseis.volume.JavaSeisTraceFile;
+import org.javaseis.volume.MappedSeismicVolume;
+import org.javaseis.volume.VolumeStatistics;
 
 import edu.mines.jtk.util.ParameterSet;
 
@@ -27,24 +31,57 @@ public class ExampleFileRMSValue {
     // Attempt to open
     Seisio sio = new Seisio( path );
     sio.open("r");
+    // With access=mapped, scan the trace files through memory mapped volumes
+    if (parset.getString("access", "seisio").equals("mapped")) {
+      System.out.println("RMS Value of dataset = " + mappedRMSValue(sio, path) );
+      sio.close();
+      return;
+    }
     // Get the trace array and iterator for frames
     float[][] trc = sio.getTraceDataArray();
     Iterator<int[]> frames = sio.frameIterator();
-    double rms = 0.0;
-    double sum = 0;
-    // Loop over frames and calculate RMS value
+    VolumeStatistics stats = new VolumeStatistics();
+    // Loop over frames and accumulate the statistics
     while (frames.hasNext()) {
       frames.next();
       int ntrc = sio.getTracesInFrame();
       for (int j=0; j<ntrc; j++) {
-        for (int i=0; i<trc[j].length; i++) {
-            sum = sum + 1;
-            rms = rms + (double)(trc[j][i]*trc[j][i]);
+        stats.add(trc[j], 0, trc[j].length);
+      }
+    }
+    System.out.println("RMS Value of dataset = " + stats.getRms() );
+    System.out.println("Statistics of dataset: " + stats );
+  }
+
+  /**
+   * Calculate the RMS value by reading samples straight from mapped trace
+   * files, one volume at a time
+   */
+  static double mappedRMSValue(Seisio sio, String path) throws SeisException {
+    File dataset = new File(path);
+    JavaSeisTraceFile traceFile = new JavaSeisTraceFile(dataset.getParent(), dataset.getName(), "r");
+    MappedSeismicVolume volume = new MappedSeismicVolume(sio.getGridDefinition());
+    long[] lengths = traceFile.getAxisLengths();
+    int nvol = 1;
+    for (int i = 3; i < lengths.length; i++) {
+      nvol *= (int) lengths[i];
+    }
+    float[] trc = new float[volume.getSampleCount()];
+    VolumeStatistics stats = new VolumeStatistics();
+    for (int ivol = 0; ivol < nvol; ivol++) {
+      traceFile.read(ivol, volume);
+      for (long j = 0; j < volume.getTraceCount(); j++) {
+        FloatBuffer samples = volume.getTraceBuffer(j);
+        if (samples == null) {
+          volume.getTrace(j, trc);
+          stats.add(trc, 0, trc.length);
+        } else {
+          stats.add(samples);
         }
       }
     }
-    rms = Math.sqrt(rms/sum);
-    System.out.println("RMS Value of dataset = " + rms );
+    traceFile.close();
+    return stats.getRms();
   }
 
 }
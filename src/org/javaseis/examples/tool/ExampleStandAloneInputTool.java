@@ -6,24 +6,18 @@ import org.javaseis.grid.GridDefinition;
 import org.javaseis.services.ParameterService;
 import org.javaseis.tool.StandAloneVolumeTool;
 import org.javaseis.tool.ToolContext;
-import org.javaseis.util.IntervalTimer;
 import org.javaseis.util.SeisException;
 import org.javaseis.volume.ISeismicVolume;
+import org.javaseis.volume.VolumeStatistics;
 
-import edu.mines.jtk.util.ArrayMath;
-import beta.javaseis.array.ITraceIterator;
-import beta.javaseis.array.PositionIterator;
-import beta.javaseis.parallel.ICollective.Operation;
 import beta.javaseis.parallel.IParallelContext;
-import beta.javaseis.parallel.ReduceScalar;
 
 public class ExampleStandAloneInputTool extends StandAloneVolumeTool {
 
   IParallelContext pc;
-  PositionIterator volPos;
-  IntervalTimer compTimer, totalTimer;
   GridDefinition inputGrid;
-  double compTime, waitTime, totalTime;
+  /** Statistics of the samples this task has seen in all volumes */
+  VolumeStatistics total;
 
   public static void main(String[] args) {
     ParameterService parms = new ParameterService(args);
@@ -52,40 +46,27 @@ public class ExampleStandAloneInputTool extends StandAloneVolumeTool {
 
   @Override
   public void parallelInit(ToolContext toolContext) {
-    totalTimer = new IntervalTimer();
-    totalTimer.start();
     pc = toolContext.getParallelContext();
     inputGrid = (GridDefinition) toolContext.getFlowGlobal(ToolContext.INPUT_GRID);
     pc.masterPrint("Input Grid Definition:\n" + inputGrid );
-    compTimer = new IntervalTimer();
-    int nvol = (int) inputGrid.getAxisLength(3);
-    int nhyp = (int) inputGrid.getAxisLength(4);
-    volPos = new PositionIterator(new int[] { nvol, nhyp });
+    total = new VolumeStatistics();
   }
 
   @Override
   public boolean processVolume(ToolContext toolContext, ISeismicVolume input,
       ISeismicVolume output) {
-    if (volPos.hasNext()) {
-      volPos.next();
-      pc.masterPrint("Process Input Volume at position: "
-          + Arrays.toString(volPos.getPosition()));
-      compTimer.start();
-      ITraceIterator ti = output.getTraceIterator();
-      float[] trc;
-      double min = Double.MAX_VALUE;
-      double max = Double.MIN_VALUE;
-      while (ti.hasNext()) {
-        trc = ti.next();
-        min = Math.min(min,ArrayMath.min(trc));
-        max = Math.max(max,ArrayMath.max(trc));
-      }     
-      pc.masterPrint("  Min,Max values in volume: " + ReduceScalar.reduceDouble(pc, min, Operation.MIN) + 
-          ", " + ReduceScalar.reduceDouble(pc, max, Operation.MAX));
-      compTimer.stop();
-      return true;
-    }
-    return volPos.hasNext();
+    // The position is set by the handler, so it is right in every execution mode
+    int[] position = (int[]) toolContext.getFlowLocal(ToolContext.VOLUME_POSITION);
+    pc.masterPrint("Process Input Volume at position: "
+        + Arrays.toString(Arrays.copyOfRange(position, 3, position.length)));
+    VolumeStatistics stats = new VolumeStatistics();
+    stats.add(output.getTraceIterator());
+    total.combine(stats);
+    // Parts of a volume held by other tasks are reduced over the volume's context
+    stats.reduce(pc);
+    pc.masterPrint("  Min,Max values in volume: " + stats.getMin() + ", " + stats.getMax());
+    pc.masterPrint("  Mean,RMS values in volume: " + stats.getMean() + ", " + stats.getRms());
+    return true;
   }
 
   @Override
@@ -95,11 +76,15 @@ public class ExampleStandAloneInputTool extends StandAloneVolumeTool {
 
   @Override
   public void parallelFinish(ToolContext toolContext) {
-    compTime = ReduceScalar.reduceDouble(pc,compTimer.elapsedTime(),Operation.SUM);
-    totalTimer.stop();
-    totalTime = ReduceScalar.reduceDouble(pc,totalTimer.elapsedTime(),Operation.SUM);
-    pc.masterPrint("Completed ExampleStandAloneInputTool:" +
-      "\n  Computation Time: " + compTime + "\n  Total Time: " + totalTime );
+    // In volume parallel mode the tool context is uniprocessor, and the
+    // volumes were spread over the tasks of the task context
+    IParallelContext taskContext = (IParallelContext) toolContext
+        .getFlowLocal(ToolContext.TASK_PARALLEL_CONTEXT);
+    if (taskContext == null)
+      taskContext = pc;
+    total.reduce(taskContext);
+    taskContext.masterPrint("All volumes: " + total);
+    taskContext.masterPrint("Completed ExampleStandAloneInputTool");
   }
 
   @Override
@@ -1,24 +1,29 @@
 package org.javaseis.examples.tool;
 
+import java.util.Arrays;
+
 import org.javaseis.grid.GridDefinition;
 import org.javaseis.properties.AxisDefinition;
 import org.javaseis.services.ParameterService;
+import org.javaseis.tool.IInPlaceVolumeTool;
+import org.javaseis.tool.ISelectiveVolumeTool;
 import org.javaseis.tool.StandAloneVolumeTool;
 import org.javaseis.tool.ToolContext;
-import org.javaseis.util.IntervalTimer;
+import org.javaseis.tool.VolumeSelection;
 import org.javaseis.util.SeisException;
 import org.javaseis.volume.ISeismicVolume;
+import org.javaseis.volume.TraceHeaders;
 
 import beta.javaseis.parallel.IParallelContext;
 
-public class ExtractPWaveData extends StandAloneVolumeTool {
+public class ExtractPWaveData extends StandAloneVolumeTool implements IInPlaceVolumeTool,
+    ISelectiveVolumeTool {
 
-  int volumeCount;
   IParallelContext pc;
-  IntervalTimer compTime, totalTime;
 
   private int componentAxis;
   private int pwaveComponentNumber;
+  private VolumeSelection selection;
 
   public static void main(String[] args) {
     ParameterService parms = new ParameterService(args);
@@ -26,9 +31,7 @@ public class ExtractPWaveData extends StandAloneVolumeTool {
     setParameterIfUnset(parms,"inputFilePath","100-rawsyntheticdata.js");
     setParameterIfUnset(parms,"outputFileSystem","/home/wilsonmr/javaseis");
     setParameterIfUnset(parms,"outputFilePath","100a-rawsynthpwaves.js");
-    //TODO if you set threadCount to 2, half of the data will be missing
-    // the task fails outright if you set it higher than 2.
-    setParameterIfUnset(parms,"threadCount","1");
+    setParameterIfUnset(parms,ToolContext.TASK_COUNT,ToolContext.AUTO_TASK_COUNT);
     try {
       exec(parms, new ExtractPWaveData());
     } catch (SeisException e) {
@@ -71,7 +74,7 @@ public class ExtractPWaveData extends StandAloneVolumeTool {
         System.out.println("Input Data is multicomponent, "
             + "but the components differ within volumes");
       }
-      toolContext.outputGrid = new GridDefinition(toolContext.outputGrid);
+      toolContext.outputGrid = new GridDefinition(toolContext.inputGrid);
     }
   }
 
@@ -113,18 +116,24 @@ public class ExtractPWaveData extends StandAloneVolumeTool {
 
   @Override
   public void parallelInit(ToolContext toolContext) {
-    volumeCount = 0;
     pc = toolContext.getParallelContext();
+    componentAxis = findComponentAxis(toolContext);
+    pwaveComponentNumber = determinePWaveHeaderValue(toolContext);
+    // Only read volumes where the GEO_COMP index is pwaveComponentNumber-1
+    selection = new VolumeSelection(toolContext.inputGrid);
+    if (componentAxis > 2)
+      selection.setRange(componentAxis, pwaveComponentNumber - 1, pwaveComponentNumber - 1, 1);
     pc.masterPrint("Input Grid Definition:\n" + toolContext.inputGrid);
     pc.masterPrint("Output Grid Definition:\n" + toolContext.outputGrid);
-    compTime = new IntervalTimer();
-    totalTime = new IntervalTimer();
-    totalTime.start();
+  }
+
+  @Override
+  public boolean selectVolume(ToolContext toolContext, int[] position) {
+    return selection.contains(position);
   }
 
   @Override
   public boolean processVolume(ToolContext toolContext, ISeismicVolume input, ISeismicVolume output) {
-    compTime.start();
 
     /*{
     //TODO extract these musings into a coherent set of tests
@@ -158,23 +167,28 @@ public class ExtractPWaveData extends StandAloneVolumeTool {
       //output grid.
     }*/
 
-    //TODO
-    //Idea: copy every volume where the GEO_COMP index is equal to
-    //      pwaveComponentNumber-1.
-    //      It would be better if I could figure out the 4th index,
-    //      then use that to compute the value of GEO_COMP using
-    //      origin + index*delta, but I can't make that work right now,
-    //      so I'm just going to use the counter
-    long numComponents = input.getGlobalGrid().getAxisLengths()[componentAxis];
-    if (volumeCount % numComponents == pwaveComponentNumber - 1) { 
-      System.out.println("Saving P-waves from volume " + volumeCount++);
-      output.copyVolume(input);
-      compTime.stop();
-      return true;
-    } else {
-      System.out.println("Trashing S-waves from volume " + volumeCount++);
-      compTime.stop();
-      return false;
+    int[] position = (int[]) toolContext.getFlowLocal(ToolContext.VOLUME_POSITION);
+    System.out.println("Saving P-waves from volume " + Arrays.toString(position));
+    output.copyVolume(input);
+    // Components that differ within a volume are told apart by the GEO_COMP
+    // header, when the run reads headers (inputHeaders=true)
+    TraceHeaders headers = input.getTraceHeaders();
+    if (componentAxis >= 0 && componentAxis < 3 && headers != null
+        && headers.hasField("GEO_COMP"))
+      zeroOtherComponents(output, headers.getIntColumn("GEO_COMP"));
+    return true;
+  }
+
+  private void zeroOtherComponents(ISeismicVolume output, int[] components) {
+    int[] lengths = output.getLengths();
+    float[] zeros = new float[output.getElementCount() * lengths[0]];
+    int localFrames = output.getLocalLengths()[2];
+    for (int k = 0; k < localFrames; k++) {
+      int frame = output.localToGlobal(2, k);
+      for (int trace = 0; trace < lengths[1]; trace++) {
+        if (components[trace + lengths[1] * frame] != pwaveComponentNumber)
+          output.putTraces(frame, trace, 1, zeros, 0);
+      }
     }
   }
 
@@ -185,9 +199,7 @@ public class ExtractPWaveData extends StandAloneVolumeTool {
 
   @Override
   public void parallelFinish(ToolContext toolContext) {
-    totalTime.stop();
-    pc.masterPrint("Computation Time: " + compTime.total()
-        + "\nTotal Time: " + totalTime.total());
+    //does nothing
   }
 
   @Override
@@ -0,0 +1,57 @@
+package org.javaseis.examples.tool.test;
+
+import java.util.Collections;
+
+import org.javaseis.examples.tool.ExtractPWaveData;
+import org.javaseis.grid.GridDefinition;
+import org.javaseis.tool.ToolContext;
+import org.javaseis.volume.SeismicVolume;
+import org.javaseis.volume.TraceHeaders;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that ExtractPWaveData passes single component data through unchanged
+ */
+public class JTestExtractPWaveData {
+
+  private static final int[] SHAPE = new int[] { 6, 4, 3 };
+
+  @Test
+  public void testSingleComponentWithHeaders() {
+    ToolContext toolContext = new ToolContext();
+    // No GEO_COMP axis, but the traces carry a GEO_COMP header
+    toolContext.inputGrid = GridDefinition.getDefault(3, SHAPE);
+    ExtractPWaveData tool = new ExtractPWaveData();
+    tool.serialInit(toolContext);
+    tool.parallelInit(toolContext);
+    toolContext.putFlowLocal(ToolContext.VOLUME_POSITION, new int[] { 0, 0, 0 });
+
+    SeismicVolume input = new SeismicVolume(toolContext.getParallelContext(),
+        toolContext.inputGrid);
+    float[] frame = new float[SHAPE[0] * SHAPE[1]];
+    for (int k = 0; k < SHAPE[2]; k++) {
+      for (int i = 0; i < frame.length; i++) {
+        frame[i] = 1 + i + frame.length * k;
+      }
+      input.putFrame(k, frame, 0);
+    }
+    TraceHeaders headers = new TraceHeaders(Collections.singletonList(new TraceHeaders.Field(
+        "GEO_COMP", "INTEGER", 1, 0)), SHAPE[1] * SHAPE[2]);
+    int[] components = headers.getIntColumn("GEO_COMP");
+    for (int i = 0; i < components.length; i++) {
+      components[i] = 1;
+    }
+    input.setTraceHeaders(headers);
+    SeismicVolume output = new SeismicVolume(toolContext.getParallelContext(),
+        toolContext.outputGrid);
+
+    Assert.assertTrue(tool.processVolume(toolContext, input, output));
+    for (int k = 0; k < SHAPE[2]; k++) {
+      output.getFrame(k, frame, 0);
+      for (int i = 0; i < frame.length; i++) {
+        Assert.assertEquals(1 + i + frame.length * k, frame[i], 0f);
+      }
+    }
+  }
+}
@@ -0,0 +1,28 @@
+package org.javaseis.tool;
+
+import java.util.Properties;
+
+/**
+ * Volume tools that carry state from one volume to the next and want it saved
+ * with checkpoints. Tools without state across volumes do not need this to be
+ * restarted from a checkpoint.
+ */
+public interface ICheckpointTool extends IVolumeTool {
+  /**
+   * Save the tool state after the volumes processed so far. Called on the
+   * master task only, so the state should be the same in all tasks.
+   *
+   * @param toolContext - tool context for the master task
+   * @param state - properties to store the state in
+   */
+  public void saveCheckpoint(ToolContext toolContext, Properties state);
+
+  /**
+   * Restore the tool state when a run is restarted from a checkpoint. Called
+   * on all tasks after parallelInit.
+   *
+   * @param toolContext - tool context for this task
+   * @param state - properties saved by saveCheckpoint
+   */
+  public void restoreCheckpoint(ToolContext toolContext, Properties state);
+}
@@ -0,0 +1,11 @@
+package org.javaseis.tool;
+
+/**
+ * Marker for volume tools that can process volumes in place. When the input
+ * and output volumes of such a tool match, the tool handlers pass the same
+ * volume as both input and output to processVolume and write the output
+ * straight from the input buffer. Tools that only select or pass volumes
+ * through then avoid a full copy of each volume.
+ */
+public interface IInPlaceVolumeTool extends IVolumeTool {
+}
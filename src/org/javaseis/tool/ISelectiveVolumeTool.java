@@ -0,0 +1,20 @@
+package org.javaseis.tool;
+
+/**
+ * Volume tools that only need some of the input volumes. The tool handlers
+ * ask the tool about each input volume position before reading it, and skip
+ * the read and the processVolume call for volumes that are not selected.
+ * <p>
+ * selectVolume may be called from an IO thread, ahead of processVolume calls
+ * for earlier volumes, so it should depend only on the position and on state
+ * set up in parallelInit.
+ */
+public interface ISelectiveVolumeTool extends IVolumeTool {
+  /**
+   * @param toolContext - tool context for this task
+   * @param position - position of the volume in the input dataset, with one
+   *          entry per axis and zeros for the first three axes
+   * @return true if the volume should be read and processed
+   */
+  public boolean selectVolume(ToolContext toolContext, int[] position);
+}
@@ -1,19 +1,35 @@
 package org.javaseis.tool;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.javaseis.grid.GridDefinition;
 import org.javaseis.services.ParameterService;
+import org.javaseis.tool.VolumeToolProfile.Stage;
 import org.javaseis.util.SeisException;
+import org.javaseis.volume.AbstractTraceVolume;
+import org.javaseis.volume.CompressedSeismicVolume;
 import org.javaseis.volume.ISeismicVolume;
+import org.javaseis.volume.JavaSeisTraceFile;
+import org.javaseis.volume.MappedSeismicVolume;
+import org.javaseis.volume.OffHeapSeismicVolume;
 import org.javaseis.volume.SeismicVolume;
 
 import beta.javaseis.distributed.FileSystemIOService;
 import beta.javaseis.distributed.IDistributedIOService;
+import beta.javaseis.parallel.ICollective.Operation;
 import beta.javaseis.parallel.IParallelContext;
 import beta.javaseis.parallel.ParallelException;
 import beta.javaseis.parallel.ParallelTask;
 import beta.javaseis.parallel.ParallelTaskExecutor;
+import beta.javaseis.parallel.ReduceScalar;
 import beta.javaseis.parallel.UniprocessorContext;
 
 /**
@@ -45,7 +61,8 @@ public abstract class StandAloneVolumeTool implements IVolumeTool {
       inputFilePath = serialToolContext.getParameter(ToolContext.INPUT_FILE_PATH);
       try {
         ipio.open(inputFilePath);
-        serialToolContext.putFlowGlobal(ToolContext.INPUT_GRID, ipio.getGridDefinition() );
+        serialToolContext.inputGrid = ipio.getGridDefinition();
+        serialToolContext.putFlowGlobal(ToolContext.INPUT_GRID, serialToolContext.inputGrid );
         ipio.close();
       } catch (SeisException ex) {
         ex.printStackTrace();
@@ -59,6 +76,26 @@ public abstract class StandAloneVolumeTool implements IVolumeTool {
     tool.serialInit(serialToolContext);
     // Get the output grid definition set by the tool
     GridDefinition outputGrid = (GridDefinition) serialToolContext.getFlowGlobal(ToolContext.OUTPUT_GRID);
+    if (outputGrid == null && serialToolContext.outputGrid != null) {
+      outputGrid = serialToolContext.outputGrid;
+      serialToolContext.putFlowGlobal(ToolContext.OUTPUT_GRID, outputGrid);
+    }
+    // A checkpoint left by an earlier run means the output already holds its volumes
+    VolumeCheckpoint checkpoint = null;
+    try {
+      checkpoint = VolumeCheckpoint.forContext(serialToolContext);
+    } catch (IOException ex) {
+      throw new RuntimeException("Could not read checkpoint", ex);
+    }
+    if (checkpoint != null) {
+      if (ToolContext.VOLUME_PARALLEL.equals(serialToolContext.getParameter(ToolContext.EXECUTION_MODE))
+          || Boolean.parseBoolean(serialToolContext.getParameter(ToolContext.ASYNC_IO)))
+        throw new RuntimeException("Checkpoints are only supported for collective execution "
+            + "with synchronous IO");
+      // Refuse to continue a checkpoint saved by a different run
+      setCheckpointRun(checkpoint, serialToolContext,
+          (GridDefinition) serialToolContext.getFlowGlobal(ToolContext.INPUT_GRID), tool.getClass());
+    }
     // Create or open output file if it was requested
     outputFileSystem = serialToolContext.getParameter(ToolContext.OUTPUT_FILE_SYSTEM);
     // If no output specified, don't use
@@ -68,7 +105,8 @@ public abstract class StandAloneVolumeTool implements IVolumeTool {
       outputFilePath = serialToolContext.getParameter(ToolContext.OUTPUT_FILE_PATH);
       String outputMode = serialToolContext.getParameter(ToolContext.OUTPUT_FILE_MODE);
       // For create, make the file and then close it
-      if (outputMode == ToolContext.OUTPUT_FILE_CREATE) {
+      if (outputMode == ToolContext.OUTPUT_FILE_CREATE
+          && (checkpoint == null || !checkpoint.isRestart())) {
         try {
           opio.create(outputFilePath, outputGrid);
           opio.close();
@@ -97,11 +135,35 @@ public abstract class StandAloneVolumeTool implements IVolumeTool {
       hasOutput = true;
     }
     serialToolContext.putFlowGlobal(ToolContext.HAS_OUTPUT, hasOutput );
+    // Volume parallel execution hands out whole volumes from a shared counter
+    if (ToolContext.VOLUME_PARALLEL.equals(serialToolContext.getParameter(ToolContext.EXECUTION_MODE))) {
+      if (!hasInput)
+        throw new RuntimeException("Volume parallel execution requires an input dataset");
+      GridDefinition inputGrid = (GridDefinition) serialToolContext.getFlowGlobal(ToolContext.INPUT_GRID);
+      // Selective tools are checked by each task once the selection is known
+      if (hasOutput && !(tool instanceof ISelectiveVolumeTool)
+          && volumeCount(inputGrid) != volumeCount(outputGrid))
+        throw new RuntimeException("Volume parallel execution requires the same number of input and "
+            + "output volumes:\n  Input volumes: " + volumeCount(inputGrid)
+            + "\n  Output volumes: " + volumeCount(outputGrid));
+      serialToolContext.putFlowGlobal(ToolContext.VOLUME_COUNTER, new AtomicInteger());
+      int computeSlots = Runtime.getRuntime().availableProcessors();
+      if (serialToolContext.getParameter(ToolContext.COMPUTE_SLOTS) != "null")
+        computeSlots = Integer.parseInt(serialToolContext.getParameter(ToolContext.COMPUTE_SLOTS));
+      serialToolContext.putFlowGlobal(ToolContext.COMPUTE_PERMITS, new Semaphore(computeSlots));
+    }
     
     // Store the tool class in the tool context
     serialToolContext.putToolGlobal(ToolContext.TOOL_CLASS, (Object)(tool.getClass()) );
     // Now run the tool handler which calls the implementor's methods
-    int ntask = Integer.parseInt(serialToolContext.getParameter(ToolContext.TASK_COUNT));
+    GridDefinition workGrid = (hasInput ? (GridDefinition) serialToolContext
+        .getFlowGlobal(ToolContext.INPUT_GRID) : outputGrid);
+    long workItems = 1;
+    if (serialToolContext.getFlowGlobal(ToolContext.VOLUME_COUNTER) != null)
+      workItems = volumeCount(workGrid);
+    else if (workGrid != null)
+      workItems = workGrid.getAxisLength(2);
+    int ntask = taskCount(parms, workItems);
     try {
       ParallelTaskExecutor.runTasks(StandAloneVolumeTask.class, ntask, (Object)serialToolContext);
     } catch (ExecutionException e) {
@@ -111,24 +173,131 @@ public abstract class StandAloneVolumeTool implements IVolumeTool {
     // Call the implementor's serial finish method to release any global
     // resources
     tool.serialFinish(serialToolContext);
+    // The run completed, so the next one starts from the beginning
+    if (checkpoint != null)
+      checkpoint.delete();
+  }
+
+  /**
+   * Set the input dataset, input grid and tool class of a run on its
+   * checkpoint
+   *
+   * @throws IllegalStateException if the checkpoint was saved by a different
+   *           run
+   */
+  static void setCheckpointRun(VolumeCheckpoint checkpoint, ToolContext toolContext,
+      GridDefinition inputGrid, Class<?> toolClass) {
+    String inputPath = null;
+    if (toolContext.getParameter(ToolContext.INPUT_FILE_SYSTEM) != "null")
+      inputPath = new File(toolContext.getParameter(ToolContext.INPUT_FILE_SYSTEM),
+          toolContext.getParameter(ToolContext.INPUT_FILE_PATH)).getPath();
+    checkpoint.setRun(inputPath, inputGrid, toolClass);
+  }
+
+  /**
+   * Return the number of tasks for a run. The taskCount parameter is used
+   * when it is a number, and the older threadCount parameter when taskCount
+   * is not set. If neither is set, or taskCount is "auto", there is one task
+   * per available processor, but no more tasks than work items so every task
+   * has something to do.
+   *
+   * @param parms - run parameters
+   * @param workItems - number of pieces the work is split into, the length
+   *          of the last volume axis or the number of volumes
+   * @return number of tasks to run
+   */
+  public static int taskCount(ParameterService parms, long workItems) {
+    String count = parms.getParameter(ToolContext.TASK_COUNT);
+    if (count == "null")
+      count = parms.getParameter(ToolContext.THREAD_COUNT);
+    if (count != "null" && !ToolContext.AUTO_TASK_COUNT.equals(count))
+      return Integer.parseInt(count);
+    int processors = Runtime.getRuntime().availableProcessors();
+    return (int) Math.max(1, Math.min(processors, workItems));
+  }
+
+  /**
+   * Return the number of volumes in a dataset, the product of the lengths of
+   * all axes beyond the first three
+   *
+   * @param grid - GridDefinition for the dataset
+   * @return number of 3D volumes in the dataset
+   */
+  public static int volumeCount(GridDefinition grid) {
+    long[] lengths = grid.getAxisLengths();
+    int count = 1;
+    for (int i = 3; i < lengths.length; i++) {
+      count *= (int) lengths[i];
+    }
+    return count;
+  }
+
+  /**
+   * Return the dataset position of a volume, with the fourth axis varying
+   * fastest
+   *
+   * @param grid - GridDefinition for the dataset
+   * @param volumeIndex - index of the volume, from 0 to volumeCount(grid)-1
+   * @return position with one entry per axis and zeros for the first three
+   */
+  public static int[] volumePosition(GridDefinition grid, int volumeIndex) {
+    long[] lengths = grid.getAxisLengths();
+    int[] position = new int[lengths.length];
+    for (int i = 3; i < lengths.length; i++) {
+      position[i] = (int) (volumeIndex % lengths[i]);
+      volumeIndex /= lengths[i];
+    }
+    return position;
   }
   
   public static class StandAloneVolumeTask extends ParallelTask {
     
     private ToolContext toolContext;
     private IVolumeTool tool;
+    /** The tool, if it only wants some of the input volumes */
+    private ISelectiveVolumeTool selector;
     private Class<IVolumeTool> toolClass;
     public Boolean input, output;
+    private IParallelContext pc;
+    private ParallelException pe;
+    private IDistributedIOService ipio, opio;
+    private SeismicVolume inputVolume, outputVolume;
+    /** Input volume read straight from the trace files, if inputStorage asks for one */
+    private AbstractTraceVolume traceVolume;
+    private JavaSeisTraceFile traceFile;
+    /** Input trace file that trace headers are read from, if inputHeaders is set */
+    private JavaSeisTraceFile headerFile;
+    private VolumePool pool;
+    /** Shared volume counter, only set for volume parallel execution */
+    private AtomicInteger volumeCounter;
+    /** Limits concurrent compute in volume parallel execution, otherwise null */
+    private Semaphore computePermits;
+    private VolumeToolProfile profile;
+    /** Checkpoint for this run, null if checkpoints are off */
+    private VolumeCheckpoint checkpoint;
     
     @SuppressWarnings("unchecked")
     @Override
     public void run() {
       // Get the parallel context
-      IParallelContext pc = this.getParallelContext();
-      ParallelException pe = new ParallelException(pc);
+      pc = this.getParallelContext();
+      pe = new ParallelException(pc);
+      profile = new VolumeToolProfile();
+      profile.start(Stage.OPEN);
       // Add the parallel context to the toolContext
-      toolContext = new ToolContext((ToolContext)super.getTaskObject());
+      ToolContext serialToolContext = (ToolContext)super.getTaskObject();
+      toolContext = new ToolContext(serialToolContext);
       toolContext.setParallelContext(pc);
+      // In volume parallel mode each task works on whole volumes by itself, so
+      // IO, volumes and the tool all see a uniprocessor context
+      volumeCounter = (AtomicInteger) serialToolContext.getFlowGlobal(ToolContext.VOLUME_COUNTER);
+      computePermits = (Semaphore) serialToolContext.getFlowGlobal(ToolContext.COMPUTE_PERMITS);
+      IParallelContext vpc = pc;
+      if (volumeCounter != null) {
+        vpc = new UniprocessorContext();
+        toolContext.putFlowLocal(ToolContext.TASK_PARALLEL_CONTEXT, pc);
+        toolContext.setParallelContext(vpc);
+      }
       toolClass = (Class<IVolumeTool>)toolContext.getToolGlobal(ToolContext.TOOL_CLASS);
       Exception ex = null;
       try {
@@ -137,22 +306,22 @@ public abstract class StandAloneVolumeTool implements IVolumeTool {
         ex = e1;
       }
       pe.exitOnException(ex, 1);
+      if (tool instanceof ISelectiveVolumeTool)
+        selector = (ISelectiveVolumeTool) tool;
       // Open the input and output file systems - should have been checked by StandAloneVolumeTool.main
       ex = null;
-      IDistributedIOService ipio = null;
-      IDistributedIOService opio = null;
       input = (Boolean)toolContext.getFlowGlobal(ToolContext.HAS_INPUT);
       output = (Boolean)toolContext.getFlowGlobal(ToolContext.HAS_OUTPUT);
       try {
         if (input) {
           String inputFileSystem = toolContext.getParameter(ToolContext.INPUT_FILE_SYSTEM);
-          ipio = new FileSystemIOService(pc,inputFileSystem);
+          ipio = new FileSystemIOService(vpc,inputFileSystem);
           String inputFilePath = toolContext.getParameter(ToolContext.INPUT_FILE_PATH);
           ipio.open(inputFilePath);
         }
         if (output) {
           String outputFileSystem = toolContext.getParameter(ToolContext.OUTPUT_FILE_SYSTEM);
-          opio = new FileSystemIOService(pc, outputFileSystem);
+          opio = new FileSystemIOService(vpc, outputFileSystem);
           String outputFilePath = toolContext.getParameter(ToolContext.OUTPUT_FILE_PATH);
           opio.open(outputFilePath);
         }
@@ -162,67 +331,519 @@ public abstract class StandAloneVolumeTool implements IVolumeTool {
       pe.exitOnException(ex, 1);
       // Get the input and output grids and store in the tool context
       if (input) {
-        toolContext.putFlowLocal(ToolContext.INPUT_GRID, ipio.getGridDefinition());
+        toolContext.inputGrid = ipio.getGridDefinition();
+        toolContext.putFlowLocal(ToolContext.INPUT_GRID, toolContext.inputGrid);
       }
       if (output) {
-        toolContext.putFlowLocal(ToolContext.OUTPUT_GRID, opio.getGridDefinition());
+        toolContext.outputGrid = opio.getGridDefinition();
+        toolContext.putFlowLocal(ToolContext.OUTPUT_GRID, toolContext.outputGrid);
       }
       // Call the implementing method for parallel initialization
       tool.parallelInit(toolContext);
       // Create the input and output seismic volumes
-      ISeismicVolume inputVolume = null;
-      if (input) {
-        inputVolume = new SeismicVolume(pc, ipio.getGridDefinition());
+      pool = VolumePool.forContext(vpc);
+      inputVolume = null;
+      String storage = toolContext.getParameter(ToolContext.INPUT_STORAGE);
+      if (input && storage != "null" && !ToolContext.HEAP_STORAGE.equals(storage)) {
+        ex = null;
+        try {
+          openTraceVolume(vpc, storage);
+        } catch (SeisException e) {
+          ex = e;
+        }
+        pe.exitOnException(ex, 1);
+      } else if (input) {
+        inputVolume = pool.acquire(ipio.getGridDefinition());
         ipio.setDistributedArray(inputVolume.getDistributedArray());
       }
-      ISeismicVolume outputVolume = inputVolume;
+      if (input && Boolean.parseBoolean(toolContext.getParameter(ToolContext.INPUT_HEADERS))) {
+        ex = null;
+        try {
+          openHeaders();
+        } catch (SeisException e) {
+          ex = e;
+        }
+        pe.exitOnException(ex, 1);
+      }
+      outputVolume = inputVolume;
       if (output) {
-        outputVolume = new SeismicVolume(pc, opio.getGridDefinition());
+        outputVolume = pool.acquire(opio.getGridDefinition());
+        // Tools that work in place write their output from the input buffer
+        if (inputVolume != null && tool instanceof IInPlaceVolumeTool
+            && inputVolume.matches(outputVolume)) {
+          pool.release(outputVolume);
+          outputVolume = inputVolume;
+        }
         opio.setDistributedArray(outputVolume.getDistributedArray());
       }
+      ex = null;
+      try {
+        checkpoint = VolumeCheckpoint.forContext(toolContext);
+      } catch (IOException e) {
+        ex = e;
+      }
+      pe.exitOnException(ex, 1);
+      if (checkpoint != null)
+        setCheckpointRun(checkpoint, toolContext, toolContext.inputGrid, toolClass);
+      if (checkpoint != null && checkpoint.isRestart())
+        restoreCheckpoint();
+      profile.stop(Stage.OPEN);
+      if (volumeCounter != null) {
+        processVolumesIndependently();
+      } else if (Boolean.parseBoolean(toolContext.getParameter(ToolContext.ASYNC_IO))) {
+        processVolumesAsync();
+      } else {
+        processVolumes();
+      }
+      // Call the implementor's parallel finish method to release any local resources
+      profile.start(Stage.FINISH);
+      tool.parallelFinish(toolContext);
+      profile.stop(Stage.FINISH);
+      if (headerFile != null)
+        toolInput().setTraceHeaders(null);
+      pool.release(inputVolume);
+      if (outputVolume != inputVolume)
+        pool.release(outputVolume);
+      // Buffers of a parallel run must not stay pinned after it, uniprocessor
+      // buffers are kept for later runs
+      VolumePool.close(vpc);
+      if (traceFile != null || headerFile != null) {
+        ex = null;
+        try {
+          if (traceFile != null)
+            traceFile.close();
+          if (headerFile != null && headerFile != traceFile)
+            headerFile.close();
+        } catch (SeisException e) {
+          ex = e;
+        }
+        pe.exitOnException(ex, 1);
+      }
+      reportProfile();
+    }
+
+    /**
+     * Open the input trace files and create a volume with the requested
+     * storage to read them into
+     */
+    private void openTraceVolume(IParallelContext vpc, String storage) throws SeisException {
+      if (vpc.size() > 1 || Boolean.parseBoolean(toolContext.getParameter(ToolContext.ASYNC_IO)))
+        throw new SeisException("inputStorage " + storage + " requires volume parallel execution "
+            + "or a single task with synchronous IO");
+      GridDefinition grid = ipio.getGridDefinition();
+      if (ToolContext.OFF_HEAP_STORAGE.equals(storage))
+        traceVolume = new OffHeapSeismicVolume(grid);
+      else if (ToolContext.MAPPED_STORAGE.equals(storage))
+        traceVolume = new MappedSeismicVolume(grid);
+      else if (ToolContext.COMPRESSED_STORAGE.equals(storage))
+        traceVolume = new CompressedSeismicVolume(grid);
+      else
+        throw new SeisException("Unknown inputStorage: " + storage);
+      traceFile = new JavaSeisTraceFile(toolContext.getParameter(ToolContext.INPUT_FILE_SYSTEM),
+          toolContext.getParameter(ToolContext.INPUT_FILE_PATH), "r");
+    }
+
+    /**
+     * Open the input trace headers and attach header columns to the input
+     * volume, so they are read with every volume
+     */
+    private void openHeaders() throws SeisException {
+      if (Boolean.parseBoolean(toolContext.getParameter(ToolContext.ASYNC_IO)))
+        throw new SeisException("inputHeaders requires synchronous IO");
+      headerFile = traceFile;
+      if (headerFile == null)
+        headerFile = new JavaSeisTraceFile(toolContext.getParameter(ToolContext.INPUT_FILE_SYSTEM),
+            toolContext.getParameter(ToolContext.INPUT_FILE_PATH), "r");
+      if (!headerFile.hasHeaders())
+        throw new SeisException("Input dataset has no trace headers");
+      toolInput().setTraceHeaders(headerFile.createHeaders());
+    }
+
+    /**
+     * @return the volume input volumes are read into
+     */
+    private ISeismicVolume toolInput() {
+      return (traceVolume != null ? traceVolume : inputVolume);
+    }
+
+    /**
+     * @return the volume the tool writes output to, which is its input volume
+     *         when there is no output
+     */
+    private ISeismicVolume toolOutput() {
+      return (output ? outputVolume : toolInput());
+    }
+
+    /**
+     * Reduce the stage timings across all tasks, print them from the master
+     * task, and write them to the profileReport file if one was requested
+     */
+    private void reportProfile() {
+      profile.reduce(pc);
+      pc.masterPrint(profile.toString());
+      String reportPath = toolContext.getParameter(ToolContext.PROFILE_REPORT);
+      if (pc.rank() == 0 && reportPath != "null") {
+        try {
+          profile.writeReport(reportPath, pc.size());
+        } catch (IOException e) {
+          pc.masterPrint("Could not write profile report " + reportPath + ": " + e);
+        }
+      }
+    }
+
+    /**
+     * Read the volume at the current input position
+     *
+     * @param volume - volume being read into
+     * @param volumeIndex - index of the volume in the input dataset
+     */
+    private void readVolume(ISeismicVolume volume, int volumeIndex) throws SeisException {
+      profile.start(Stage.READ);
+      if (traceFile != null)
+        traceFile.read(volumeIndex, traceVolume);
+      else
+        ipio.read();
+      if (headerFile != null)
+        headerFile.readHeaders(volumeIndex, volume.getTraceHeaders());
+      profile.stop(Stage.READ);
+      profile.countRead(volume);
+    }
+
+    /** Write a volume to the current output position */
+    private void writeVolume(ISeismicVolume volume) throws SeisException {
+      profile.start(Stage.WRITE);
+      opio.write();
+      profile.stop(Stage.WRITE);
+      profile.countWrite(volume);
+    }
+
+    /**
+     * Move the input and output past the volumes completed before the
+     * checkpoint and restore the tool state
+     */
+    private void restoreCheckpoint() {
+      for (int i = 0; i < checkpoint.getInputVolumes(); i++) {
+        ipio.next();
+      }
+      for (int i = 0; i < checkpoint.getOutputVolumes(); i++) {
+        opio.next();
+      }
+      profile.countSkipped(checkpoint.getInputVolumes());
+      if (tool instanceof ICheckpointTool)
+        ((ICheckpointTool) tool).restoreCheckpoint(toolContext, checkpoint.getToolState());
+      pc.masterPrint("Restarted from " + checkpoint);
+    }
+
+    /**
+     * Record the volumes completed by all tasks. This is a collective call.
+     */
+    private void saveCheckpoint(int inputCount, int outputCount) {
+      Exception ex = null;
+      try {
+        reopenOutput(outputCount);
+      } catch (SeisException e) {
+        ex = e;
+      }
+      pe.exitOnException(ex, 1);
+      // Every task must have closed its part of the output volumes first
+      ReduceScalar.reduceDouble(pc, outputCount, Operation.MIN);
+      if (pc.rank() == 0) {
+        Properties state = new Properties();
+        if (tool instanceof ICheckpointTool)
+          ((ICheckpointTool) tool).saveCheckpoint(toolContext, state);
+        try {
+          checkpoint.save(inputCount, outputCount, state);
+        } catch (IOException e) {
+          ex = e;
+        }
+      }
+      pe.exitOnException(ex, 1);
+    }
+
+    /**
+     * Close the output so the volumes written so far are in its files, then
+     * open it again positioned after them. Checkpoints are only used in
+     * collective mode, where the output uses the task parallel context.
+     *
+     * @param outputCount - number of output volumes written
+     */
+    private void reopenOutput(int outputCount) throws SeisException {
+      if (!output)
+        return;
+      opio.close();
+      opio = new FileSystemIOService(pc, toolContext.getParameter(ToolContext.OUTPUT_FILE_SYSTEM));
+      opio.open(toolContext.getParameter(ToolContext.OUTPUT_FILE_PATH));
+      opio.setDistributedArray(outputVolume.getDistributedArray());
+      for (int i = 0; i < outputCount; i++) {
+        opio.next();
+      }
+    }
+
+    /**
+     * Ask a selective tool whether it wants the volume at an input position
+     */
+    private boolean selectVolume(int[] position) {
+      if (selector == null || selector.selectVolume(toolContext, position))
+        return true;
+      profile.countSkipped(1);
+      return false;
+    }
+
+    private boolean processVolume(ISeismicVolume input, ISeismicVolume output) {
+      if (computePermits != null)
+        computePermits.acquireUninterruptibly();
+      try {
+        profile.start(Stage.PROCESS);
+        boolean hasOutput = tool.processVolume(toolContext, input, output);
+        profile.stop(Stage.PROCESS);
+        return hasOutput;
+      } finally {
+        if (computePermits != null)
+          computePermits.release();
+      }
+    }
+
+    private boolean outputVolume(ISeismicVolume output) {
+      if (computePermits != null)
+        computePermits.acquireUninterruptibly();
+      try {
+        profile.start(Stage.OUTPUT);
+        boolean hasOutput = tool.outputVolume(toolContext, output);
+        profile.stop(Stage.OUTPUT);
+        return hasOutput;
+      } finally {
+        if (computePermits != null)
+          computePermits.release();
+      }
+    }
+
+    /**
+     * Read, process and write one volume at a time
+     */
+    private void processVolumes() {
+      Exception ex = null;
+      // Volumes completed so far, counting those before a restart
+      int inputCount = 0;
+      int outputCount = 0;
+      if (checkpoint != null) {
+        inputCount = checkpoint.getInputVolumes();
+        outputCount = checkpoint.getOutputVolumes();
+      }
+      int lastCheckpoint = inputCount;
       // Loop over input volumes
       if (input) {
         while (ipio.hasNext()) {
-          // Get the next input volume
+          // Get the next input volume, skipping those the tool does not want
           ipio.next();
+          inputCount++;
+          int[] position = ipio.getFilePosition().clone();
+          if (!selectVolume(position))
+            continue;
+          toolContext.putFlowLocal(ToolContext.VOLUME_POSITION, position);
           // TODO: Investigate performance of ParallelException
           try {
-            ipio.read();
+            readVolume(toolInput(), inputCount - 1);
           } catch (SeisException e) {
             ex = e;
           }
           pe.exitOnException(ex, 1);
-          boolean hasOutput = tool.processVolume(toolContext, inputVolume,
-              outputVolume);
+          boolean hasOutput = processVolume(toolInput(), toolOutput());
           if (output && hasOutput) {
             opio.next();
+            outputCount++;
             try {
-              opio.write();
+              writeVolume(outputVolume);
             } catch (SeisException e) {
               ex = e;
             }
             pe.exitOnException(ex, 1);
           }
+          if (checkpoint != null && inputCount - lastCheckpoint >= checkpoint.getInterval()) {
+            saveCheckpoint(inputCount, outputCount);
+            lastCheckpoint = inputCount;
+          }
         }
       }
       if (output) {
         // Process any remaining output
-        while (tool.outputVolume(toolContext, outputVolume)) {
+        while (outputVolume(outputVolume)) {
           if (!opio.hasNext()) {
             ex = new SeisException("Tool is attempting to output volume that is outside data context");
           }
           pe.exitOnException(ex, 1);
           opio.next();
           try {
-            opio.write();
+            writeVolume(outputVolume);
           } catch (SeisException e) {
             ex = e;
           }
           pe.exitOnException(ex, 1);
         }
       }
-      // Call the implementor's parallel finish method to release any local resources
-      tool.parallelFinish(toolContext);
+    }
+
+    /**
+     * Process whole volumes in this task, taking the index of the next
+     * unprocessed volume from the counter shared by all tasks. The counter
+     * indexes the list of selected input volumes, and each output volume is
+     * written to the position of its index in that list, which for tools that
+     * select every volume is the position of its input volume.
+     */
+    private void processVolumesIndependently() {
+      // Volumes are no longer processed in step, so errors are handled per task
+      pe = new ParallelException(toolContext.getParallelContext());
+      Exception ex = null;
+      GridDefinition inputGrid = ipio.getGridDefinition();
+      int inputCount = volumeCount(inputGrid);
+      int[] selected = new int[inputCount];
+      int selectedCount = 0;
+      for (int i = 0; i < inputCount; i++) {
+        if (selector == null || selector.selectVolume(toolContext, volumePosition(inputGrid, i)))
+          selected[selectedCount++] = i;
+      }
+      if (output && selectedCount > volumeCount(opio.getGridDefinition())) {
+        ex = new SeisException("Tool selected " + selectedCount + " input volumes but the output has "
+            + volumeCount(opio.getGridDefinition()) + " volumes");
+      }
+      pe.exitOnException(ex, 1);
+      int inputIndex = -1;
+      int outputIndex = -1;
+      int selectedIndex;
+      while ((selectedIndex = volumeCounter.getAndIncrement()) < selectedCount) {
+        int volumeIndex = selected[selectedIndex];
+        // Skip forward over volumes taken by other tasks or not selected
+        while (inputIndex < volumeIndex) {
+          ipio.next();
+          inputIndex++;
+        }
+        toolContext.putFlowLocal(ToolContext.VOLUME_POSITION, volumePosition(inputGrid, volumeIndex));
+        try {
+          readVolume(toolInput(), volumeIndex);
+        } catch (SeisException e) {
+          ex = e;
+        }
+        pe.exitOnException(ex, 1);
+        boolean hasOutput = processVolume(toolInput(), toolOutput());
+        if (output && hasOutput) {
+          while (outputIndex < selectedIndex) {
+            opio.next();
+            outputIndex++;
+          }
+          try {
+            writeVolume(outputVolume);
+          } catch (SeisException e) {
+            ex = e;
+          }
+          pe.exitOnException(ex, 1);
+        }
+      }
+      if (output && outputVolume(outputVolume)) {
+        ex = new SeisException("Volume parallel execution does not support output volumes "
+            + "beyond the last input volume");
+      }
+      pe.exitOnException(ex, 1);
+      profile.countSkipped(inputCount - selectedCount);
+    }
+
+    /**
+     * Overlap IO with processing. Volume N+1 is read into a second input
+     * buffer and volume N-1 is written from a second output buffer while
+     * volume N is processed. Tools that work in place write from the input
+     * buffers instead, and each input buffer is refilled only after its
+     * previous volume has been written.
+     */
+    private void processVolumesAsync() {
+      VolumeIOPipeline pipeline = new VolumeIOPipeline(ipio, opio);
+      // Tools are only called from this thread, so select volumes up front
+      if (input && selector != null) {
+        GridDefinition inputGrid = ipio.getGridDefinition();
+        boolean[] selected = new boolean[volumeCount(inputGrid)];
+        for (int i = 0; i < selected.length; i++) {
+          selected[i] = selector.selectVolume(toolContext, volumePosition(inputGrid, i));
+        }
+        pipeline.setSelection(selected);
+      }
+      boolean inPlace = output && outputVolume == inputVolume;
+      SeismicVolume[] in = new SeismicVolume[] { inputVolume, null };
+      SeismicVolume[] out = new SeismicVolume[] { outputVolume, null };
+      if (input)
+        in[1] = pool.acquire(ipio.getGridDefinition());
+      if (inPlace)
+        out = in;
+      else if (output)
+        out[1] = pool.acquire(opio.getGridDefinition());
+      // Pending write for each output buffer
+      List<Future<Boolean>> written = Arrays.asList(null, null);
+      int iin = 0;
+      int iout = 0;
+      Exception ex = null;
+      if (input) {
+        Future<int[]> pendingRead = pipeline.readNext(in[iin]);
+        while (true) {
+          int[] position = null;
+          try {
+            position = pipeline.await(pendingRead);
+          } catch (SeisException e) {
+            ex = e;
+          }
+          pe.exitOnException(ex, 1);
+          if (position == null)
+            break;
+          toolContext.putFlowLocal(ToolContext.VOLUME_POSITION, position);
+          ISeismicVolume current = in[iin];
+          profile.countRead(current);
+          if (inPlace)
+            iout = iin;
+          iin = 1 - iin;
+          // A buffer may still be waiting to be written before it is refilled
+          // or processed into
+          if (inPlace)
+            awaitWrite(pipeline, written.get(iin));
+          pendingRead = pipeline.readNext(in[iin]);
+          if (output && !inPlace)
+            awaitWrite(pipeline, written.get(iout));
+          ISeismicVolume target = output ? out[iout] : current;
+          boolean hasOutput = processVolume(current, target);
+          if (output && hasOutput) {
+            profile.countWrite(target);
+            written.set(iout, pipeline.writeNext(target));
+            iout = 1 - iout;
+          }
+        }
+      }
+      if (output) {
+        // Process any remaining output
+        while (true) {
+          awaitWrite(pipeline, written.get(iout));
+          if (!outputVolume(out[iout]))
+            break;
+          profile.countWrite(out[iout]);
+          written.set(iout, pipeline.writeNext(out[iout]));
+          iout = 1 - iout;
+        }
+        for (Future<Boolean> pendingWrite : written) {
+          awaitWrite(pipeline, pendingWrite);
+        }
+      }
+      pipeline.shutdown();
+      pipeline.addTo(profile);
+      pool.release(in[1]);
+      if (!inPlace)
+        pool.release(out[1]);
+      double waitTime = ReduceScalar.reduceDouble(pc, pipeline.waitTime(), Operation.MAX);
+      double overlapTime = ReduceScalar.reduceDouble(pc, pipeline.overlapTime(), Operation.MIN);
+      pc.masterPrint("Asynchronous IO (seconds):\n  Wait for IO (slowest task): " + waitTime
+          + "\n  IO overlapped with processing (least of all tasks): " + overlapTime);
+    }
+
+    private void awaitWrite(VolumeIOPipeline pipeline, Future<Boolean> pendingWrite) {
+      Exception ex = null;
+      try {
+        pipeline.await(pendingWrite);
+      } catch (SeisException e) {
+        ex = e;
+      }
+      pe.exitOnException(ex, 1);
     }
   }
 }
@@ -30,8 +30,82 @@ public class ToolContext {
   public static String INPUT_FILE_PATH = "inputFilePath";
   public static String INPUT_FILE_SYSTEM = "inputFileSystem";
   public static String INPUT_GRID = "inputGrid";
+  /**
+   * Number of parallel tasks, or AUTO_TASK_COUNT to use one task per
+   * available processor up to the amount of work there is to share
+   */
   public static String TASK_COUNT = "taskCount";
+  public static String AUTO_TASK_COUNT = "auto";
+  /** Older name for TASK_COUNT, used when TASK_COUNT is not set */
+  public static String THREAD_COUNT = "threadCount";
   public static String TOOL_CLASS = "toolClass";
+  /**
+   * Set to "true" to read ahead and write behind on background threads while
+   * volumes are processed. Tools must not call collectives from processVolume
+   * or outputVolume when this is enabled, since IO runs concurrently on the
+   * same parallel context.
+   */
+  public static String ASYNC_IO = "asyncIO";
+  /** Selects how tasks share the work, collective by default */
+  public static String EXECUTION_MODE = "executionMode";
+  /**
+   * Execution mode where each task processes whole volumes by itself and
+   * takes the next unprocessed volume from a counter shared by all tasks.
+   * Tools see a UniprocessorContext, and the task's own parallel context is
+   * available as the flow local TASK_PARALLEL_CONTEXT.
+   */
+  public static String VOLUME_PARALLEL = "volumeParallel";
+  public static String VOLUME_COUNTER = "volumeCounter";
+  /**
+   * Number of volume parallel tasks that may be in processVolume or
+   * outputVolume at once, by default the number of available processors.
+   * With a taskCount above this, tasks waiting on IO leave the processors to
+   * tasks that have data, so IO bound tools can run many more tasks than
+   * processors.
+   */
+  public static String COMPUTE_SLOTS = "computeSlots";
+  public static String COMPUTE_PERMITS = "computePermits";
+  public static String TASK_PARALLEL_CONTEXT = "taskParallelContext";
+  /**
+   * Path for the per stage timing report written at the end of a run, as CSV
+   * if the path ends in ".csv" and JSON otherwise
+   */
+  public static String PROFILE_REPORT = "profileReport";
+  /**
+   * Flow local holding the input dataset position of the volume passed to
+   * processVolume, as an int array with one entry per axis
+   */
+  public static String VOLUME_POSITION = "volumePosition";
+  /**
+   * Number of input volumes between checkpoints. When set, a run that stops
+   * early can be rerun with the same parameters to continue from the last
+   * checkpoint.
+   */
+  public static String CHECKPOINT_INTERVAL = "checkpointInterval";
+  /**
+   * Checkpoint file, by default outputFilePath with a ".checkpoint" suffix on
+   * the output file system
+   */
+  public static String CHECKPOINT_PATH = "checkpointPath";
+  /**
+   * How input volumes are held. HEAP_STORAGE, the default, reads volumes
+   * through the input IDistributedIOService into a SeismicVolume. The other
+   * storage types read whole volumes straight from the trace files, so they
+   * need volume parallel execution or a single task with synchronous IO.
+   */
+  public static String INPUT_STORAGE = "inputStorage";
+  public static String HEAP_STORAGE = "heap";
+  /** Input volumes held in direct memory, see OffHeapSeismicVolume */
+  public static String OFF_HEAP_STORAGE = "offHeap";
+  /** Read only input volumes mapped from the trace files, see MappedSeismicVolume */
+  public static String MAPPED_STORAGE = "mapped";
+  /** Input volumes held as 16 bit samples, see CompressedSeismicVolume */
+  public static String COMPRESSED_STORAGE = "int16";
+  /**
+   * "true" to read the numeric trace headers of each input volume into
+   * columns, see ISeismicVolume.getTraceHeaders. Needs synchronous IO.
+   */
+  public static String INPUT_HEADERS = "inputHeaders";
 
   /** Visibility of stored objects */
   public enum Visibility {
@@ -47,8 +121,8 @@ public class ToolContext {
 
   public ParameterService parms;
   public IParallelContext pc;
-  public SharedMap toolGlobal;
-  public SharedMap flowGlobal;
+  public VersionedSharedMap toolGlobal;
+  public VersionedSharedMap flowGlobal;
   public Map<String, Object> toolLocal;
   public Map<String, Object> flowLocal;
   public GridDefinition inputGrid, outputGrid;
@@ -56,8 +130,8 @@ public class ToolContext {
   public ToolContext() {
     parms = new ParameterService((String[]) null);
     pc = new UniprocessorContext();
-    flowGlobal = new SharedMap();
-    toolGlobal = new SharedMap();
+    flowGlobal = new VersionedSharedMap();
+    toolGlobal = new VersionedSharedMap();
     flowLocal = new HashMap<String, Object>();
     toolLocal = new HashMap<String, Object>();
   }
@@ -67,34 +141,51 @@ public class ToolContext {
     parms = parameterService;
   }
 
+  /**
+   * Copy a context. Global objects are not synced here, any pending changes
+   * are published at the next syncGlobalObjects or mergeFlowMaps call.
+   *
+   * @param sourceContext - context to copy
+   */
   public ToolContext(ToolContext sourceContext) {
     parms = sourceContext.parms;
     parms.lock();
     pc = sourceContext.pc;
-    flowGlobal = new SharedMap();
-    flowGlobal.putAll(sourceContext.flowGlobal.getMap());
-    flowGlobal.merge(pc);
+    flowGlobal = new VersionedSharedMap(sourceContext.flowGlobal);
     flowLocal = new HashMap<String, Object>(sourceContext.flowLocal);
-    toolGlobal = new SharedMap();
-    toolGlobal.putAll(sourceContext.toolGlobal.getMap());
-    toolGlobal.merge(pc);
+    toolGlobal = new VersionedSharedMap(sourceContext.toolGlobal);
     toolLocal = new HashMap<String, Object>(sourceContext.toolLocal);
   }
 
+  /**
+   * Create a context whose flow global objects are the entries of a shared
+   * map, so the caller sees objects the tools put there, and whose flow local
+   * objects are held in a caller's map
+   *
+   * @param parameterService - run parameters
+   * @param parallelContext - context of the calling task
+   * @param sharedMap - flow global objects
+   * @param localMap - flow local objects
+   */
   public ToolContext(ParameterService parameterService, IParallelContext parallelContext,
       SharedMap sharedMap, Map<String, Object> localMap) {
     parms = parameterService;
     parms.lock();
     pc = parallelContext;
-    flowGlobal = sharedMap;
+    flowGlobal = new VersionedSharedMap(sharedMap);
     flowLocal = localMap;
-    toolGlobal = new SharedMap();
+    toolGlobal = new VersionedSharedMap();
     toolLocal = new HashMap<String, Object>();
   }
 
+  /**
+   * Set the parallel context. Pending changes to global objects are published
+   * at the next syncGlobalObjects or mergeFlowMaps call.
+   *
+   * @param parallelContext - context of the calling task
+   */
   public void setParallelContext(IParallelContext parallelContext) {
     pc = parallelContext;
-    syncGlobalObjects();
   }
 
   public IParallelContext getParallelContext() {
@@ -154,27 +245,33 @@ public class ToolContext {
     }
   }
 
+  /**
+   * Copy the flow objects of another context and sync the flow globals. This
+   * is a collective call.
+   *
+   * @param sourceContext - context to copy flow objects from
+   */
   public void mergeFlowMaps(ToolContext sourceContext) {
-    flowGlobal.putAll(sourceContext.flowGlobal.getMap());
-    flowGlobal.merge(pc);
+    flowGlobal.putAll(sourceContext.flowGlobal);
+    flowGlobal.sync(pc);
     flowLocal.putAll(sourceContext.flowLocal);
   }
 
+  /**
+   * Publish changes to flow and tool globals to all tasks. This is a
+   * collective call, but only changed entries are exchanged.
+   */
   public void syncGlobalObjects() {
-    flowGlobal.merge(pc);
-    toolGlobal.merge(pc);
+    flowGlobal.sync(pc);
+    toolGlobal.sync(pc);
   }
 
   public static ToolContext copy(ToolContext sourceContext) {
     ToolContext toolContext = new ToolContext(sourceContext.parms);
     sourceContext.parms.lock();
-    toolContext.flowGlobal = new SharedMap();
-    toolContext.flowGlobal.putAll(sourceContext.flowGlobal.getMap());
-    toolContext.flowGlobal.merge(toolContext.pc);
+    toolContext.flowGlobal = new VersionedSharedMap(sourceContext.flowGlobal);
     toolContext.flowLocal = new HashMap<String, Object>(sourceContext.flowLocal);
-    toolContext.toolGlobal = new SharedMap();
-    toolContext.toolGlobal.putAll(sourceContext.toolGlobal.getMap());
-    toolContext.toolGlobal.merge(toolContext.pc);
+    toolContext.toolGlobal = new VersionedSharedMap(sourceContext.toolGlobal);
     toolContext.toolLocal = new HashMap<String, Object>(sourceContext.toolLocal);
     return toolContext;
   }
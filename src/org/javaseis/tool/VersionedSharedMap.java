@@ -0,0 +1,182 @@
+package org.javaseis.tool;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import beta.javaseis.parallel.ICollective.Operation;
+import beta.javaseis.parallel.IParallelContext;
+import beta.javaseis.parallel.ReduceScalar;
+import beta.javaseis.parallel.SharedMap;
+
+/**
+ * Map of objects shared by all tasks of a parallel context. Changes are kept
+ * locally and marked dirty until the next call to sync, which merges only the
+ * dirty entries across tasks. Reads never block and never communicate.
+ * <p>
+ * Every change advances the map version, so callers can cheaply tell whether
+ * anything has changed since they last looked.
+ * <p>
+ * A map created over a SharedMap reads and writes that map's entries, so the
+ * owner of the SharedMap sees every change.
+ */
+public class VersionedSharedMap {
+
+  private final ConcurrentHashMap<String, Object> entries = new ConcurrentHashMap<String, Object>();
+
+  /** Keys changed locally since the last sync */
+  private final Set<String> dirty = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  private final AtomicLong version = new AtomicLong();
+
+  /** Map that holds the entries instead, or null */
+  private final SharedMap backing;
+
+  public VersionedSharedMap() {
+    backing = null;
+  }
+
+  /**
+   * Create a map over the entries of a SharedMap. Changes made here are
+   * written to it. Entries put in the SharedMap directly are read here but
+   * are not dirty, so other tasks see them only after the SharedMap itself is
+   * merged or the key is put here.
+   *
+   * @param sharedMap - map that holds the entries
+   */
+  public VersionedSharedMap(SharedMap sharedMap) {
+    backing = sharedMap;
+    for (Map.Entry<String, Object> entry : sharedMap.getMap().entrySet()) {
+      if (entry.getValue() != null)
+        entries.put(entry.getKey(), entry.getValue());
+    }
+  }
+
+  /**
+   * Create a copy of a map. The source is assumed to be the same in all tasks,
+   * as when tasks copy a serial context, so only its dirty entries are dirty
+   * in the copy.
+   *
+   * @param source - map to copy
+   */
+  public VersionedSharedMap(VersionedSharedMap source) {
+    backing = null;
+    entries.putAll(source.getMap());
+    dirty.addAll(source.dirty);
+    version.set(source.version.get());
+  }
+
+  /**
+   * @param key - entry name
+   * @return value for the key, or null if there is none
+   */
+  public Object get(String key) {
+    return (backing != null ? backing.get(key) : entries.get(key));
+  }
+
+  /**
+   * Set a value locally. Other tasks see it after the next sync.
+   *
+   * @param key - entry name
+   * @param value - new value, or null to remove the entry
+   */
+  public void put(String key, Object value) {
+    if (store(key, value) != value) {
+      dirty.add(key);
+      version.incrementAndGet();
+    }
+  }
+
+  /** @return previous value of the key */
+  private Object store(String key, Object value) {
+    Object previous = get(key);
+    if (value == null)
+      entries.remove(key);
+    else
+      entries.put(key, value);
+    if (backing != null)
+      backing.put(key, value);
+    return previous;
+  }
+
+  /**
+   * Copy the entries of another map, marking only entries whose values
+   * differ as dirty
+   *
+   * @param source - map to copy from
+   */
+  public void putAll(VersionedSharedMap source) {
+    putAll(source.getMap());
+  }
+
+  /**
+   * Copy entries from a map, marking only entries whose values differ as
+   * dirty
+   *
+   * @param map - entries to copy
+   */
+  public void putAll(Map<String, Object> map) {
+    for (Map.Entry<String, Object> entry : map.entrySet()) {
+      put(entry.getKey(), entry.getValue());
+    }
+  }
+
+  /**
+   * @return snapshot of the current entries
+   */
+  public Map<String, Object> getMap() {
+    if (backing == null)
+      return new HashMap<String, Object>(entries);
+    Map<String, Object> map = new HashMap<String, Object>(backing.getMap());
+    map.values().removeAll(Collections.singleton(null));
+    return map;
+  }
+
+  /**
+   * @return number of changes made to this map, including changes received
+   *         from other tasks
+   */
+  public long getVersion() {
+    return version.get();
+  }
+
+  /**
+   * @return true if there are local changes that have not been synced
+   */
+  public boolean isDirty() {
+    return !dirty.isEmpty();
+  }
+
+  /**
+   * Merge local changes across all tasks. This is a collective call, but when
+   * no task has changes it costs a single scalar reduction, and otherwise only
+   * the changed entries are exchanged. Tasks of a single task context never
+   * communicate.
+   *
+   * @param pc - parallel context of the tasks sharing the map
+   */
+  public void sync(IParallelContext pc) {
+    List<String> keys = new ArrayList<String>(dirty);
+    if (pc.size() > 1) {
+      double changes = ReduceScalar.reduceDouble(pc, keys.size(), Operation.SUM);
+      if (changes > 0) {
+        SharedMap batch = new SharedMap();
+        for (String key : keys) {
+          batch.put(key, get(key));
+        }
+        batch.merge(pc);
+        for (Map.Entry<String, Object> entry : batch.getMap().entrySet()) {
+          Object value = entry.getValue();
+          if (store(entry.getKey(), value) != value)
+            version.incrementAndGet();
+        }
+      }
+    }
+    dirty.removeAll(keys);
+  }
+}
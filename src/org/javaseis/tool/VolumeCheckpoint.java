@@ -0,0 +1,217 @@
+package org.javaseis.tool;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+import org.javaseis.grid.GridDefinition;
+
+/**
+ * Progress of a StandAloneVolumeTool run, saved every checkpointInterval input
+ * volumes so that a failed run can be restarted where it stopped. A checkpoint
+ * records how many input and output volumes were completed and any tool
+ * state, in a properties file that is replaced atomically. The file is
+ * removed when the run completes.
+ * <p>
+ * The checkpoint also records the input dataset, its grid and the tool
+ * classes of the run, and a run that differs in any of them is not allowed
+ * to continue from it.
+ */
+public class VolumeCheckpoint {
+
+  static final String INPUT_VOLUMES = "inputVolumes";
+  static final String OUTPUT_VOLUMES = "outputVolumes";
+  static final String TOOL_PREFIX = "tool.";
+  static final String INPUT_PATH = "inputPath";
+  static final String INPUT_GRID = "inputGrid";
+  static final String TOOL_CLASSES = "toolClasses";
+  /** Names of the properties that identify a run */
+  static final String[] RUN_PROPERTIES = new String[] { INPUT_PATH, INPUT_GRID, TOOL_CLASSES };
+
+  private File file;
+  private int interval;
+  private boolean restart;
+  private int inputVolumes, outputVolumes;
+  private Properties toolState = new Properties();
+  /** Run identity, as saved or as set by setRun */
+  private Properties run = new Properties();
+
+  private VolumeCheckpoint(File checkpointFile, int checkpointInterval) {
+    file = checkpointFile;
+    interval = checkpointInterval;
+  }
+
+  /**
+   * Return the checkpoint for a run, loaded from its file if a previous run
+   * left one
+   *
+   * @param toolContext - context holding the run parameters
+   * @return checkpoint, or null if checkpointInterval is not set
+   * @throws IOException if an existing checkpoint cannot be read
+   */
+  public static VolumeCheckpoint forContext(ToolContext toolContext) throws IOException {
+    String intervalParameter = toolContext.getParameter(ToolContext.CHECKPOINT_INTERVAL);
+    if (intervalParameter == "null")
+      return null;
+    int interval = Integer.parseInt(intervalParameter);
+    if (interval < 1)
+      return null;
+    String path = toolContext.getParameter(ToolContext.CHECKPOINT_PATH);
+    if (path == "null") {
+      String outputFileSystem = toolContext.getParameter(ToolContext.OUTPUT_FILE_SYSTEM);
+      if (outputFileSystem == "null")
+        throw new IllegalArgumentException("Checkpoints require a checkpointPath when there is no output");
+      path = new File(outputFileSystem, toolContext.getParameter(ToolContext.OUTPUT_FILE_PATH)
+          + ".checkpoint").getPath();
+    }
+    VolumeCheckpoint checkpoint = new VolumeCheckpoint(new File(path), interval);
+    if (checkpoint.file.exists())
+      checkpoint.load();
+    return checkpoint;
+  }
+
+  private void load() throws IOException {
+    Properties properties = new Properties();
+    FileInputStream in = new FileInputStream(file);
+    try {
+      properties.load(in);
+    } finally {
+      in.close();
+    }
+    restart = true;
+    inputVolumes = Integer.parseInt(properties.getProperty(INPUT_VOLUMES, "0"));
+    outputVolumes = Integer.parseInt(properties.getProperty(OUTPUT_VOLUMES, "0"));
+    for (String name : RUN_PROPERTIES) {
+      if (properties.getProperty(name) != null)
+        run.setProperty(name, properties.getProperty(name));
+    }
+    toolState = new Properties();
+    for (String name : properties.stringPropertyNames()) {
+      if (name.startsWith(TOOL_PREFIX))
+        toolState.setProperty(name.substring(TOOL_PREFIX.length()), properties.getProperty(name));
+    }
+  }
+
+  /**
+   * Set the identity of the run, which is saved with each checkpoint. For a
+   * restart it must match the identity saved by the run that stopped.
+   *
+   * @param inputPath - input dataset, or null if there is none
+   * @param inputGrid - GridDefinition of the input, or null if there is none
+   * @param toolClasses - classes of the tools in the run, in flow order
+   * @throws IllegalStateException if the checkpoint was saved by a different
+   *           run
+   */
+  public void setRun(String inputPath, GridDefinition inputGrid, Class<?>... toolClasses) {
+    Properties current = new Properties();
+    current.setProperty(INPUT_PATH, String.valueOf(inputPath));
+    current.setProperty(INPUT_GRID, describe(inputGrid));
+    StringBuilder tools = new StringBuilder();
+    for (Class<?> toolClass : toolClasses) {
+      tools.append(tools.length() > 0 ? "," : "").append(toolClass.getName());
+    }
+    current.setProperty(TOOL_CLASSES, tools.toString());
+    if (restart) {
+      for (String name : RUN_PROPERTIES) {
+        if (!current.getProperty(name).equals(run.getProperty(name)))
+          throw new IllegalStateException("Checkpoint " + file + " was saved by a different run, "
+              + name + " was " + run.getProperty(name) + " and is now " + current.getProperty(name)
+              + "\nDelete the checkpoint to start the run from the beginning");
+      }
+    }
+    run = current;
+  }
+
+  /**
+   * @return axis labels, lengths and physical sampling of a grid
+   */
+  static String describe(GridDefinition grid) {
+    if (grid == null)
+      return "null";
+    String[] labels = grid.getAxisLabelsStrings();
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < grid.getNumDimensions(); i++) {
+      sb.append(i > 0 ? ";" : "").append(labels[i]).append(' ').append(grid.getAxisLength(i))
+          .append(' ').append(grid.getAxis(i).getPhysicalOrigin()).append(' ')
+          .append(grid.getAxis(i).getPhysicalDelta());
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Record completed volumes. The file is written and flushed to disk under a
+   * temporary name and then renamed over the previous checkpoint, so a crash
+   * leaves either the old or the new checkpoint.
+   *
+   * @param inputCount - number of input volumes completed
+   * @param outputCount - number of output volumes written
+   * @param state - tool state, may be empty
+   * @throws IOException if the checkpoint cannot be written
+   */
+  public void save(int inputCount, int outputCount, Properties state) throws IOException {
+    Properties properties = new Properties();
+    properties.setProperty(INPUT_VOLUMES, Integer.toString(inputCount));
+    properties.setProperty(OUTPUT_VOLUMES, Integer.toString(outputCount));
+    for (String name : run.stringPropertyNames()) {
+      properties.setProperty(name, run.getProperty(name));
+    }
+    for (String name : state.stringPropertyNames()) {
+      properties.setProperty(TOOL_PREFIX + name, state.getProperty(name));
+    }
+    File temp = new File(file.getPath() + ".tmp");
+    FileOutputStream out = new FileOutputStream(temp);
+    try {
+      properties.store(out, "StandAloneVolumeTool checkpoint");
+      out.getFD().sync();
+    } finally {
+      out.close();
+    }
+    Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    inputVolumes = inputCount;
+    outputVolumes = outputCount;
+    toolState = state;
+  }
+
+  /**
+   * Remove the checkpoint file once the run has completed
+   */
+  public void delete() {
+    file.delete();
+  }
+
+  /** @return true if this run continues from a saved checkpoint */
+  public boolean isRestart() {
+    return restart;
+  }
+
+  /** @return number of input volumes between checkpoints */
+  public int getInterval() {
+    return interval;
+  }
+
+  /** @return number of input volumes completed at the checkpoint */
+  public int getInputVolumes() {
+    return inputVolumes;
+  }
+
+  /** @return number of output volumes written at the checkpoint */
+  public int getOutputVolumes() {
+    return outputVolumes;
+  }
+
+  /** @return tool state saved with the checkpoint */
+  public Properties getToolState() {
+    return toolState;
+  }
+
+  @Override
+  public String toString() {
+    return "VolumeCheckpoint " + file + ": " + inputVolumes + " input volumes, " + outputVolumes
+        + " output volumes";
+  }
+}
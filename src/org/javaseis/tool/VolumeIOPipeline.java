@@ -0,0 +1,191 @@
+package org.javaseis.tool;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.javaseis.util.SeisException;
+import org.javaseis.volume.ISeismicVolume;
+
+import beta.javaseis.distributed.IDistributedIOService;
+
+/**
+ * Background read-ahead and write-behind for a single volume processing task.
+ * Reads and writes run on one IO thread, in submission order, so the next
+ * input volume can be read and the previous output volume written while the
+ * current volume is processed.
+ * <p>
+ * The IO services of a collective run share the parallel context, and their
+ * reads and writes are collective calls. A single IO thread keeps them in the
+ * order the processing thread submits them, which is the same on every task.
+ * <p>
+ * After a pipeline is started only its thread may touch the input and output
+ * IO services.
+ */
+class VolumeIOPipeline {
+
+  private IDistributedIOService ipio, opio;
+
+  private ExecutorService io;
+
+  /** Busy time of the IO thread reading and writing, and time spent waiting on it */
+  private long readNanos, writeNanos, waitNanos;
+
+  private int readCount, writeCount, skipCount;
+
+  /** Selected input volumes by index, or null to read every volume */
+  private boolean[] selected;
+
+  /** Index of the current input volume */
+  private int inputIndex = -1;
+
+  VolumeIOPipeline(IDistributedIOService inputService, IDistributedIOService outputService) {
+    ipio = inputService;
+    opio = outputService;
+    io = Executors.newSingleThreadExecutor();
+  }
+
+  /**
+   * Only read selected input volumes. The selection is made by the
+   * processing thread before IO starts, so tools are never called from the IO
+   * thread. Must be called before the first readNext.
+   *
+   * @param volumes - true for each input volume index that is read
+   */
+  void setSelection(boolean[] volumes) {
+    selected = volumes;
+  }
+
+  /**
+   * Start reading the next selected input volume into a buffer
+   *
+   * @param volume - buffer to receive the volume
+   * @return future that yields the input position of the volume, or null if
+   *         there are no more input volumes
+   */
+  Future<int[]> readNext(final ISeismicVolume volume) {
+    return io.submit(new Callable<int[]>() {
+      @Override
+      public int[] call() throws SeisException {
+        long start = System.nanoTime();
+        try {
+          while (ipio.hasNext()) {
+            ipio.next();
+            inputIndex++;
+            if (selected != null && !selected[inputIndex]) {
+              skipCount++;
+              continue;
+            }
+            int[] position = ipio.getFilePosition().clone();
+            ipio.setDistributedArray(volume.getDistributedArray());
+            ipio.read();
+            readCount++;
+            return position;
+          }
+          return null;
+        } finally {
+          readNanos += System.nanoTime() - start;
+        }
+      }
+    });
+  }
+
+  /**
+   * Start writing a volume to the next output position
+   *
+   * @param volume - buffer holding the volume, which must not be modified
+   *          until the returned future completes
+   * @return future that completes when the volume has been written
+   */
+  Future<Boolean> writeNext(final ISeismicVolume volume) {
+    return io.submit(new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws SeisException {
+        long start = System.nanoTime();
+        try {
+          if (!opio.hasNext())
+            throw new SeisException("Tool is attempting to output volume that is outside data context");
+          opio.next();
+          opio.setDistributedArray(volume.getDistributedArray());
+          opio.write();
+          writeCount++;
+          return Boolean.TRUE;
+        } finally {
+          writeNanos += System.nanoTime() - start;
+        }
+      }
+    });
+  }
+
+  /**
+   * Wait for a read or write to complete
+   *
+   * @param pending - future from readNext or writeNext, may be null
+   * @return result of the read or write, null if pending was null
+   * @throws SeisException if the read or write failed
+   */
+  <T> T await(Future<T> pending) throws SeisException {
+    if (pending == null)
+      return null;
+    long start = System.nanoTime();
+    try {
+      return pending.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof SeisException)
+        throw (SeisException) e.getCause();
+      throw ioException("Asynchronous volume IO failed", e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw ioException("Interrupted while waiting for volume IO", e);
+    } finally {
+      waitNanos += System.nanoTime() - start;
+    }
+  }
+
+  private static SeisException ioException(String message, Throwable cause) {
+    SeisException ex = new SeisException(message);
+    ex.initCause(cause);
+    return ex;
+  }
+
+  /**
+   * Stop the IO thread. Pending reads and writes are completed first.
+   */
+  void shutdown() {
+    io.shutdown();
+  }
+
+  /**
+   * Add the busy time of the IO thread to the READ and WRITE stages of a
+   * profile. Call only after all reads and writes have been awaited.
+   *
+   * @param profile - profile for the task that owns this pipeline
+   */
+  void addTo(VolumeToolProfile profile) {
+    profile.add(VolumeToolProfile.Stage.READ, readNanos, readCount);
+    profile.add(VolumeToolProfile.Stage.WRITE, writeNanos, writeCount);
+    profile.countSkipped(skipCount);
+  }
+
+  /** @return seconds the IO thread spent reading */
+  double readTime() {
+    return 1e-9 * readNanos;
+  }
+
+  /** @return seconds the IO thread spent writing */
+  double writeTime() {
+    return 1e-9 * writeNanos;
+  }
+
+  /** @return seconds the processing thread spent waiting for IO */
+  double waitTime() {
+    return 1e-9 * waitNanos;
+  }
+
+  /** @return seconds of IO that were hidden behind processing */
+  double overlapTime() {
+    return Math.max(0, readTime() + writeTime() - waitTime());
+  }
+}
@@ -0,0 +1,141 @@
+package org.javaseis.tool;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.javaseis.grid.GridDefinition;
+import org.javaseis.volume.SeismicVolume;
+
+import beta.javaseis.parallel.IParallelContext;
+import beta.javaseis.parallel.UniprocessorContext;
+
+/**
+ * Pool of SeismicVolume buffers for a parallel task, keyed by allocated shape
+ * length. Released volumes are reshaped and handed out again to later
+ * requests that fit, so tools, volumes and flows in a task share buffers
+ * instead of allocating a new DistributedArray each time.
+ * <p>
+ * A DistributedArray is tied to the parallel context it was created with, so
+ * each context of a parallel run has its own pool, and tool handlers close it
+ * when their task finishes. Buffers of a parallel run are therefore only
+ * reused within that run. Uniprocessor contexts never communicate, so they
+ * all share one pool that stays open, and single task and volume parallel
+ * runs reuse its buffers across exec calls.
+ */
+public class VolumePool {
+
+  /**
+   * Pools by context. Pooled volumes refer to their context, so weak keys
+   * would never be cleared, and pools are removed by close instead.
+   */
+  private static final Map<IParallelContext, VolumePool> pools = new IdentityHashMap<IParallelContext, VolumePool>();
+
+  /** Pool shared by all uniprocessor contexts */
+  private static final VolumePool uniprocessorPool = new VolumePool(new UniprocessorContext());
+
+  private IParallelContext pc;
+
+  /** Free volumes by allocated length */
+  private TreeMap<Long, Deque<SeismicVolume>> free = new TreeMap<Long, Deque<SeismicVolume>>();
+
+  /** All free volumes, to find volumes released twice */
+  private Set<SeismicVolume> freeSet = Collections.newSetFromMap(new IdentityHashMap<SeismicVolume, Boolean>());
+
+  private VolumePool(IParallelContext parallelContext) {
+    pc = parallelContext;
+  }
+
+  /**
+   * Return the pool for a parallel context
+   *
+   * @param pc - parallel context of the calling task
+   * @return pool shared by all users of the context
+   */
+  public static synchronized VolumePool forContext(IParallelContext pc) {
+    if (pc instanceof UniprocessorContext)
+      return uniprocessorPool;
+    VolumePool pool = pools.get(pc);
+    if (pool == null) {
+      pool = new VolumePool(pc);
+      pools.put(pc, pool);
+    }
+    return pool;
+  }
+
+  /**
+   * Drop the pool of a parallel context and its free volumes, so their memory
+   * can be reclaimed. Volumes still in use are not affected, and a later
+   * forContext call starts a new pool. The uniprocessor pool is kept, call
+   * clear on it to free its buffers.
+   *
+   * @param pc - parallel context of the calling task
+   */
+  public static synchronized void close(IParallelContext pc) {
+    VolumePool pool = pools.remove(pc);
+    if (pool != null)
+      pool.clear();
+  }
+
+  /**
+   * Get a volume for a grid, reusing the smallest free buffer that is large
+   * enough or allocating a new one
+   *
+   * @param grid - GridDefinition for the volumes the buffer will hold
+   * @return volume shaped for the grid
+   */
+  public SeismicVolume acquire(GridDefinition grid) {
+    return acquire(grid, 0);
+  }
+
+  /**
+   * Get a volume for a grid that can later be reshaped to hold at least a
+   * given length
+   *
+   * @param grid - GridDefinition for the volumes the buffer will hold
+   * @param minLength - minimum allocated length
+   * @return volume shaped for the grid
+   */
+  public synchronized SeismicVolume acquire(GridDefinition grid, long minLength) {
+    long length = Math.max(minLength, VolumeToolRunner.getShapeLength(pc, grid.getAxisLengths()));
+    Map.Entry<Long, Deque<SeismicVolume>> entry = free.ceilingEntry(length);
+    if (entry == null)
+      return new SeismicVolume(pc, grid, length);
+    SeismicVolume volume = entry.getValue().pop();
+    freeSet.remove(volume);
+    if (entry.getValue().isEmpty())
+      free.remove(entry.getKey());
+    volume.reshape(grid);
+    return volume;
+  }
+
+  /**
+   * Return a volume to the pool. The caller must not use it afterwards.
+   *
+   * @param volume - volume obtained from acquire, may be null
+   */
+  public synchronized void release(SeismicVolume volume) {
+    if (volume == null || freeSet.contains(volume))
+      return;
+    Long length = Long.valueOf(volume.getAllocatedLength());
+    Deque<SeismicVolume> volumes = free.get(length);
+    if (volumes == null) {
+      volumes = new ArrayDeque<SeismicVolume>();
+      free.put(length, volumes);
+    }
+    volumes.push(volume);
+    freeSet.add(volume);
+  }
+
+  /**
+   * Drop all free volumes so their memory can be reclaimed
+   */
+  public synchronized void clear() {
+    free.clear();
+    freeSet.clear();
+  }
+}
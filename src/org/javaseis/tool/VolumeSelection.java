@@ -0,0 +1,71 @@
+package org.javaseis.tool;
+
+import java.util.Arrays;
+
+import org.javaseis.grid.GridDefinition;
+
+/**
+ * Selection of volumes by index range and stride on the outer axes of a
+ * dataset, for use by ISelectiveVolumeTool implementations. All volumes are
+ * selected until ranges are set.
+ */
+public class VolumeSelection {
+
+  private int[] start, end, stride;
+
+  /**
+   * Create a selection of all volumes in a dataset
+   *
+   * @param grid - GridDefinition of the dataset
+   */
+  public VolumeSelection(GridDefinition grid) {
+    long[] lengths = grid.getAxisLengths();
+    start = new int[lengths.length];
+    end = new int[lengths.length];
+    stride = new int[lengths.length];
+    for (int i = 0; i < lengths.length; i++) {
+      end[i] = (int) lengths[i] - 1;
+      stride[i] = 1;
+    }
+  }
+
+  /**
+   * Restrict the selection on one outer axis
+   *
+   * @param axis - axis index, 3 or greater
+   * @param first - first selected index on the axis
+   * @param last - last index on the axis that may be selected
+   * @param increment - index increment between selected volumes
+   * @return this selection
+   */
+  public VolumeSelection setRange(int axis, int first, int last, int increment) {
+    if (axis < 3 || axis >= start.length)
+      throw new IllegalArgumentException("Volume selection axis must be between 3 and "
+          + (start.length - 1) + ": " + axis);
+    if (increment < 1)
+      throw new IllegalArgumentException("Volume selection stride must be positive: " + increment);
+    start[axis] = first;
+    end[axis] = last;
+    stride[axis] = increment;
+    return this;
+  }
+
+  /**
+   * @param position - volume position in the dataset
+   * @return true if the position is inside the selected ranges
+   */
+  public boolean contains(int[] position) {
+    for (int i = 3; i < start.length; i++) {
+      int index = position[i];
+      if (index < start[i] || index > end[i] || (index - start[i]) % stride[i] != 0)
+        return false;
+    }
+    return true;
+  }
+
+  @Override
+  public String toString() {
+    return "VolumeSelection start " + Arrays.toString(start) + " end " + Arrays.toString(end)
+        + " stride " + Arrays.toString(stride);
+  }
+}
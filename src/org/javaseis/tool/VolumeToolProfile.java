@@ -0,0 +1,275 @@
+package org.javaseis.tool;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Locale;
+
+import org.javaseis.array.ElementType;
+import org.javaseis.volume.CompressedSeismicVolume;
+import org.javaseis.volume.ISeismicVolume;
+
+import beta.javaseis.parallel.IParallelContext;
+import beta.javaseis.parallel.SharedMap;
+
+/**
+ * Per task timing and volume counts for the stages of a volume tool run. The
+ * tool handlers time each stage, reduce the results across the parallel
+ * context, and write them as a JSON or CSV report.
+ */
+public class VolumeToolProfile {
+
+  /** Stages of a volume tool run */
+  public enum Stage {
+    /** Opening the input and output datasets and parallel initialization */
+    OPEN,
+    /** Reading input volumes */
+    READ,
+    /** Tool processVolume calls */
+    PROCESS,
+    /** Tool outputVolume calls */
+    OUTPUT,
+    /** Writing output volumes */
+    WRITE,
+    /** Tool parallelFinish call */
+    FINISH,
+  }
+
+  /** Names of the counters, in the order they appear in the report */
+  static final String[] COUNTERS = new String[] { "volumesRead", "bytesRead", "volumesSkipped",
+      "volumesWritten", "bytesWritten" };
+
+  private long[] stageNanos = new long[Stage.values().length];
+  private long[] stageCalls = new long[Stage.values().length];
+  private long[] stageStart = new long[Stage.values().length];
+  private long volumesRead, bytesRead, volumesSkipped, volumesWritten, bytesWritten;
+
+  /** Reduced statistics, one row per stage time then one per counter */
+  private double[][] summary;
+
+  /**
+   * Start timing a stage
+   *
+   * @param stage - stage to time
+   */
+  public void start(Stage stage) {
+    stageStart[stage.ordinal()] = System.nanoTime();
+  }
+
+  /**
+   * Stop timing a stage and add the elapsed time to its total
+   *
+   * @param stage - stage started with {@link #start(Stage)}
+   */
+  public void stop(Stage stage) {
+    add(stage, System.nanoTime() - stageStart[stage.ordinal()], 1);
+  }
+
+  /**
+   * Add time measured elsewhere, for example on an IO thread, to a stage
+   *
+   * @param stage - stage to add to
+   * @param nanos - elapsed time in nanoseconds
+   * @param calls - number of calls covered by the elapsed time
+   */
+  public void add(Stage stage, long nanos, long calls) {
+    stageNanos[stage.ordinal()] += nanos;
+    stageCalls[stage.ordinal()] += calls;
+  }
+
+  /**
+   * Count a volume read by this task
+   *
+   * @param volume - volume that was read
+   */
+  public void countRead(ISeismicVolume volume) {
+    volumesRead++;
+    bytesRead += localBytes(volume);
+  }
+
+  /**
+   * Count input volumes that were passed over without being read
+   *
+   * @param count - number of volumes skipped
+   */
+  public void countSkipped(long count) {
+    volumesSkipped += count;
+  }
+
+  /**
+   * Count a volume written by this task
+   *
+   * @param volume - volume that was written
+   */
+  public void countWrite(ISeismicVolume volume) {
+    volumesWritten++;
+    bytesWritten += localBytes(volume);
+  }
+
+  /**
+   * @return number of bytes of the volume held by this task
+   */
+  static long localBytes(ISeismicVolume volume) {
+    long length = elementBytes(volume) * volume.getElementCount();
+    for (int n : volume.getLocalLengths()) {
+      length *= n;
+    }
+    return length;
+  }
+
+  /**
+   * @return number of bytes used to store one value of a volume
+   */
+  static int elementBytes(ISeismicVolume volume) {
+    // Compressed volumes present float samples but store 16 bit codes
+    if (volume instanceof CompressedSeismicVolume)
+      return Short.SIZE / 8;
+    ElementType type = volume.getElementType();
+    if (type == ElementType.BYTE)
+      return 1;
+    if (type == ElementType.SHORT)
+      return Short.SIZE / 8;
+    if (type == ElementType.LONG || type == ElementType.DOUBLE)
+      return 8;
+    return 4;
+  }
+
+  /**
+   * @param stage - stage of the run
+   * @return seconds this task spent in the stage
+   */
+  public double getTime(Stage stage) {
+    return 1e-9 * stageNanos[stage.ordinal()];
+  }
+
+  /**
+   * @param stage - stage of the run
+   * @return number of times this task entered the stage
+   */
+  public long getCalls(Stage stage) {
+    return stageCalls[stage.ordinal()];
+  }
+
+  private double[] localValues() {
+    Stage[] stages = Stage.values();
+    double[] values = new double[stages.length + COUNTERS.length];
+    for (int i = 0; i < stages.length; i++) {
+      values[i] = getTime(stages[i]);
+    }
+    values[stages.length] = volumesRead;
+    values[stages.length + 1] = bytesRead;
+    values[stages.length + 2] = volumesSkipped;
+    values[stages.length + 3] = volumesWritten;
+    values[stages.length + 4] = bytesWritten;
+    return values;
+  }
+
+  /**
+   * Reduce the profile across all tasks to the minimum, mean and maximum of
+   * each value and the rank of the task with the maximum. This is a
+   * collective call that exchanges all values of every task in a single
+   * merge.
+   *
+   * @param pc - parallel context of the tasks
+   */
+  public void reduce(IParallelContext pc) {
+    double[][] values = new double[pc.size()][];
+    values[pc.rank()] = localValues();
+    if (pc.size() > 1) {
+      SharedMap parts = new SharedMap();
+      parts.put("profile" + pc.rank(), values[pc.rank()]);
+      parts.merge(pc);
+      for (int rank = 0; rank < pc.size(); rank++) {
+        values[rank] = (double[]) parts.get("profile" + rank);
+      }
+    }
+    summary = summarize(values);
+  }
+
+  /**
+   * @param values - values of each task, indexed by rank
+   * @return minimum, mean, maximum and the lowest rank with the maximum of
+   *         each value
+   */
+  static double[][] summarize(double[][] values) {
+    int count = values[0].length;
+    double[][] result = new double[count][];
+    for (int i = 0; i < count; i++) {
+      double min = values[0][i], max = values[0][i], sum = 0;
+      int maxRank = 0;
+      for (int rank = 0; rank < values.length; rank++) {
+        double value = values[rank][i];
+        min = Math.min(min, value);
+        if (value > max) {
+          max = value;
+          maxRank = rank;
+        }
+        sum += value;
+      }
+      result[i] = new double[] { min, sum / values.length, max, maxRank };
+    }
+    return result;
+  }
+
+  private String[] rowNames() {
+    Stage[] stages = Stage.values();
+    String[] names = new String[stages.length + COUNTERS.length];
+    for (int i = 0; i < stages.length; i++) {
+      names[i] = stages[i].name().toLowerCase(Locale.US) + "Seconds";
+    }
+    System.arraycopy(COUNTERS, 0, names, stages.length, COUNTERS.length);
+    return names;
+  }
+
+  /**
+   * @return table of reduced values, one line per stage or counter
+   */
+  @Override
+  public String toString() {
+    if (summary == null)
+      return "VolumeToolProfile: not reduced";
+    StringBuilder sb = new StringBuilder("Volume tool profile (min / mean / max, task with max):");
+    String[] names = rowNames();
+    for (int i = 0; i < names.length; i++) {
+      sb.append(String.format(Locale.US, "%n  %-16s %14.6g %14.6g %14.6g   %d", names[i],
+          summary[i][0], summary[i][1], summary[i][2], (int) summary[i][3]));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Write the reduced profile to a file. Files ending in ".csv" are written
+   * as CSV, anything else as JSON.
+   *
+   * @param path - output file path
+   * @param taskCount - number of tasks in the run
+   * @throws IOException if the file cannot be written
+   */
+  public void writeReport(String path, int taskCount) throws IOException {
+    if (summary == null)
+      throw new IllegalStateException("Profile must be reduced before writing a report");
+    String[] names = rowNames();
+    PrintWriter pw = new PrintWriter(new FileWriter(path));
+    try {
+      if (path.toLowerCase(Locale.US).endsWith(".csv")) {
+        pw.println("name,min,mean,max,maxTask");
+        for (int i = 0; i < names.length; i++) {
+          pw.println(String.format(Locale.US, "%s,%.9g,%.9g,%.9g,%d", names[i], summary[i][0],
+              summary[i][1], summary[i][2], (int) summary[i][3]));
+        }
+      } else {
+        pw.println("{");
+        pw.println("  \"taskCount\": " + taskCount + ",");
+        for (int i = 0; i < names.length; i++) {
+          pw.print(String.format(Locale.US,
+              "  \"%s\": { \"min\": %.9g, \"mean\": %.9g, \"max\": %.9g, \"maxTask\": %d }",
+              names[i], summary[i][0], summary[i][1], summary[i][2], (int) summary[i][3]));
+          pw.println(i < names.length - 1 ? "," : "");
+        }
+        pw.println("}");
+      }
+    } finally {
+      pw.close();
+    }
+  }
+}
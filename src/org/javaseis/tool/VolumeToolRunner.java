@@ -1,23 +1,49 @@
 package org.javaseis.tool;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 
 import org.javaseis.grid.GridDefinition;
 import org.javaseis.services.ParameterService;
-import org.javaseis.volume.ISeismicVolume;
 import org.javaseis.volume.SeismicVolume;
 
-import beta.javaseis.distributed.Decomposition;
-import beta.javaseis.distributed.DistributedArray;
 import beta.javaseis.parallel.IParallelContext;
+import beta.javaseis.parallel.ParallelException;
 import beta.javaseis.parallel.ParallelTask;
 import beta.javaseis.parallel.ParallelTaskExecutor;
 
+/**
+ * Runs a list of volume tools as a single flow. Volumes are pushed through the
+ * whole tool list in memory using two volume buffers that alternate between
+ * input and output, so no intermediate datasets are needed between tools.
+ * <p>
+ * The first tool is the source of the flow and emits volumes through
+ * outputVolume. Each following tool receives volumes through processVolume
+ * and only passes a volume downstream when it returns true. Once its upstream
+ * tools are exhausted, a tool's outputVolume method is called until it returns
+ * false, so tools can emit more or fewer volumes than they consume.
+ * <p>
+ * Tools that implement IInPlaceVolumeTool and whose input and output volumes
+ * match are given the same buffer as input and output.
+ * <p>
+ * Each parallel task runs its own copy of every tool. Tools that implement
+ * Serializable are copied with their configuration and any state set in
+ * serialInit, other tools are created again with their no argument
+ * constructor.
+ */
 public class VolumeToolRunner {
   List<IVolumeTool> tools;
   ToolContext[] toolContext;
-  ISeismicVolume[] vol;
+  SeismicVolume[] vol;
+  GridDefinition[] outputGrid;
+  boolean[] inPlace;
   int toolCount;
   IParallelContext pc;
 
@@ -25,7 +51,56 @@ public class VolumeToolRunner {
     tools = toolList;
     toolCount = toolList.size();
     toolContext = new ToolContext[toolCount];
-    vol = new ISeismicVolume[2];
+    outputGrid = new GridDefinition[toolCount];
+    inPlace = new boolean[toolCount];
+    vol = new SeismicVolume[2];
+  }
+
+  /**
+   * Create a runner for a single parallel task, with copies of the configured
+   * tools and of the serial tool contexts
+   *
+   * @param serialRunner - runner that completed serialInit
+   * @throws InstantiationException if a tool cannot be copied or instantiated
+   * @throws IllegalAccessException if a tool constructor is not accessible
+   */
+  public VolumeToolRunner(VolumeToolRunner serialRunner) throws InstantiationException,
+      IllegalAccessException {
+    this(new ArrayList<IVolumeTool>(serialRunner.toolCount));
+    toolCount = serialRunner.toolCount;
+    for (int i = 0; i < toolCount; i++) {
+      tools.add(copyTool(serialRunner.tools.get(i)));
+      toolContext[i] = new ToolContext(serialRunner.toolContext[i]);
+    }
+  }
+
+  /**
+   * Copy a tool for a parallel task. Serializable tools are copied through
+   * serialization so their configuration is kept.
+   *
+   * @param tool - tool that completed serialInit
+   * @return copy of the tool
+   * @throws InstantiationException if the tool cannot be copied or
+   *           instantiated
+   * @throws IllegalAccessException if the tool constructor is not accessible
+   */
+  static IVolumeTool copyTool(IVolumeTool tool) throws InstantiationException,
+      IllegalAccessException {
+    if (!(tool instanceof Serializable))
+      return tool.getClass().newInstance();
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      ObjectOutputStream out = new ObjectOutputStream(bytes);
+      out.writeObject(tool);
+      out.close();
+      ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+      return (IVolumeTool) in.readObject();
+    } catch (IOException | ClassNotFoundException e) {
+      InstantiationException ex = new InstantiationException("Could not copy tool "
+          + tool.getClass().getName());
+      ex.initCause(e);
+      throw ex;
+    }
   }
 
   public static void exec(ParameterService parms, List<IVolumeTool> toolList) {
@@ -33,14 +108,21 @@ public class VolumeToolRunner {
     vtr.serialInit(parms);
 
     // Now run the tool handler which calls the implementor's methods
-    int ntask = Integer.parseInt(parms.getParameter("threadCount", "1"));
+    // Volumes are split across tasks on their last axis, so the smallest
+    // volume in the flow limits the automatic task count
+    long workItems = Long.MAX_VALUE;
+    for (int i = 0; i < vtr.toolCount; i++) {
+      GridDefinition grid = (GridDefinition) vtr.toolContext[i].getToolGlobal(ToolContext.OUTPUT_GRID);
+      workItems = Math.min(workItems, grid.getAxisLength(2));
+    }
+    int ntask = StandAloneVolumeTool.taskCount(parms, workItems);
     try {
-      ParallelTaskExecutor.runTasks(VolumeRunnerTask.class, ntask);
+      ParallelTaskExecutor.runTasks(VolumeRunnerTask.class, ntask, (Object) vtr);
     } catch (ExecutionException e) {
       e.printStackTrace();
       throw new RuntimeException(e);
     }
-
+    vtr.serialFinish();
   }
 
   public void serialInit(ParameterService parms) {
@@ -67,59 +149,103 @@ public class VolumeToolRunner {
     }
   }
 
+  /**
+   * @return padded length of a single element volume, see
+   *         SeismicVolume.paddedShapeLength
+   */
   public static long getShapeLength(IParallelContext pc, long[] shape) {
-    int[] paddedShape = new int[] { (int) shape[0], (int) shape[2],
-        (int) Decomposition.paddedLength(shape[2], pc.size()) };
-    paddedShape[2] = (int) Decomposition.paddedLength(shape[2], pc.size());
-    return DistributedArray.getShapeLength(3, 1, paddedShape);
+    return SeismicVolume.paddedShapeLength(pc, 1, shape);
   }
 
-  public class VolumeRunnerTask extends ParallelTask {
-
-    @Override
-    public void run() {
-      parallelInit();
-      parallelProcess();
-      parallelFinish();
+  public void parallelInit(IParallelContext parallelContext) {
+    pc = parallelContext;
+    toolContext[0].setParallelContext(pc);
+    tools.get(0).parallelInit(toolContext[0]);
+    GridDefinition currentGrid = (GridDefinition) toolContext[0].getToolGlobal(ToolContext.OUTPUT_GRID);
+    outputGrid[0] = currentGrid;
+    long maxlength = getShapeLength(pc, currentGrid.getAxisLengths());
+    for (int i = 1; i < toolCount; i++) {
+      toolContext[i].setParallelContext(pc);
+      toolContext[i].mergeFlowMaps(toolContext[i - 1]);
+      toolContext[i].putToolGlobal(ToolContext.INPUT_GRID, currentGrid);
+      tools.get(i).parallelInit(toolContext[i]);
+      currentGrid = (GridDefinition) toolContext[i].getToolGlobal(ToolContext.OUTPUT_GRID);
+      outputGrid[i] = currentGrid;
+      inPlace[i] = tools.get(i) instanceof IInPlaceVolumeTool
+          && SeismicVolume.volumeGrid(outputGrid[i - 1]).matches(SeismicVolume.volumeGrid(outputGrid[i]));
+      maxlength = Math.max(maxlength, getShapeLength(pc, currentGrid.getAxisLengths()));
     }
+    toolContext[0].mergeFlowMaps(toolContext[toolCount - 1]);
+    VolumePool pool = VolumePool.forContext(pc);
+    vol[0] = pool.acquire(outputGrid[0], maxlength);
+    vol[1] = pool.acquire(outputGrid[toolCount > 1 ? 1 : 0], maxlength);
+  }
 
-    public void parallelProcess() {// Create the input and output seismic volumes
-
-      int inputToolIndex = 0;
-      int ivol = 0;
-      while (inputToolIndex < toolCount) {
-        for (int i = inputToolIndex; i < toolCount; i++) {
-        }
+  /**
+   * Drive volumes from the first tool through the rest of the flow, then
+   * flush any volumes remaining in each downstream tool in flow order
+   */
+  public void parallelProcess() {
+    for (int i = 0; i < toolCount; i++) {
+      // Upstream tools are done, so either buffer is free for this tool's output
+      vol[0].reshape(outputGrid[i]);
+      while (tools.get(i).outputVolume(toolContext[i], vol[0])) {
+        pushVolume(i + 1, 0);
       }
     }
+  }
 
-    public void parallelInit() {
-      IParallelContext pc = this.getParallelContext();
-      toolContext[0].setParallelContext(pc);
-      tools.get(0).parallelInit(toolContext[0]);
-      GridDefinition currentGrid = (GridDefinition) toolContext[0].getToolGlobal(ToolContext.OUTPUT_GRID);
-      long maxlength = getShapeLength(pc, currentGrid.getAxisLengths());
-      for (int i = 1; i < toolCount; i++) {
-        toolContext[i].setParallelContext(pc);
-        toolContext[i].mergeFlowMaps(toolContext[i - 1]);
-        toolContext[i].putToolGlobal(ToolContext.INPUT_GRID, currentGrid);
-        tools.get(i).parallelInit(toolContext[i]);
-        currentGrid = (GridDefinition) toolContext[i].getToolGlobal(ToolContext.OUTPUT_GRID);
-        maxlength = Math.max(maxlength, getShapeLength(pc, currentGrid.getAxisLengths()));
-      }
-      toolContext[0].mergeFlowMaps(toolContext[toolCount - 1]);
-      vol[0] = new SeismicVolume(pc, (GridDefinition) toolContext[0].getToolGlobal(ToolContext.OUTPUT_GRID),
-          maxlength);
-      if (toolCount > 1) {
-        vol[1] = new SeismicVolume(pc,
-            (GridDefinition) toolContext[1].getToolGlobal(ToolContext.OUTPUT_GRID), maxlength);
+  /**
+   * Push a volume down the flow until it reaches the end of the tool list or a
+   * tool holds it back. Each tool writes to the buffer its input is not in,
+   * which then becomes the next tool's input, unless it works in place.
+   *
+   * @param firstTool - index of the tool that receives the volume
+   * @param current - index of the buffer holding the volume
+   */
+  void pushVolume(int firstTool, int current) {
+    for (int i = firstTool; i < toolCount; i++) {
+      SeismicVolume input = vol[current];
+      SeismicVolume output = input;
+      if (!inPlace[i]) {
+        current = 1 - current;
+        output = vol[current];
+        output.reshape(outputGrid[i]);
       }
+      if (!tools.get(i).processVolume(toolContext[i], input, output))
+        return;
+      output.reshape(outputGrid[i]);
+    }
+  }
+
+  public void parallelFinish() {
+    for (int i = 0; i < toolCount; i++) {
+      tools.get(i).parallelFinish(toolContext[i]);
     }
+    VolumePool pool = VolumePool.forContext(pc);
+    pool.release(vol[0]);
+    pool.release(vol[1]);
+    VolumePool.close(pc);
+  }
+
+  public static class VolumeRunnerTask extends ParallelTask {
 
-    public void parallelFinish() {
-      for (int i = 0; i < toolCount; i++) {
-        tools.get(i).parallelFinish(toolContext[i]);
+    @Override
+    public void run() {
+      IParallelContext pc = this.getParallelContext();
+      ParallelException pe = new ParallelException(pc);
+      // Each task runs its own tool instances against copies of the serial contexts
+      VolumeToolRunner runner = null;
+      Exception ex = null;
+      try {
+        runner = new VolumeToolRunner((VolumeToolRunner) super.getTaskObject());
+      } catch (InstantiationException | IllegalAccessException e) {
+        ex = e;
       }
+      pe.exitOnException(ex, 1);
+      runner.parallelInit(pc);
+      runner.parallelProcess();
+      runner.parallelFinish();
     }
   }
 }
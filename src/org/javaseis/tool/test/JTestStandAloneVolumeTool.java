@@ -0,0 +1,477 @@
+package org.javaseis.tool.test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.javaseis.array.MultiArray;
+import org.javaseis.grid.GridDefinition;
+import org.javaseis.io.Seisio;
+import org.javaseis.services.ParameterService;
+import org.javaseis.tool.ISelectiveVolumeTool;
+import org.javaseis.tool.IVolumeTool;
+import org.javaseis.tool.StandAloneVolumeTool;
+import org.javaseis.tool.ToolContext;
+import org.javaseis.tool.VolumeCheckpoint;
+import org.javaseis.tool.VolumeSelection;
+import org.javaseis.util.SeisException;
+import org.javaseis.volume.ISeismicVolume;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that StandAloneVolumeTool writes the same dataset for any number of
+ * tasks, including task counts that do not divide the decomposed axis, that
+ * volumes a selective tool does not select are skipped, that an interrupted
+ * run resumes from its checkpoint with the same output, and that the profile
+ * report counts the volumes and bytes of a run.
+ */
+public class JTestStandAloneVolumeTool {
+
+  private static final int MAX_TASKS = 4;
+  // The last volume axis is not a multiple of 2, 3 or 4 tasks
+  private static final int[] GRID_SHAPE = new int[] { 16, 8, 11, 3 };
+  private static final String dataFolder = System.getProperty("java.io.tmpdir");
+  private static final String SELECTION_INPUT = "tempSelectionInput.js";
+  private static final String SELECTION_OUTPUT = "tempSelectionOutput.js";
+  private static final String CHECKPOINT = "tempRun.checkpoint";
+  private static final String PROFILE = "tempProfile.csv";
+
+  /**
+   * Writes volumes whose samples hold their own global index
+   */
+  public static class IndexVolumeTool implements IVolumeTool {
+
+    int volumeIndex;
+
+    @Override
+    public void serialInit(ToolContext toolContext) {
+      toolContext.putFlowGlobal(ToolContext.OUTPUT_GRID,
+          GridDefinition.getDefault(GRID_SHAPE.length, GRID_SHAPE));
+    }
+
+    @Override
+    public void parallelInit(ToolContext toolContext) {
+      volumeIndex = 0;
+    }
+
+    @Override
+    public boolean processVolume(ToolContext toolContext, ISeismicVolume input,
+        ISeismicVolume output) {
+      return false;
+    }
+
+    @Override
+    public boolean outputVolume(ToolContext toolContext, ISeismicVolume output) {
+      if (volumeIndex == GRID_SHAPE[3])
+        return false;
+      int[] position = new int[3];
+      for (position[2] = 0; position[2] < GRID_SHAPE[2]; position[2]++) {
+        for (position[1] = 0; position[1] < GRID_SHAPE[1]; position[1]++) {
+          for (position[0] = 0; position[0] < GRID_SHAPE[0]; position[0]++) {
+            if (output.isPositionLocal(position))
+              output.putSample(expectedSample(position[0], position[1], position[2], volumeIndex),
+                  position);
+          }
+        }
+      }
+      volumeIndex++;
+      return true;
+    }
+
+    @Override
+    public void parallelFinish(ToolContext toolContext) {
+    }
+
+    @Override
+    public void serialFinish(ToolContext toolContext) {
+    }
+  }
+
+  /**
+   * Copies every other input volume and records the volumes it processes
+   */
+  public static class EveryOtherVolumeTool implements ISelectiveVolumeTool {
+
+    static final Set<Integer> processed = Collections.synchronizedSet(new TreeSet<Integer>());
+
+    VolumeSelection selection;
+
+    @Override
+    public void serialInit(ToolContext toolContext) {
+      int[] shape = GRID_SHAPE.clone();
+      shape[3] = (shape[3] + 1) / 2;
+      toolContext.putFlowGlobal(ToolContext.OUTPUT_GRID, GridDefinition.getDefault(shape.length,
+          shape));
+    }
+
+    @Override
+    public void parallelInit(ToolContext toolContext) {
+      selection = new VolumeSelection(toolContext.inputGrid).setRange(3, 0, GRID_SHAPE[3] - 1, 2);
+    }
+
+    @Override
+    public boolean selectVolume(ToolContext toolContext, int[] position) {
+      return selection.contains(position);
+    }
+
+    @Override
+    public boolean processVolume(ToolContext toolContext, ISeismicVolume input,
+        ISeismicVolume output) {
+      int[] position = (int[]) toolContext.getFlowLocal(ToolContext.VOLUME_POSITION);
+      processed.add(position[3]);
+      output.copyVolume(input);
+      return true;
+    }
+
+    @Override
+    public boolean outputVolume(ToolContext toolContext, ISeismicVolume output) {
+      return false;
+    }
+
+    @Override
+    public void parallelFinish(ToolContext toolContext) {
+    }
+
+    @Override
+    public void serialFinish(ToolContext toolContext) {
+    }
+  }
+
+  /**
+   * Copies input volumes and fails at a chosen volume, as if the run was
+   * interrupted
+   */
+  public static class InterruptedCopyTool implements IVolumeTool {
+
+    static final Set<Integer> processed = Collections.synchronizedSet(new TreeSet<Integer>());
+
+    static volatile int failAtVolume = -1;
+
+    @Override
+    public void serialInit(ToolContext toolContext) {
+      toolContext.putFlowGlobal(ToolContext.OUTPUT_GRID, toolContext.inputGrid);
+    }
+
+    @Override
+    public void parallelInit(ToolContext toolContext) {
+    }
+
+    @Override
+    public boolean processVolume(ToolContext toolContext, ISeismicVolume input,
+        ISeismicVolume output) {
+      int[] position = (int[]) toolContext.getFlowLocal(ToolContext.VOLUME_POSITION);
+      if (position[3] == failAtVolume)
+        throw new IllegalStateException("Interrupted at volume " + position[3]);
+      processed.add(position[3]);
+      output.copyVolume(input);
+      return true;
+    }
+
+    @Override
+    public boolean outputVolume(ToolContext toolContext, ISeismicVolume output) {
+      return false;
+    }
+
+    @Override
+    public void parallelFinish(ToolContext toolContext) {
+    }
+
+    @Override
+    public void serialFinish(ToolContext toolContext) {
+    }
+  }
+
+  static float expectedSample(int sample, int trace, int frame, int volume) {
+    return sample + GRID_SHAPE[0] * (trace + GRID_SHAPE[1] * (frame + GRID_SHAPE[2] * volume));
+  }
+
+  private static String outputPath(int taskCount) {
+    return "tempTaskCount" + taskCount + ".js";
+  }
+
+  @Before
+  @After
+  public void deleteOutputs() {
+    for (int taskCount = 1; taskCount <= MAX_TASKS; taskCount++) {
+      deleteDataFolder(new File(dataFolder, outputPath(taskCount)));
+    }
+    deleteDataFolder(new File(dataFolder, SELECTION_INPUT));
+    deleteDataFolder(new File(dataFolder, SELECTION_OUTPUT));
+    deleteDataFolder(new File(dataFolder, CHECKPOINT));
+    deleteDataFolder(new File(dataFolder, PROFILE));
+  }
+
+  private static void deleteDataFolder(File file) {
+    if (file.isDirectory()) {
+      File[] files = file.listFiles();
+      if (files != null) {
+        for (File subFile : files) {
+          deleteDataFolder(subFile);
+        }
+      }
+    }
+    file.delete();
+  }
+
+  @Test
+  public void testOutputIsIndependentOfTaskCount() throws SeisException {
+    for (int taskCount = 1; taskCount <= MAX_TASKS; taskCount++) {
+      ParameterService parms = new ParameterService((String[]) null);
+      parms.setParameter(ToolContext.OUTPUT_FILE_SYSTEM, dataFolder);
+      parms.setParameter(ToolContext.OUTPUT_FILE_PATH, outputPath(taskCount));
+      parms.setParameter(ToolContext.OUTPUT_FILE_MODE, ToolContext.OUTPUT_FILE_CREATE);
+      parms.setParameter(ToolContext.TASK_COUNT, Integer.toString(taskCount));
+      StandAloneVolumeTool.exec(parms, new IndexVolumeTool());
+      checkOutput(outputPath(taskCount), new int[] { 0, 1, 2 }, " with " + taskCount + " tasks");
+    }
+  }
+
+  @Test
+  public void testUnselectedVolumesAreSkipped() throws SeisException {
+    ParameterService parms = new ParameterService((String[]) null);
+    parms.setParameter(ToolContext.OUTPUT_FILE_SYSTEM, dataFolder);
+    parms.setParameter(ToolContext.OUTPUT_FILE_PATH, SELECTION_INPUT);
+    parms.setParameter(ToolContext.OUTPUT_FILE_MODE, ToolContext.OUTPUT_FILE_CREATE);
+    parms.setParameter(ToolContext.TASK_COUNT, "1");
+    StandAloneVolumeTool.exec(parms, new IndexVolumeTool());
+    String[] modes = new String[] { "null", ToolContext.VOLUME_PARALLEL };
+    for (String mode : modes) {
+      parms = new ParameterService((String[]) null);
+      parms.setParameter(ToolContext.INPUT_FILE_SYSTEM, dataFolder);
+      parms.setParameter(ToolContext.INPUT_FILE_PATH, SELECTION_INPUT);
+      parms.setParameter(ToolContext.OUTPUT_FILE_SYSTEM, dataFolder);
+      parms.setParameter(ToolContext.OUTPUT_FILE_PATH, SELECTION_OUTPUT);
+      parms.setParameter(ToolContext.OUTPUT_FILE_MODE, ToolContext.OUTPUT_FILE_CREATE);
+      parms.setParameter(ToolContext.TASK_COUNT, "2");
+      if (mode != "null")
+        parms.setParameter(ToolContext.EXECUTION_MODE, mode);
+      EveryOtherVolumeTool.processed.clear();
+      StandAloneVolumeTool.exec(parms, new EveryOtherVolumeTool());
+      // Volume 1 is never processed, and the output holds volumes 0 and 2
+      Assert.assertEquals("Processed volumes in mode " + mode, new TreeSet<Integer>(
+          Arrays.asList(0, 2)), new TreeSet<Integer>(EveryOtherVolumeTool.processed));
+      checkOutput(SELECTION_OUTPUT, new int[] { 0, 2 }, " in mode " + mode);
+      deleteDataFolder(new File(dataFolder, SELECTION_OUTPUT));
+    }
+  }
+
+  @Test
+  public void testAsyncIOMatchesSynchronousOutput() throws SeisException {
+    ParameterService parms = new ParameterService((String[]) null);
+    parms.setParameter(ToolContext.OUTPUT_FILE_SYSTEM, dataFolder);
+    parms.setParameter(ToolContext.OUTPUT_FILE_PATH, SELECTION_INPUT);
+    parms.setParameter(ToolContext.OUTPUT_FILE_MODE, ToolContext.OUTPUT_FILE_CREATE);
+    parms.setParameter(ToolContext.TASK_COUNT, "1");
+    StandAloneVolumeTool.exec(parms, new IndexVolumeTool());
+    for (int taskCount = 1; taskCount <= 2; taskCount++) {
+      for (String async : new String[] { "false", "true" }) {
+        parms = new ParameterService((String[]) null);
+        parms.setParameter(ToolContext.INPUT_FILE_SYSTEM, dataFolder);
+        parms.setParameter(ToolContext.INPUT_FILE_PATH, SELECTION_INPUT);
+        parms.setParameter(ToolContext.OUTPUT_FILE_SYSTEM, dataFolder);
+        parms.setParameter(ToolContext.OUTPUT_FILE_PATH, SELECTION_OUTPUT);
+        parms.setParameter(ToolContext.OUTPUT_FILE_MODE, ToolContext.OUTPUT_FILE_CREATE);
+        parms.setParameter(ToolContext.TASK_COUNT, Integer.toString(taskCount));
+        parms.setParameter(ToolContext.ASYNC_IO, async);
+        EveryOtherVolumeTool.processed.clear();
+        StandAloneVolumeTool.exec(parms, new EveryOtherVolumeTool());
+        String run = " with " + taskCount + " tasks and asyncIO " + async;
+        Assert.assertEquals("Processed volumes" + run, new TreeSet<Integer>(Arrays.asList(0, 2)),
+            new TreeSet<Integer>(EveryOtherVolumeTool.processed));
+        checkOutput(SELECTION_OUTPUT, new int[] { 0, 2 }, run);
+        deleteDataFolder(new File(dataFolder, SELECTION_OUTPUT));
+      }
+    }
+  }
+
+  @Test
+  public void testProfileCountsVolumesAndBytes() throws IOException, SeisException {
+    ParameterService parms = new ParameterService((String[]) null);
+    parms.setParameter(ToolContext.OUTPUT_FILE_SYSTEM, dataFolder);
+    parms.setParameter(ToolContext.OUTPUT_FILE_PATH, SELECTION_INPUT);
+    parms.setParameter(ToolContext.OUTPUT_FILE_MODE, ToolContext.OUTPUT_FILE_CREATE);
+    parms.setParameter(ToolContext.TASK_COUNT, "1");
+    StandAloneVolumeTool.exec(parms, new IndexVolumeTool());
+    long volumeBytes = 4L * GRID_SHAPE[0] * GRID_SHAPE[1] * GRID_SHAPE[2];
+    for (int taskCount = 1; taskCount <= 2; taskCount++) {
+      parms = new ParameterService((String[]) null);
+      parms.setParameter(ToolContext.INPUT_FILE_SYSTEM, dataFolder);
+      parms.setParameter(ToolContext.INPUT_FILE_PATH, SELECTION_INPUT);
+      parms.setParameter(ToolContext.OUTPUT_FILE_SYSTEM, dataFolder);
+      parms.setParameter(ToolContext.OUTPUT_FILE_PATH, SELECTION_OUTPUT);
+      parms.setParameter(ToolContext.OUTPUT_FILE_MODE, ToolContext.OUTPUT_FILE_CREATE);
+      parms.setParameter(ToolContext.TASK_COUNT, Integer.toString(taskCount));
+      parms.setParameter(ToolContext.PROFILE_REPORT, new File(dataFolder, PROFILE).getPath());
+      StandAloneVolumeTool.exec(parms, new EveryOtherVolumeTool());
+      Map<String, double[]> report = readProfile(new File(dataFolder, PROFILE));
+      String run = " with " + taskCount + " tasks";
+      // Every task takes part in reading and writing volumes 0 and 2 and skips volume 1
+      Assert.assertArrayEquals("volumesRead" + run, new double[] { 2, 2, 2 },
+          Arrays.copyOf(report.get("volumesRead"), 3), 0);
+      Assert.assertArrayEquals("volumesSkipped" + run, new double[] { 1, 1, 1 },
+          Arrays.copyOf(report.get("volumesSkipped"), 3), 0);
+      Assert.assertArrayEquals("volumesWritten" + run, new double[] { 2, 2, 2 },
+          Arrays.copyOf(report.get("volumesWritten"), 3), 0);
+      // The tasks' local parts add up to the whole volumes
+      Assert.assertEquals("bytesRead" + run, 2 * volumeBytes, taskCount
+          * report.get("bytesRead")[1], 1e-6);
+      Assert.assertEquals("bytesWritten" + run, 2 * volumeBytes, taskCount
+          * report.get("bytesWritten")[1], 1e-6);
+      Assert.assertTrue("processSeconds" + run, report.get("processSeconds")[0] >= 0);
+      deleteDataFolder(new File(dataFolder, SELECTION_OUTPUT));
+      deleteDataFolder(new File(dataFolder, PROFILE));
+    }
+  }
+
+  /**
+   * @return min, mean, max and task with max of each row of a CSV profile
+   *         report, by name
+   */
+  private static Map<String, double[]> readProfile(File file) throws IOException {
+    Map<String, double[]> rows = new HashMap<String, double[]>();
+    BufferedReader reader = new BufferedReader(new FileReader(file));
+    try {
+      Assert.assertEquals("name,min,mean,max,maxTask", reader.readLine());
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] fields = line.split(",");
+        double[] values = new double[fields.length - 1];
+        for (int i = 0; i < values.length; i++) {
+          values[i] = Double.parseDouble(fields[i + 1]);
+        }
+        rows.put(fields[0], values);
+      }
+    } finally {
+      reader.close();
+    }
+    return rows;
+  }
+
+  /**
+   * Check that each output volume holds the samples of an input volume
+   *
+   * @param path - output dataset in the data folder
+   * @param inputVolumes - input volume index for each output volume
+   * @param run - description of the run for messages
+   */
+  private void checkOutput(String path, int[] inputVolumes, String run) throws SeisException {
+    Seisio sio = new Seisio(new File(dataFolder, path).getPath());
+    sio.open("r");
+    MultiArray frame = new MultiArray(2, float.class, new int[] { GRID_SHAPE[0], GRID_SHAPE[1] });
+    frame.allocate();
+    float[] sample = new float[1];
+    int[] samplePosition = new int[2];
+    int frameCount = 0;
+    Iterator<int[]> frames = sio.frameIterator();
+    while (frames.hasNext()) {
+      int[] position = frames.next();
+      sio.readMultiArray(frame, position);
+      for (samplePosition[1] = 0; samplePosition[1] < GRID_SHAPE[1]; samplePosition[1]++) {
+        for (samplePosition[0] = 0; samplePosition[0] < GRID_SHAPE[0]; samplePosition[0]++) {
+          frame.getSample(sample, samplePosition);
+          Assert.assertEquals("Wrong sample" + run, expectedSample(samplePosition[0],
+              samplePosition[1], position[2], inputVolumes[position[3]]), sample[0], 0f);
+        }
+      }
+      frameCount++;
+    }
+    sio.close();
+    Assert.assertEquals("Wrong number of frames" + run, GRID_SHAPE[2] * inputVolumes.length,
+        frameCount);
+  }
+
+  @Test
+  public void testAutomaticTaskCount() {
+    ParameterService parms = new ParameterService((String[]) null);
+    parms.setParameter(ToolContext.TASK_COUNT, ToolContext.AUTO_TASK_COUNT);
+    int processors = Runtime.getRuntime().availableProcessors();
+    Assert.assertEquals(Math.min(processors, 3), StandAloneVolumeTool.taskCount(parms, 3));
+    Assert.assertEquals(1, StandAloneVolumeTool.taskCount(parms, 0));
+    parms.setParameter(ToolContext.TASK_COUNT, "7");
+    Assert.assertEquals(7, StandAloneVolumeTool.taskCount(parms, 3));
+  }
+
+  private static ParameterService checkpointParameters(int taskCount) {
+    ParameterService parms = new ParameterService((String[]) null);
+    parms.setParameter(ToolContext.INPUT_FILE_SYSTEM, dataFolder);
+    parms.setParameter(ToolContext.INPUT_FILE_PATH, SELECTION_INPUT);
+    parms.setParameter(ToolContext.OUTPUT_FILE_SYSTEM, dataFolder);
+    parms.setParameter(ToolContext.OUTPUT_FILE_PATH, SELECTION_OUTPUT);
+    parms.setParameter(ToolContext.OUTPUT_FILE_MODE, ToolContext.OUTPUT_FILE_CREATE);
+    parms.setParameter(ToolContext.TASK_COUNT, Integer.toString(taskCount));
+    parms.setParameter(ToolContext.CHECKPOINT_INTERVAL, "1");
+    parms.setParameter(ToolContext.CHECKPOINT_PATH, new File(dataFolder, CHECKPOINT).getPath());
+    return parms;
+  }
+
+  @Test
+  public void testCheckpointResumesInterruptedRun() throws SeisException {
+    ParameterService parms = new ParameterService((String[]) null);
+    parms.setParameter(ToolContext.OUTPUT_FILE_SYSTEM, dataFolder);
+    parms.setParameter(ToolContext.OUTPUT_FILE_PATH, SELECTION_INPUT);
+    parms.setParameter(ToolContext.OUTPUT_FILE_MODE, ToolContext.OUTPUT_FILE_CREATE);
+    parms.setParameter(ToolContext.TASK_COUNT, "1");
+    StandAloneVolumeTool.exec(parms, new IndexVolumeTool());
+    File checkpoint = new File(dataFolder, CHECKPOINT);
+    for (int taskCount = 1; taskCount <= 2; taskCount++) {
+      String run = " with " + taskCount + " tasks";
+      InterruptedCopyTool.processed.clear();
+      InterruptedCopyTool.failAtVolume = 2;
+      try {
+        StandAloneVolumeTool.exec(checkpointParameters(taskCount), new InterruptedCopyTool());
+        Assert.fail("Run was not interrupted" + run);
+      } catch (RuntimeException e) {
+        // expected
+      }
+      Assert.assertTrue("No checkpoint" + run, checkpoint.exists());
+      // The resumed run only processes the volume that was interrupted
+      InterruptedCopyTool.processed.clear();
+      InterruptedCopyTool.failAtVolume = -1;
+      StandAloneVolumeTool.exec(checkpointParameters(taskCount), new InterruptedCopyTool());
+      Assert.assertEquals("Resumed volumes" + run, Collections.singleton(2),
+          InterruptedCopyTool.processed);
+      Assert.assertFalse("Checkpoint was kept" + run, checkpoint.exists());
+      checkOutput(SELECTION_OUTPUT, new int[] { 0, 1, 2 }, run);
+      deleteDataFolder(new File(dataFolder, SELECTION_OUTPUT));
+    }
+  }
+
+  @Test
+  public void testCheckpointRefusesDifferentRun() throws IOException {
+    ParameterService parms = new ParameterService((String[]) null);
+    parms.setParameter(ToolContext.CHECKPOINT_INTERVAL, "1");
+    parms.setParameter(ToolContext.CHECKPOINT_PATH, new File(dataFolder, CHECKPOINT).getPath());
+    VolumeCheckpoint checkpoint = VolumeCheckpoint.forContext(new ToolContext(parms));
+    checkpoint.setRun("input.js", null, IndexVolumeTool.class);
+    checkpoint.save(2, 2, new Properties());
+    // The same run continues
+    checkpoint = VolumeCheckpoint.forContext(new ToolContext(parms));
+    Assert.assertTrue(checkpoint.isRestart());
+    checkpoint.setRun("input.js", null, IndexVolumeTool.class);
+    Assert.assertEquals(2, checkpoint.getInputVolumes());
+    // A different input or tool does not
+    String[] inputs = new String[] { "other.js", "input.js" };
+    Class<?>[] tools = new Class<?>[] { IndexVolumeTool.class, EveryOtherVolumeTool.class };
+    for (int i = 0; i < inputs.length; i++) {
+      checkpoint = VolumeCheckpoint.forContext(new ToolContext(parms));
+      try {
+        checkpoint.setRun(inputs[i], null, tools[i]);
+        Assert.fail("Checkpoint accepted a different run");
+      } catch (IllegalStateException e) {
+        // expected
+      }
+    }
+  }
+}
@@ -0,0 +1,81 @@
+package org.javaseis.tool.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import org.javaseis.services.ParameterService;
+import org.javaseis.tool.ToolContext;
+import org.javaseis.tool.VersionedSharedMap;
+import org.junit.Assert;
+import org.junit.Test;
+
+import beta.javaseis.parallel.IParallelContext;
+import beta.javaseis.parallel.ParallelTask;
+import beta.javaseis.parallel.ParallelTaskExecutor;
+import beta.javaseis.parallel.SharedMap;
+import beta.javaseis.parallel.UniprocessorContext;
+
+/**
+ * Checks that VersionedSharedMap.sync delivers a change made by one task to
+ * every task without exchanging entries nobody changed, and that a context
+ * created over a SharedMap writes its flow global objects to that map.
+ */
+public class JTestVersionedSharedMap {
+
+  private static final List<String> syncErrors = Collections
+      .synchronizedList(new ArrayList<String>());
+
+  public static class SyncTask extends ParallelTask {
+    @Override
+    public void run() {
+      IParallelContext pc = getParallelContext();
+      String task = "Task " + pc.rank() + ": ";
+      // Start from a clean map whose untouched entry differs between tasks,
+      // so an exchange of that entry would show
+      VersionedSharedMap source = new VersionedSharedMap();
+      source.put("untouched", "task" + pc.rank());
+      source.put("changed", "old");
+      source.sync(new UniprocessorContext());
+      VersionedSharedMap map = new VersionedSharedMap(source);
+      if (map.isDirty())
+        syncErrors.add(task + "copy of a clean map is dirty");
+      long version = map.getVersion();
+      map.sync(pc);
+      if (map.getVersion() != version)
+        syncErrors.add(task + "sync without changes changed the map");
+      if (pc.rank() == 1)
+        map.put("changed", "new");
+      map.sync(pc);
+      if (!"new".equals(map.get("changed")))
+        syncErrors.add(task + "changed entry is " + map.get("changed"));
+      if (!("task" + pc.rank()).equals(map.get("untouched")))
+        syncErrors.add(task + "untouched entry is " + map.get("untouched"));
+      if (map.isDirty())
+        syncErrors.add(task + "map is dirty after sync");
+      if (map.getVersion() == version)
+        syncErrors.add(task + "version did not advance");
+    }
+  }
+
+  @Test
+  public void testSyncExchangesOnlyChanges() throws Exception {
+    syncErrors.clear();
+    ParallelTaskExecutor.runTasks(SyncTask.class, 3);
+    Assert.assertEquals(new ArrayList<String>(), syncErrors);
+  }
+
+  @Test
+  public void testContextWritesToSharedMap() {
+    SharedMap shared = new SharedMap();
+    shared.put("existing", "value");
+    ToolContext toolContext = new ToolContext(new ParameterService((String[]) null),
+        new UniprocessorContext(), shared, new HashMap<String, Object>());
+    Assert.assertEquals("value", toolContext.getFlowGlobal("existing"));
+    toolContext.putFlowGlobal("added", "tool");
+    Assert.assertEquals("tool", shared.get("added"));
+    shared.put("existing", "caller");
+    Assert.assertEquals("caller", toolContext.getFlowGlobal("existing"));
+  }
+}
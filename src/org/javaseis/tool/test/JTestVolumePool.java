@@ -0,0 +1,50 @@
+package org.javaseis.tool.test;
+
+import org.javaseis.grid.GridDefinition;
+import org.javaseis.tool.VolumePool;
+import org.javaseis.volume.SeismicVolume;
+import org.junit.Assert;
+import org.junit.Test;
+
+import beta.javaseis.parallel.UniprocessorContext;
+
+/**
+ * Checks that VolumePool hands released buffers out again
+ */
+public class JTestVolumePool {
+
+  @Test
+  public void testAcquireReleaseReuse() {
+    VolumePool pool = VolumePool.forContext(new UniprocessorContext());
+    pool.clear();
+    // Uniprocessor contexts share one pool
+    Assert.assertSame(pool, VolumePool.forContext(new UniprocessorContext()));
+    GridDefinition large = GridDefinition.getDefault(3, new int[] { 8, 6, 5 });
+    GridDefinition small = GridDefinition.getDefault(3, new int[] { 4, 3, 5 });
+    SeismicVolume first = pool.acquire(large);
+    SeismicVolume second = pool.acquire(small);
+    Assert.assertNotSame(first, second);
+    pool.release(first);
+    // A smaller request reuses the released buffer, reshaped
+    SeismicVolume reused = pool.acquire(small);
+    Assert.assertSame(first, reused);
+    Assert.assertArrayEquals(new int[] { 4, 3, 5 }, reused.getLengths());
+    // A request larger than every free buffer allocates a new one
+    pool.release(second);
+    SeismicVolume larger = pool.acquire(large);
+    Assert.assertNotSame(second, larger);
+    Assert.assertSame(second, pool.acquire(small));
+    // Releasing twice does not hand the buffer out twice
+    pool.release(larger);
+    pool.release(larger);
+    Assert.assertSame(larger, pool.acquire(large));
+    Assert.assertNotSame(larger, pool.acquire(large));
+    // The uniprocessor pool stays open for later runs, until it is cleared
+    pool.release(larger);
+    VolumePool.close(new UniprocessorContext());
+    Assert.assertSame(larger, VolumePool.forContext(new UniprocessorContext()).acquire(small));
+    pool.release(larger);
+    pool.clear();
+    Assert.assertNotSame(larger, pool.acquire(small));
+  }
+}
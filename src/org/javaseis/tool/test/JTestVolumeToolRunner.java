@@ -0,0 +1,241 @@
+package org.javaseis.tool.test;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.javaseis.grid.GridDefinition;
+import org.javaseis.services.ParameterService;
+import org.javaseis.tool.IInPlaceVolumeTool;
+import org.javaseis.tool.IVolumeTool;
+import org.javaseis.tool.ToolContext;
+import org.javaseis.tool.VolumeToolRunner;
+import org.javaseis.volume.ISeismicVolume;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that VolumeToolRunner pushes every volume from a source through a
+ * chain of configured tools, with an in-place tool given a single buffer, for
+ * one and for several tasks.
+ */
+public class JTestVolumeToolRunner {
+
+  private static final int[] GRID_SHAPE = new int[] { 8, 4, 6, 5 };
+
+  /**
+   * Emits volumes whose samples hold their global index plus a configured
+   * offset
+   */
+  public static class SourceTool implements IVolumeTool, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    final float offset;
+
+    int volumeIndex;
+
+    public SourceTool(float sampleOffset) {
+      offset = sampleOffset;
+    }
+
+    @Override
+    public void serialInit(ToolContext toolContext) {
+      toolContext.putToolGlobal(ToolContext.OUTPUT_GRID,
+          GridDefinition.getDefault(GRID_SHAPE.length, GRID_SHAPE));
+    }
+
+    @Override
+    public void parallelInit(ToolContext toolContext) {
+      volumeIndex = 0;
+    }
+
+    @Override
+    public boolean processVolume(ToolContext toolContext, ISeismicVolume input,
+        ISeismicVolume output) {
+      return false;
+    }
+
+    @Override
+    public boolean outputVolume(ToolContext toolContext, ISeismicVolume output) {
+      if (volumeIndex == GRID_SHAPE[3])
+        return false;
+      int[] position = new int[3];
+      for (position[2] = 0; position[2] < GRID_SHAPE[2]; position[2]++) {
+        for (position[1] = 0; position[1] < GRID_SHAPE[1]; position[1]++) {
+          for (position[0] = 0; position[0] < GRID_SHAPE[0]; position[0]++) {
+            if (output.isPositionLocal(position))
+              output.putSample(offset + sampleIndex(position, volumeIndex), position);
+          }
+        }
+      }
+      volumeIndex++;
+      return true;
+    }
+
+    @Override
+    public void parallelFinish(ToolContext toolContext) {
+    }
+
+    @Override
+    public void serialFinish(ToolContext toolContext) {
+    }
+  }
+
+  /**
+   * Scales volumes in place by a configured factor
+   */
+  public static class ScaleTool implements IInPlaceVolumeTool, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    static volatile boolean copied;
+
+    final float factor;
+
+    public ScaleTool(float scaleFactor) {
+      factor = scaleFactor;
+    }
+
+    @Override
+    public void serialInit(ToolContext toolContext) {
+    }
+
+    @Override
+    public void parallelInit(ToolContext toolContext) {
+    }
+
+    @Override
+    public boolean processVolume(ToolContext toolContext, ISeismicVolume input,
+        ISeismicVolume output) {
+      if (input != output)
+        copied = true;
+      int[] position = new int[3];
+      for (position[2] = 0; position[2] < GRID_SHAPE[2]; position[2]++) {
+        for (position[1] = 0; position[1] < GRID_SHAPE[1]; position[1]++) {
+          for (position[0] = 0; position[0] < GRID_SHAPE[0]; position[0]++) {
+            if (input.isPositionLocal(position))
+              output.putSample(factor * input.getSample(position), position);
+          }
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public boolean outputVolume(ToolContext toolContext, ISeismicVolume output) {
+      return false;
+    }
+
+    @Override
+    public void parallelFinish(ToolContext toolContext) {
+    }
+
+    @Override
+    public void serialFinish(ToolContext toolContext) {
+    }
+  }
+
+  /**
+   * Adds up the local samples of each volume it receives, over all tasks
+   */
+  public static class SumTool implements IVolumeTool {
+
+    static final double[] sums = new double[GRID_SHAPE[3]];
+
+    static int volumes;
+
+    int volumeIndex;
+
+    @Override
+    public void serialInit(ToolContext toolContext) {
+    }
+
+    @Override
+    public void parallelInit(ToolContext toolContext) {
+      volumeIndex = 0;
+    }
+
+    @Override
+    public boolean processVolume(ToolContext toolContext, ISeismicVolume input,
+        ISeismicVolume output) {
+      double sum = 0;
+      int[] position = new int[3];
+      for (position[2] = 0; position[2] < GRID_SHAPE[2]; position[2]++) {
+        for (position[1] = 0; position[1] < GRID_SHAPE[1]; position[1]++) {
+          for (position[0] = 0; position[0] < GRID_SHAPE[0]; position[0]++) {
+            if (input.isPositionLocal(position))
+              sum += input.getSample(position);
+          }
+        }
+      }
+      add(volumeIndex++, sum);
+      return false;
+    }
+
+    static synchronized void add(int volume, double sum) {
+      if (volume < sums.length)
+        sums[volume] += sum;
+      volumes++;
+    }
+
+    @Override
+    public boolean outputVolume(ToolContext toolContext, ISeismicVolume output) {
+      return false;
+    }
+
+    @Override
+    public void parallelFinish(ToolContext toolContext) {
+    }
+
+    @Override
+    public void serialFinish(ToolContext toolContext) {
+    }
+  }
+
+  static int sampleIndex(int[] position, int volume) {
+    return position[0] + GRID_SHAPE[0]
+        * (position[1] + GRID_SHAPE[1] * (position[2] + GRID_SHAPE[2] * volume));
+  }
+
+  @Before
+  public void resetTools() {
+    synchronized (SumTool.class) {
+      for (int v = 0; v < SumTool.sums.length; v++) {
+        SumTool.sums[v] = 0;
+      }
+      SumTool.volumes = 0;
+    }
+    ScaleTool.copied = false;
+  }
+
+  @Test
+  public void testChainedTools() {
+    float offset = 0.5f;
+    float factor = -3;
+    int samples = GRID_SHAPE[0] * GRID_SHAPE[1] * GRID_SHAPE[2];
+    for (int taskCount = 1; taskCount <= 2; taskCount++) {
+      resetTools();
+      ParameterService parms = new ParameterService((String[]) null);
+      parms.setParameter(ToolContext.TASK_COUNT, Integer.toString(taskCount));
+      List<IVolumeTool> tools = new ArrayList<IVolumeTool>();
+      tools.add(new SourceTool(offset));
+      tools.add(new ScaleTool(factor));
+      tools.add(new SumTool());
+      VolumeToolRunner.exec(parms, tools);
+
+      Assert.assertFalse("In-place tool was given two buffers", ScaleTool.copied);
+      // Every task sees every volume, each holding part of it
+      Assert.assertEquals(taskCount * GRID_SHAPE[3], SumTool.volumes);
+      for (int v = 0; v < GRID_SHAPE[3]; v++) {
+        double expected = 0;
+        for (int i = 0; i < samples; i++) {
+          expected += factor * (offset + i + samples * v);
+        }
+        Assert.assertEquals("Volume " + v + " with " + taskCount + " tasks", expected,
+            SumTool.sums[v], 1e-6 * Math.abs(expected));
+      }
+    }
+  }
+}
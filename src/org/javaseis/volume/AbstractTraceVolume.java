@@ -0,0 +1,443 @@
+package org.javaseis.volume;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.NoSuchElementException;
+
+import org.javaseis.array.ElementType;
+import org.javaseis.grid.GridDefinition;
+
+import beta.javaseis.array.ITraceIterator;
+import beta.javaseis.distributed.Decomposition;
+import beta.javaseis.distributed.DistributedArray;
+import beta.javaseis.parallel.UniprocessorContext;
+import beta.javaseis.regulargrid.IRegularGrid;
+import beta.javaseis.regulargrid.OrientationType;
+import beta.javaseis.regulargrid.RegularGrid;
+
+/**
+ * Base class for volumes that hold a whole 3D volume in one task as a
+ * sequence of traces, outside of a DistributedArray. Traces are numbered with
+ * the second volume axis varying fastest, as they are stored in JavaSeis trace
+ * files. Subclasses provide the trace storage.
+ * <p>
+ * These volumes are not distributed, so every position is local. They are
+ * meant for tasks that work on whole volumes by themselves, such as volume
+ * parallel execution. getDistributedArray returns null, and volumes are read
+ * and written with JavaSeisTraceFile instead of an IDistributedIOService.
+ */
+public abstract class AbstractTraceVolume implements ISeismicVolume {
+
+  GridDefinition globalGrid, localGrid;
+
+  int[] volumeShape;
+
+  double[] origins, deltas;
+
+  TraceHeaders traceHeaders;
+
+  /** Geometry only grid for orientation and copies, created when needed */
+  private IRegularGrid geometry;
+
+  AbstractTraceVolume(GridDefinition globalGridDefinition) {
+    setGrids(globalGridDefinition);
+  }
+
+  void setGrids(GridDefinition globalGridDefinition) {
+    globalGrid = globalGridDefinition;
+    localGrid = SeismicVolume.volumeGrid(globalGridDefinition);
+    volumeShape = new int[3];
+    for (int i = 0; i < 3; i++) {
+      volumeShape[i] = (int) localGrid.getAxis(i).getLength();
+    }
+    double[] physicalOrigins = globalGridDefinition.getAxisPhysicalOrigins();
+    double[] physicalDeltas = globalGridDefinition.getAxisPhysicalDeltas();
+    origins = new double[] { physicalOrigins[0], physicalOrigins[1], physicalOrigins[2] };
+    deltas = new double[] { physicalDeltas[0], physicalDeltas[1], physicalDeltas[2] };
+    geometry = null;
+  }
+
+  /** @return number of samples in each trace */
+  public int getSampleCount() {
+    return volumeShape[0];
+  }
+
+  /** @return number of traces in the volume */
+  public long getTraceCount() {
+    return (long) volumeShape[1] * volumeShape[2];
+  }
+
+  /**
+   * @param position - volume position, only the second and third entries are
+   *          used
+   * @return index of the trace holding the position
+   */
+  public long traceIndex(int[] position) {
+    return position[1] + (long) volumeShape[1] * position[2];
+  }
+
+  /**
+   * Copy a trace into a caller provided array
+   *
+   * @param trace - trace index
+   * @param samples - array of at least getSampleCount() samples
+   */
+  public void getTrace(long trace, float[] samples) {
+    getTrace(trace, samples, 0);
+  }
+
+  /**
+   * Replace a trace from a caller provided array
+   *
+   * @param trace - trace index
+   * @param samples - array of at least getSampleCount() samples
+   */
+  public void putTrace(long trace, float[] samples) {
+    putTrace(trace, samples, 0);
+  }
+
+  /**
+   * Copy a trace into part of a caller provided array
+   *
+   * @param trace - trace index
+   * @param samples - destination array
+   * @param offset - index in samples of the first sample
+   */
+  public abstract void getTrace(long trace, float[] samples, int offset);
+
+  /**
+   * Replace a trace from part of a caller provided array
+   *
+   * @param trace - trace index
+   * @param samples - source array
+   * @param offset - index in samples of the first sample
+   */
+  public abstract void putTrace(long trace, float[] samples, int offset);
+
+  /**
+   * @param trace - trace index
+   * @param sample - sample index within the trace
+   * @return sample value
+   */
+  public abstract float getSample(long trace, int sample);
+
+  /**
+   * @param trace - trace index
+   * @param sample - sample index within the trace
+   * @param value - new sample value
+   */
+  public abstract void putSample(long trace, int sample, float value);
+
+  /**
+   * Return the storage for a run of traces as raw float samples, so they can
+   * be read or written without a copy. The buffer starts at the first trace
+   * and holds a whole number of traces, which may be fewer than requested.
+   *
+   * @param trace - first trace index
+   * @param count - number of traces wanted
+   * @return buffer positioned over the traces, or null if the storage does
+   *         not hold raw float samples
+   */
+  public ByteBuffer traceBuffer(long trace, long count) {
+    return null;
+  }
+
+  /**
+   * Called before the whole volume is replaced by raw samples in a given byte
+   * order through traceBuffer, so the storage can adopt that order
+   *
+   * @param order - byte order of the samples that will be transferred
+   */
+  public void setByteOrder(ByteOrder order) {
+  }
+
+  private IRegularGrid geometry() {
+    if (geometry == null) {
+      // The array is never allocated, it only describes the volume shape
+      DistributedArray shape = new DistributedArray(new UniprocessorContext(), float.class, 3, 1,
+          volumeShape, Decomposition.BLOCK, 0);
+      geometry = new RegularGrid(shape);
+    }
+    return geometry;
+  }
+
+  @Override
+  public GridDefinition getGlobalGrid() {
+    return globalGrid;
+  }
+
+  @Override
+  public GridDefinition getLocalGrid() {
+    return localGrid;
+  }
+
+  /**
+   * @return null, trace volumes are not held in a DistributedArray
+   */
+  @Override
+  public DistributedArray getDistributedArray() {
+    return null;
+  }
+
+  @Override
+  public void copyVolume(ISeismicVolume source) {
+    if (source == this)
+      return;
+    if (!source.matches(this))
+      throw new IllegalArgumentException("Source volume and this volume do not match");
+    float[] samples = new float[getSampleCount()];
+    if (source instanceof AbstractTraceVolume) {
+      AbstractTraceVolume traceSource = (AbstractTraceVolume) source;
+      for (long trace = 0; trace < getTraceCount(); trace++) {
+        traceSource.getTrace(trace, samples);
+        putTrace(trace, samples);
+      }
+    } else {
+      ITraceIterator traces = source.getTraceIterator();
+      long trace = 0;
+      while (traces.hasNext()) {
+        putTrace(trace++, traces.next());
+      }
+    }
+  }
+
+  @Override
+  public boolean matches(ISeismicVolume volume) {
+    return localGrid.matches(volume.getLocalGrid());
+  }
+
+  @Override
+  public int getElementCount() {
+    return 1;
+  }
+
+  @Override
+  public ElementType getElementType() {
+    return ElementType.FLOAT;
+  }
+
+  @Override
+  public long shapeLength() {
+    return getTraceCount() * volumeShape[0];
+  }
+
+  @Override
+  public ITraceIterator getTraceIterator() {
+    return new TraceIterator();
+  }
+
+  @Override
+  public TraceHeaders getTraceHeaders() {
+    return traceHeaders;
+  }
+
+  @Override
+  public void setTraceHeaders(TraceHeaders headers) {
+    traceHeaders = headers;
+  }
+
+  @Override
+  public OrientationType getOrientation() {
+    return geometry().getOrientation();
+  }
+
+  @Override
+  public int getNumDimensions() {
+    return 3;
+  }
+
+  @Override
+  public int[] getLengths() {
+    return volumeShape.clone();
+  }
+
+  @Override
+  public int[] getLocalLengths() {
+    return volumeShape.clone();
+  }
+
+  @Override
+  public double[] getDeltas() {
+    return deltas.clone();
+  }
+
+  @Override
+  public boolean isPositionLocal(int[] position) {
+    for (int i = 0; i < 3; i++) {
+      if (position[i] < 0 || position[i] >= volumeShape[i])
+        return false;
+    }
+    return true;
+  }
+
+  @Override
+  public float getSample(int[] position) {
+    return getSample(traceIndex(position), position[0]);
+  }
+
+  @Override
+  public float getFloat(int[] position) {
+    return getSample(position);
+  }
+
+  @Override
+  public int getInt(int[] position) {
+    return (int) getSample(position);
+  }
+
+  @Override
+  public double getDouble(int[] position) {
+    return getSample(position);
+  }
+
+  @Override
+  public void putSample(float val, int[] position) {
+    putSample(traceIndex(position), position[0], val);
+  }
+
+  @Override
+  public void putSample(double val, int[] position) {
+    putSample(traceIndex(position), position[0], (float) val);
+  }
+
+  @Override
+  public int localToGlobal(int dimension, int index) {
+    return index;
+  }
+
+  @Override
+  public int globalToLocal(int dimension, int index) {
+    return index;
+  }
+
+  @Override
+  public int[] localPosition(int[] pos) {
+    return pos.clone();
+  }
+
+  @Override
+  public void worldCoords(int[] pos, double[] wxyz) {
+    for (int i = 0; i < 3; i++) {
+      wxyz[i] = origins[i] + pos[i] * deltas[i];
+    }
+  }
+
+  @Override
+  public IRegularGrid createCopy() {
+    return geometry().createCopy();
+  }
+
+  @Override
+  public void getFrame(int frame, float[] samples, int offset) {
+    getTraces(frame, 0, volumeShape[1], samples, offset);
+  }
+
+  @Override
+  public void putFrame(int frame, float[] samples, int offset) {
+    putTraces(frame, 0, volumeShape[1], samples, offset);
+  }
+
+  @Override
+  public void getTraces(int frame, int trace, int count, float[] samples, int offset) {
+    long first = trace + (long) volumeShape[1] * frame;
+    for (int i = 0; i < count; i++) {
+      getTrace(first + i, samples, offset + i * volumeShape[0]);
+    }
+  }
+
+  @Override
+  public void putTraces(int frame, int trace, int count, float[] samples, int offset) {
+    long first = trace + (long) volumeShape[1] * frame;
+    for (int i = 0; i < count; i++) {
+      putTrace(first + i, samples, offset + i * volumeShape[0]);
+    }
+  }
+
+  @Override
+  public void getBlock(int[] start, int[] lengths, int[] strides, float[] samples, int offset) {
+    int index = offset;
+    for (int k = 0; k < lengths[2]; k++) {
+      for (int j = 0; j < lengths[1]; j++) {
+        long trace = start[1] + j * strides[1] + (long) volumeShape[1] * (start[2] + k * strides[2]);
+        if (strides[0] == 1) {
+          getTraceRun(trace, start[0], lengths[0], samples, index);
+        } else {
+          for (int i = 0; i < lengths[0]; i++) {
+            samples[index + i] = getSample(trace, start[0] + i * strides[0]);
+          }
+        }
+        index += lengths[0];
+      }
+    }
+  }
+
+  @Override
+  public void putBlock(int[] start, int[] lengths, int[] strides, float[] samples, int offset) {
+    int index = offset;
+    for (int k = 0; k < lengths[2]; k++) {
+      for (int j = 0; j < lengths[1]; j++) {
+        long trace = start[1] + j * strides[1] + (long) volumeShape[1] * (start[2] + k * strides[2]);
+        for (int i = 0; i < lengths[0]; i++) {
+          putSample(trace, start[0] + i * strides[0], samples[index + i]);
+        }
+        index += lengths[0];
+      }
+    }
+  }
+
+  /**
+   * Copy consecutive samples of one trace. Subclasses can override this with a
+   * bulk copy.
+   *
+   * @param trace - trace index
+   * @param sample - first sample index
+   * @param count - number of samples
+   * @param samples - destination array
+   * @param offset - index in samples of the first value
+   */
+  void getTraceRun(long trace, int sample, int count, float[] samples, int offset) {
+    for (int i = 0; i < count; i++) {
+      samples[offset + i] = getSample(trace, sample + i);
+    }
+  }
+
+  @Override
+  public VolumeCursor getCursor() {
+    return new VolumeCursor(this);
+  }
+
+  /**
+   * Iterates over traces in storage order, reusing one trace array. Traces
+   * given to putTrace replace the trace last returned by next.
+   */
+  class TraceIterator implements ITraceIterator {
+
+    private final float[] samples = new float[getSampleCount()];
+
+    private long trace = -1;
+
+    @Override
+    public boolean hasNext() {
+      return trace + 1 < getTraceCount();
+    }
+
+    @Override
+    public float[] next() {
+      if (!hasNext())
+        throw new NoSuchElementException();
+      trace++;
+      getTrace(trace, samples);
+      return samples;
+    }
+
+    @Override
+    public void putTrace(float[] trc) {
+      AbstractTraceVolume.this.putTrace(trace, trc);
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
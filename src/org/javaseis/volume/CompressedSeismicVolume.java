@@ -0,0 +1,139 @@
+package org.javaseis.volume;
+
+import org.javaseis.grid.GridDefinition;
+
+/**
+ * Volume that stores each sample as a 16 bit integer with one scale factor per
+ * trace, using half the memory of a float volume. Traces are encoded when they
+ * are written and decoded to float when they are read, so tools see float
+ * samples. The encoding step of a trace is its largest absolute value divided
+ * by 32767, so samples are kept to within half a step, which suits tools that
+ * tolerate about 90 dB of dynamic range within a trace.
+ * <p>
+ * Writing a single sample larger than the rest of its trace re-encodes the
+ * whole trace with a new scale factor.
+ */
+public class CompressedSeismicVolume extends AbstractTraceVolume {
+
+  /** Largest encoded value */
+  static final int MAX_CODE = Short.MAX_VALUE;
+
+  private short[][] chunks;
+
+  /** Value of one encoded step, by trace */
+  private float[] scales;
+
+  private int tracesPerChunk;
+
+  private long allocatedLength;
+
+  /** Trace decoded when a single sample needs a new scale */
+  private float[] scratchTrace;
+
+  public CompressedSeismicVolume(GridDefinition globalGridDefinition) {
+    this(globalGridDefinition, 0);
+  }
+
+  /**
+   * @param globalGridDefinition - grid for the volumes this buffer will hold
+   * @param maxLength - number of samples to allocate, if more than the grid
+   *          needs, so the volume can be reshaped to larger grids
+   */
+  public CompressedSeismicVolume(GridDefinition globalGridDefinition, long maxLength) {
+    super(globalGridDefinition);
+    allocate(Math.max(maxLength, shapeLength()));
+  }
+
+  @Override
+  public void allocate(long maxLength) {
+    tracesPerChunk = Math.max(1, OffHeapSeismicVolume.MAX_CHUNK_SAMPLES / getSampleCount());
+    long chunkLength = (long) tracesPerChunk * getSampleCount();
+    int chunkCount = (int) ((maxLength + chunkLength - 1) / chunkLength);
+    chunks = new short[chunkCount][];
+    long remaining = maxLength;
+    for (int i = 0; i < chunkCount; i++) {
+      int length = (int) Math.min(chunkLength, remaining);
+      chunks[i] = new short[length];
+      remaining -= length;
+    }
+    scales = new float[(int) (maxLength / getSampleCount())];
+    scratchTrace = new float[getSampleCount()];
+    allocatedLength = maxLength;
+  }
+
+  /**
+   * Reshape this volume to hold volumes from a different GridDefinition,
+   * reusing the existing allocation
+   *
+   * @param globalGridDefinition - grid for the volumes this buffer will hold
+   */
+  public void reshape(GridDefinition globalGridDefinition) {
+    if (globalGridDefinition == globalGrid)
+      return;
+    int sampleCount = getSampleCount();
+    setGrids(globalGridDefinition);
+    if (getSampleCount() != sampleCount || shapeLength() > allocatedLength)
+      allocate(Math.max(allocatedLength, shapeLength()));
+  }
+
+  /**
+   * @return number of samples allocated for this volume
+   */
+  public long getAllocatedLength() {
+    return allocatedLength;
+  }
+
+  /**
+   * @param trace - trace index
+   * @return value of one encoded step of the trace
+   */
+  public float getScale(long trace) {
+    return scales[(int) trace];
+  }
+
+  @Override
+  public void getTrace(long trace, float[] trc, int offset) {
+    short[] chunk = chunks[(int) (trace / tracesPerChunk)];
+    int first = (int) (trace % tracesPerChunk) * getSampleCount();
+    float scale = scales[(int) trace];
+    for (int i = 0; i < getSampleCount(); i++) {
+      trc[offset + i] = scale * chunk[first + i];
+    }
+  }
+
+  @Override
+  public void putTrace(long trace, float[] trc, int offset) {
+    short[] chunk = chunks[(int) (trace / tracesPerChunk)];
+    int first = (int) (trace % tracesPerChunk) * getSampleCount();
+    float peak = 0;
+    for (int i = 0; i < getSampleCount(); i++) {
+      peak = Math.max(peak, Math.abs(trc[offset + i]));
+    }
+    float scale = peak / MAX_CODE;
+    scales[(int) trace] = scale;
+    float inverse = (scale == 0 ? 0 : 1 / scale);
+    for (int i = 0; i < getSampleCount(); i++) {
+      chunk[first + i] = (short) Math.round(inverse * trc[offset + i]);
+    }
+  }
+
+  @Override
+  public float getSample(long trace, int sample) {
+    return scales[(int) trace]
+        * chunks[(int) (trace / tracesPerChunk)][(int) (trace % tracesPerChunk) * getSampleCount()
+            + sample];
+  }
+
+  @Override
+  public void putSample(long trace, int sample, float value) {
+    float scale = scales[(int) trace];
+    if (Math.abs(value) > scale * MAX_CODE) {
+      getTrace(trace, scratchTrace, 0);
+      scratchTrace[sample] = value;
+      putTrace(trace, scratchTrace, 0);
+    } else {
+      chunks[(int) (trace / tracesPerChunk)][(int) (trace % tracesPerChunk) * getSampleCount()
+          + sample] = (short) (scale == 0 ? 0 : Math.round(value / scale));
+    }
+  }
+}
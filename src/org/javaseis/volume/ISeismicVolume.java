@@ -28,4 +28,89 @@ public interface ISeismicVolume extends IRegularGrid {
   public void allocate(long maxLength);
 
   public ITraceIterator getTraceIterator();
+
+  /**
+   * @return trace headers of the volume, or null if headers are not held
+   */
+  public TraceHeaders getTraceHeaders();
+
+  /**
+   * @param headers - trace headers to hold with the samples, or null
+   */
+  public void setTraceHeaders(TraceHeaders headers);
+
+  /*
+   * Bulk access. Positions are volume indices, samples are stored with the
+   * first axis varying fastest and getElementCount() values per sample, and
+   * the accessed traces must be local to the calling task. These calls do not
+   * allocate, and the volume may reuse internal buffers, so a volume must not
+   * be accessed by several threads at once.
+   */
+
+  /**
+   * Copy a frame, all traces at one index of the third axis
+   *
+   * @param frame - index on the third axis
+   * @param samples - destination array
+   * @param offset - index in samples of the first value
+   */
+  public void getFrame(int frame, float[] samples, int offset);
+
+  /**
+   * Replace a frame, all traces at one index of the third axis
+   *
+   * @param frame - index on the third axis
+   * @param samples - source array
+   * @param offset - index in samples of the first value
+   */
+  public void putFrame(int frame, float[] samples, int offset);
+
+  /**
+   * Copy consecutive traces of a frame
+   *
+   * @param frame - index on the third axis
+   * @param trace - index on the second axis of the first trace
+   * @param count - number of traces
+   * @param samples - destination array
+   * @param offset - index in samples of the first value
+   */
+  public void getTraces(int frame, int trace, int count, float[] samples, int offset);
+
+  /**
+   * Replace consecutive traces of a frame
+   *
+   * @param frame - index on the third axis
+   * @param trace - index on the second axis of the first trace
+   * @param count - number of traces
+   * @param samples - source array
+   * @param offset - index in samples of the first value
+   */
+  public void putTraces(int frame, int trace, int count, float[] samples, int offset);
+
+  /**
+   * Copy a strided block of samples
+   *
+   * @param start - volume position of the first sample
+   * @param lengths - number of samples along each axis
+   * @param strides - index increment along each axis
+   * @param samples - destination array
+   * @param offset - index in samples of the first value
+   */
+  public void getBlock(int[] start, int[] lengths, int[] strides, float[] samples, int offset);
+
+  /**
+   * Replace a strided block of samples
+   *
+   * @param start - volume position of the first sample
+   * @param lengths - number of samples along each axis
+   * @param strides - index increment along each axis
+   * @param samples - source array
+   * @param offset - index in samples of the first value
+   */
+  public void putBlock(int[] start, int[] lengths, int[] strides, float[] samples, int offset);
+
+  /**
+   * @return cursor over the local traces of this volume
+   */
+  public VolumeCursor getCursor();
 }
\ No newline at end of file
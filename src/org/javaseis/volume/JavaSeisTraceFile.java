@@ -0,0 +1,535 @@
+package org.javaseis.volume;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.javaseis.util.SeisException;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Direct access to the trace data of a JavaSeis dataset, for volumes that are
+ * not held in a DistributedArray. Whole volumes are transferred between the
+ * trace extent files and a volume's own storage with FileChannel calls, so
+ * off-heap volumes are read and written without a copy through the heap.
+ * <p>
+ * Datasets must use the FLOAT trace format and store every trace at its
+ * position, without a trace map. Traces in extents that were never written,
+ * as in sparse datasets, read as zeros. Writing a volume overwrites its
+ * samples without changing trace headers or the trace map. Trace headers are
+ * read and written separately, as columns of the numeric header fields, with
+ * readHeaders and writeHeaders.
+ */
+public class JavaSeisTraceFile {
+
+  /** Samples moved per transfer when a volume cannot expose raw storage */
+  private static final int STAGING_BYTES = 1 << 20;
+
+  /** Largest mapping of an extent */
+  static final long MAX_WINDOW_BYTES = 1L << 30;
+
+  private File dataset;
+
+  private List<File> folders = new ArrayList<File>();
+
+  private long[] axisLengths;
+
+  private ByteOrder order;
+
+  private boolean writable;
+
+  private ExtentSet traceExtents;
+
+  /** Trace header extents, null if the dataset has none */
+  private ExtentSet headerExtents;
+
+  private List<TraceHeaders.Field> headerFields;
+
+  private int headerLength;
+
+  /** Mapped windows of the extents, by window index */
+  private Map<Long, MappedByteBuffer> windows = new HashMap<Long, MappedByteBuffer>();
+
+  /** Staging buffer for volumes without raw storage and for headers, made once */
+  private ByteBuffer staging;
+
+  private float[] stagingTrace;
+
+  /**
+   * Open the trace data of a dataset
+   *
+   * @param fileSystem - file system holding the dataset, as for
+   *          FileSystemIOService
+   * @param path - dataset path within the file system
+   * @param mode - "r" to read volumes, "rw" to also write them
+   * @throws SeisException if the dataset properties cannot be read or the
+   *           trace format is not supported
+   */
+  public JavaSeisTraceFile(String fileSystem, String path, String mode) throws SeisException {
+    dataset = new File(fileSystem, path);
+    writable = mode.contains("w");
+    Map<String, String> properties = readProperties(new File(dataset, "FileProperties.xml"));
+    Map<String, String> traceFile = readProperties(new File(dataset, "TraceFile.xml"));
+    String format = properties.get("TraceFormat");
+    if (!"FLOAT".equals(format))
+      throw new SeisException("Unsupported trace format " + format + " in " + dataset);
+    order = ("BIG_ENDIAN".equals(properties.get("ByteOrder")) ? ByteOrder.BIG_ENDIAN
+        : ByteOrder.LITTLE_ENDIAN);
+    String[] lengths = properties.get("AxisLengths").trim().split("\\s+");
+    axisLengths = new long[lengths.length];
+    for (int i = 0; i < lengths.length; i++) {
+      axisLengths[i] = Long.parseLong(lengths[i]);
+    }
+    traceExtents = new ExtentSet(traceFile);
+    File headerFile = new File(dataset, "TraceHeaders.xml");
+    if (headerFile.exists())
+      headerExtents = new ExtentSet(readProperties(headerFile));
+    String headerBytes = properties.get("HeaderLengthBytes");
+    headerLength = (headerBytes == null ? 0 : Integer.parseInt(headerBytes.trim()));
+    headerFields = readHeaderFields(new File(dataset, "FileProperties.xml"));
+    // Extents are in the dataset folder or in the secondary folders
+    folders.add(dataset);
+    File virtualFolders = new File(dataset, "VirtualFolders.xml");
+    if (virtualFolders.exists()) {
+      for (Map.Entry<String, String> entry : readProperties(virtualFolders).entrySet()) {
+        if (entry.getKey().startsWith("FILESYSTEM-"))
+          folders.add(new File(entry.getValue().trim().split(",")[0], path));
+      }
+    }
+  }
+
+  /**
+   * Read the name and value of every par element in a JavaSeis XML file
+   */
+  static Map<String, String> readProperties(File file) throws SeisException {
+    Map<String, String> properties = new HashMap<String, String>();
+    try {
+      NodeList pars = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(file)
+          .getElementsByTagName("par");
+      for (int i = 0; i < pars.getLength(); i++) {
+        Element par = (Element) pars.item(i);
+        properties.put(par.getAttribute("name"), par.getTextContent().trim());
+      }
+    } catch (Exception e) {
+      SeisException ex = new SeisException("Could not read " + file);
+      ex.initCause(e);
+      throw ex;
+    }
+    return properties;
+  }
+
+  /**
+   * Read the definitions of the trace header fields with numeric formats
+   */
+  static List<TraceHeaders.Field> readHeaderFields(File file) throws SeisException {
+    List<TraceHeaders.Field> fields = new ArrayList<TraceHeaders.Field>();
+    try {
+      NodeList parsets = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(file)
+          .getElementsByTagName("parset");
+      for (int i = 0; i < parsets.getLength(); i++) {
+        Element entry = (Element) parsets.item(i);
+        if (!(entry.getParentNode() instanceof Element)
+            || !"TraceProperties".equals(((Element) entry.getParentNode()).getAttribute("name")))
+          continue;
+        Map<String, String> values = new HashMap<String, String>();
+        NodeList pars = entry.getElementsByTagName("par");
+        for (int j = 0; j < pars.getLength(); j++) {
+          Element par = (Element) pars.item(j);
+          values.put(par.getAttribute("name"), par.getTextContent().trim());
+        }
+        String format = values.get("format");
+        if (TraceHeaders.isSupported(format))
+          fields.add(new TraceHeaders.Field(values.get("label"), format, Integer.parseInt(values
+              .get("elementCount")), Integer.parseInt(values.get("byteOffset"))));
+      }
+    } catch (Exception e) {
+      SeisException ex = new SeisException("Could not read trace properties from " + file);
+      ex.initCause(e);
+      throw ex;
+    }
+    return fields;
+  }
+
+  /** @return axis lengths of the dataset */
+  public long[] getAxisLengths() {
+    return axisLengths.clone();
+  }
+
+  /** @return byte order of the trace samples */
+  public ByteOrder getByteOrder() {
+    return order;
+  }
+
+  /** @return size in bytes of each trace extent file */
+  public long getExtentSize() {
+    return traceExtents.size;
+  }
+
+  /** @return number of traces in each volume */
+  public long getTracesPerVolume() {
+    return axisLengths[1] * axisLengths[2];
+  }
+
+  /** @return size in bytes of each trace */
+  public int getTraceBytes() {
+    return 4 * (int) axisLengths[0];
+  }
+
+  /**
+   * @param volumeIndex - index of the volume, with the fourth axis varying
+   *          fastest
+   * @return byte offset of the volume in the trace data
+   */
+  public long volumeOffset(int volumeIndex) {
+    return volumeIndex * getTracesPerVolume() * getTraceBytes();
+  }
+
+  /**
+   * Return the file that holds an extent of the trace data
+   *
+   * @param extent - extent index
+   * @return extent file, which may not exist if nothing was written to it
+   */
+  public File extentFile(int extent) {
+    return traceExtents.file(extent);
+  }
+
+  /**
+   * Read a volume into a trace volume
+   *
+   * @param volumeIndex - index of the volume in the dataset
+   * @param volume - volume with the shape of the dataset volumes
+   * @throws SeisException if the volume does not match or cannot be read
+   */
+  public void read(int volumeIndex, AbstractTraceVolume volume) throws SeisException {
+    if (volume instanceof MappedSeismicVolume)
+      ((MappedSeismicVolume) volume).map(this, volumeIndex);
+    else
+      transfer(volumeIndex, volume, false);
+  }
+
+  /**
+   * Overwrite the samples of a volume in the dataset
+   *
+   * @param volumeIndex - index of the volume in the dataset
+   * @param volume - volume with the shape of the dataset volumes
+   * @throws SeisException if the volume does not match or cannot be written
+   */
+  public void write(int volumeIndex, AbstractTraceVolume volume) throws SeisException {
+    if (!writable)
+      throw new SeisException("Trace file for " + dataset + " was not opened for writing");
+    transfer(volumeIndex, volume, true);
+  }
+
+  private void transfer(int volumeIndex, AbstractTraceVolume volume, boolean write)
+      throws SeisException {
+    if (volume.getSampleCount() != axisLengths[0] || volume.getTraceCount() != getTracesPerVolume())
+      throw new SeisException("Volume shape does not match dataset " + dataset);
+    long offset = volumeOffset(volumeIndex);
+    long traceCount = volume.getTraceCount();
+    int traceBytes = getTraceBytes();
+    try {
+      if (!write)
+        volume.setByteOrder(order);
+      long trace0 = 0;
+      while (trace0 < traceCount) {
+        ByteBuffer buffer = volume.traceBuffer(trace0, traceCount - trace0);
+        if (buffer != null && buffer.order() != order && write)
+          buffer = null;
+        if (buffer == null) {
+          // The volume does not hold raw samples, so go through a staging buffer
+          ByteBuffer staging = staging();
+          float[] trace = stagingTrace;
+          int count = (int) Math.min(traceCount - trace0, staging.capacity() / traceBytes);
+          staging.clear().limit(count * traceBytes);
+          FloatBuffer samples = staging.duplicate().order(order).asFloatBuffer();
+          if (write) {
+            for (int i = 0; i < count; i++) {
+              volume.getTrace(trace0 + i, trace);
+              samples.put(trace);
+            }
+            traceExtents.transfer(staging, offset, true);
+          } else {
+            traceExtents.transfer(staging, offset, false);
+            for (int i = 0; i < count; i++) {
+              samples.get(trace);
+              volume.putTrace(trace0 + i, trace);
+            }
+          }
+          trace0 += count;
+          offset += (long) count * traceBytes;
+        } else {
+          int bytes = buffer.remaining();
+          traceExtents.transfer(buffer, offset, write);
+          trace0 += bytes / traceBytes;
+          offset += bytes;
+        }
+      }
+    } catch (IOException e) {
+      SeisException ex = new SeisException("Could not " + (write ? "write" : "read") + " volume "
+          + volumeIndex + " of " + dataset);
+      ex.initCause(e);
+      throw ex;
+    }
+  }
+
+  /**
+   * @return true if the dataset has trace headers that can be read
+   */
+  public boolean hasHeaders() {
+    return headerExtents != null && headerLength > 0;
+  }
+
+  /**
+   * Create columns for the numeric trace header fields of one volume
+   *
+   * @return empty headers for a volume of this dataset
+   */
+  public TraceHeaders createHeaders() {
+    return new TraceHeaders(headerFields, getTracesPerVolume());
+  }
+
+  /**
+   * Read the trace headers of a volume
+   *
+   * @param volumeIndex - index of the volume in the dataset
+   * @param headers - headers created by createHeaders
+   * @throws SeisException if the dataset has no headers or they cannot be
+   *           read
+   */
+  public void readHeaders(int volumeIndex, TraceHeaders headers) throws SeisException {
+    transferHeaders(volumeIndex, headers, false);
+  }
+
+  /**
+   * Overwrite the numeric trace header fields of a volume. Other fields keep
+   * their values.
+   *
+   * @param volumeIndex - index of the volume in the dataset
+   * @param headers - headers created by createHeaders
+   * @throws SeisException if the dataset has no headers or they cannot be
+   *           written
+   */
+  public void writeHeaders(int volumeIndex, TraceHeaders headers) throws SeisException {
+    if (!writable)
+      throw new SeisException("Trace file for " + dataset + " was not opened for writing");
+    transferHeaders(volumeIndex, headers, true);
+  }
+
+  private void transferHeaders(int volumeIndex, TraceHeaders headers, boolean write)
+      throws SeisException {
+    if (!hasHeaders())
+      throw new SeisException("Dataset " + dataset + " has no trace headers");
+    if (headers.getTraceCount() != getTracesPerVolume())
+      throw new SeisException("Header count does not match dataset " + dataset);
+    long offset = volumeIndex * getTracesPerVolume() * headerLength;
+    ByteBuffer staging = staging();
+    try {
+      int trace0 = 0;
+      while (trace0 < headers.getTraceCount()) {
+        int count = Math.min(headers.getTraceCount() - trace0, staging.capacity() / headerLength);
+        staging.clear().limit(count * headerLength);
+        // Writes read the records first so fields without columns are kept
+        headerExtents.transfer(staging, offset, false);
+        if (write) {
+          headers.encode(staging, headerLength, trace0, count);
+          headerExtents.transfer(staging, offset, true);
+        } else {
+          headers.decode(staging, headerLength, trace0, count);
+        }
+        trace0 += count;
+        offset += (long) count * headerLength;
+      }
+    } catch (IOException e) {
+      SeisException ex = new SeisException("Could not " + (write ? "write" : "read")
+          + " headers of volume " + volumeIndex + " of " + dataset);
+      ex.initCause(e);
+      throw ex;
+    }
+  }
+
+  /**
+   * @return staging buffer that holds at least one trace and one header
+   *         record, in the byte order of the dataset
+   */
+  private ByteBuffer staging() {
+    if (staging == null) {
+      staging = ByteBuffer.allocateDirect(Math.max(STAGING_BYTES, Math.max(getTraceBytes(),
+          headerLength))).order(order);
+      stagingTrace = new float[(int) axisLengths[0]];
+    }
+    return staging;
+  }
+
+  /** @return size of the mapped windows of each extent */
+  long windowBytes() {
+    return Math.min(traceExtents.size, MAX_WINDOW_BYTES);
+  }
+
+  /**
+   * Return a read only mapping of the window of the trace data that holds a
+   * byte offset. Windows never cross extents and are mapped once. A window
+   * ends early where its extent file ends.
+   *
+   * @param offset - byte offset in the trace data
+   * @return mapping that starts at windowStart(offset), or null if the extent
+   *         file does not exist or ends before the window
+   * @throws IOException if the extent cannot be mapped
+   */
+  MappedByteBuffer window(long offset) throws IOException {
+    long extentSize = traceExtents.size;
+    long windowsPerExtent = (extentSize + windowBytes() - 1) / windowBytes();
+    int extent = (int) (offset / extentSize);
+    long windowIndex = extent * windowsPerExtent + (offset % extentSize) / windowBytes();
+    MappedByteBuffer window = windows.get(windowIndex);
+    if (window == null) {
+      if (!traceExtents.file(extent).exists())
+        return null;
+      FileChannel channel = traceExtents.channel(extent);
+      long start = windowStart(offset) - (long) extent * extentSize;
+      long length = Math.min(windowBytes(), Math.min(extentSize, channel.size()) - start);
+      if (length <= 0)
+        return null;
+      window = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+      windows.put(windowIndex, window);
+    }
+    return window;
+  }
+
+  /**
+   * @param offset - byte offset in the trace data
+   * @return offset of the start of the window that holds it
+   */
+  long windowStart(long offset) {
+    long extentStart = offset / traceExtents.size * traceExtents.size;
+    return extentStart + (offset - extentStart) / windowBytes() * windowBytes();
+  }
+
+  /**
+   * @param offset - byte offset in the trace data
+   * @return byte offset just past the end of the window that holds offset
+   */
+  long windowEnd(long offset) {
+    long extentEnd = (offset / traceExtents.size + 1) * traceExtents.size;
+    return Math.min(extentEnd, windowStart(offset) + windowBytes());
+  }
+
+  /**
+   * Close the extent files
+   *
+   * @throws SeisException if a file cannot be closed
+   */
+  public void close() throws SeisException {
+    try {
+      traceExtents.close();
+      if (headerExtents != null)
+        headerExtents.close();
+    } catch (IOException e) {
+      SeisException ex = new SeisException("Could not close trace file for " + dataset);
+      ex.initCause(e);
+      throw ex;
+    } finally {
+      windows.clear();
+    }
+  }
+
+  /**
+   * Extent files of one kind of data, trace samples or trace headers
+   */
+  private class ExtentSet {
+
+    final long size;
+
+    final String name;
+
+    private FileChannel[] channels = new FileChannel[0];
+
+    /**
+     * @param properties - contents of the extent description file
+     */
+    ExtentSet(Map<String, String> properties) {
+      size = Long.parseLong(properties.get("VFIO_EXTSIZE").trim());
+      name = properties.get("VFIO_EXTNAME").trim();
+    }
+
+    /**
+     * @return file that holds an extent, which may not exist if nothing was
+     *         written to it
+     */
+    File file(int extent) {
+      for (File folder : folders) {
+        File file = new File(folder, name + extent);
+        if (file.exists())
+          return file;
+      }
+      return new File(dataset, name + extent);
+    }
+
+    FileChannel channel(int extent) throws IOException {
+      if (extent >= channels.length) {
+        FileChannel[] grown = new FileChannel[extent + 1];
+        System.arraycopy(channels, 0, grown, 0, channels.length);
+        channels = grown;
+      }
+      if (channels[extent] == null)
+        channels[extent] = new RandomAccessFile(file(extent), writable ? "rw" : "r").getChannel();
+      return channels[extent];
+    }
+
+    /**
+     * Move the remaining bytes of a buffer to or from the data, splitting the
+     * transfer at extent boundaries. Reads from extent files that do not
+     * exist, or past their end, return zeros, as for traces that were never
+     * written.
+     */
+    void transfer(ByteBuffer buffer, long offset, boolean write) throws IOException {
+      ByteBuffer part = buffer.duplicate();
+      while (part.position() < buffer.limit()) {
+        int extent = (int) (offset / size);
+        long position = offset % size;
+        part.limit((int) Math.min(buffer.limit(), part.position() + size - position));
+        if (!write && !file(extent).exists()) {
+          position += part.remaining();
+          while (part.hasRemaining()) {
+            part.put((byte) 0);
+          }
+        }
+        FileChannel channel = (part.hasRemaining() ? channel(extent) : null);
+        while (part.hasRemaining()) {
+          int count = (write ? channel.write(part, position) : channel.read(part, position));
+          if (count < 0) {
+            while (part.hasRemaining()) {
+              part.put((byte) 0);
+            }
+            break;
+          }
+          position += count;
+        }
+        offset = (long) extent * size + position;
+      }
+    }
+
+    void close() throws IOException {
+      try {
+        for (FileChannel channel : channels) {
+          if (channel != null)
+            channel.close();
+        }
+      } finally {
+        channels = new FileChannel[0];
+      }
+    }
+  }
+}
@@ -0,0 +1,186 @@
+package org.javaseis.volume;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ReadOnlyBufferException;
+
+import org.javaseis.grid.GridDefinition;
+import org.javaseis.util.SeisException;
+
+/**
+ * Read only volume that views the trace extents of a JavaSeis dataset through
+ * memory mapped windows. Reading a volume only points the view at the
+ * volume's traces, so scanning tools read samples straight from the page cache
+ * and the volume uses no heap for samples. Traces that cross an extent
+ * boundary are split over two windows and assembled when they are read.
+ * Traces in extents that were never written are held as zeros on the heap.
+ * <p>
+ * Volumes are read with JavaSeisTraceFile.read. Writing samples throws
+ * ReadOnlyBufferException.
+ */
+public class MappedSeismicVolume extends AbstractTraceVolume {
+
+  /** Sample views of the parts of the volume in each window */
+  private FloatBuffer[] segments = new FloatBuffer[0];
+
+  /** Index of the first volume sample in each segment */
+  private long[] segmentStarts = new long[0];
+
+  private ByteBuffer[] segmentBytes = new ByteBuffer[0];
+
+  /** Segment holding the last sample accessed */
+  private int lastSegment;
+
+  public MappedSeismicVolume(GridDefinition globalGridDefinition) {
+    super(globalGridDefinition);
+  }
+
+  /**
+   * Nothing is allocated, samples stay in the mapped files
+   */
+  @Override
+  public void allocate(long maxLength) {
+  }
+
+  /**
+   * Point this volume at a volume of a dataset
+   *
+   * @param file - trace file of the dataset
+   * @param volumeIndex - index of the volume in the dataset
+   * @throws SeisException if the volume does not match or cannot be mapped
+   */
+  void map(JavaSeisTraceFile file, int volumeIndex) throws SeisException {
+    if (getSampleCount() != file.getAxisLengths()[0]
+        || getTraceCount() != file.getTracesPerVolume())
+      throw new SeisException("Volume shape does not match dataset");
+    ByteOrder order = file.getByteOrder();
+    long offset = file.volumeOffset(volumeIndex);
+    long remaining = getTraceCount() * file.getTraceBytes();
+    // A window may hold a mapped part and a part that was never written
+    int count = 2 * ((int) ((remaining + file.windowBytes() - 1) / file.windowBytes()) + 1);
+    FloatBuffer[] views = new FloatBuffer[count];
+    ByteBuffer[] bytes = new ByteBuffer[count];
+    long[] starts = new long[count];
+    int n = 0;
+    long sample = 0;
+    try {
+      while (remaining > 0) {
+        ByteBuffer window = file.window(offset);
+        int position = (int) (offset - file.windowStart(offset));
+        int length;
+        if (window != null && position < window.capacity()) {
+          length = (int) Math.min(remaining, window.capacity() - position);
+          window = window.duplicate();
+          window.limit(position + length).position(position);
+          bytes[n] = window.slice().order(order);
+        } else {
+          // Traces that were never written read as zeros, up to the window end
+          length = (int) Math.min(remaining, file.windowEnd(offset) - offset);
+          bytes[n] = ByteBuffer.allocate(length).asReadOnlyBuffer().order(order);
+        }
+        views[n] = bytes[n].asFloatBuffer();
+        starts[n] = sample;
+        sample += length / 4;
+        offset += length;
+        remaining -= length;
+        n++;
+      }
+    } catch (IOException e) {
+      SeisException ex = new SeisException("Could not map volume " + volumeIndex);
+      ex.initCause(e);
+      throw ex;
+    }
+    segments = new FloatBuffer[n];
+    segmentBytes = new ByteBuffer[n];
+    segmentStarts = new long[n];
+    System.arraycopy(views, 0, segments, 0, n);
+    System.arraycopy(bytes, 0, segmentBytes, 0, n);
+    System.arraycopy(starts, 0, segmentStarts, 0, n);
+    lastSegment = 0;
+  }
+
+  /**
+   * @return index of the segment that holds a volume sample
+   */
+  private int segment(long index) {
+    int k = lastSegment;
+    while (index < segmentStarts[k]) {
+      k--;
+    }
+    while (k + 1 < segmentStarts.length && index >= segmentStarts[k + 1]) {
+      k++;
+    }
+    lastSegment = k;
+    return k;
+  }
+
+  /**
+   * Return a view of a trace in the mapped file, without copying it
+   *
+   * @param trace - trace index
+   * @return read only view of the trace samples, or null if the trace crosses
+   *         an extent boundary
+   */
+  public FloatBuffer getTraceBuffer(long trace) {
+    long index = trace * getSampleCount();
+    int k = segment(index);
+    long end = index + getSampleCount();
+    if (k + 1 < segmentStarts.length && end > segmentStarts[k + 1])
+      return null;
+    FloatBuffer view = segments[k].duplicate();
+    int first = (int) (index - segmentStarts[k]);
+    view.limit(first + getSampleCount()).position(first);
+    return view.slice();
+  }
+
+  @Override
+  public ByteBuffer traceBuffer(long trace, long count) {
+    long index = trace * getSampleCount();
+    int k = segment(index);
+    int first = (int) (index - segmentStarts[k]);
+    int traces = (int) Math.min(count, (segments[k].capacity() - first) / getSampleCount());
+    if (traces == 0)
+      return null;
+    ByteBuffer view = segmentBytes[k].duplicate().order(segmentBytes[k].order());
+    view.limit(4 * (first + traces * getSampleCount())).position(4 * first);
+    return view;
+  }
+
+  @Override
+  public void getTrace(long trace, float[] trc, int offset) {
+    getTraceRun(trace, 0, getSampleCount(), trc, offset);
+  }
+
+  @Override
+  void getTraceRun(long trace, int sample, int count, float[] trc, int offset) {
+    long index = trace * getSampleCount() + sample;
+    int done = 0;
+    while (done < count) {
+      int k = segment(index + done);
+      FloatBuffer view = segments[k].duplicate();
+      view.position((int) (index + done - segmentStarts[k]));
+      int length = Math.min(count - done, view.remaining());
+      view.get(trc, offset + done, length);
+      done += length;
+    }
+  }
+
+  @Override
+  public void putTrace(long trace, float[] trc, int offset) {
+    throw new ReadOnlyBufferException();
+  }
+
+  @Override
+  public float getSample(long trace, int sample) {
+    long index = trace * getSampleCount() + sample;
+    int k = segment(index);
+    return segments[k].get((int) (index - segmentStarts[k]));
+  }
+
+  @Override
+  public void putSample(long trace, int sample, float value) {
+    throw new ReadOnlyBufferException();
+  }
+}
@@ -0,0 +1,164 @@
+package org.javaseis.volume;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import org.javaseis.grid.GridDefinition;
+
+/**
+ * Volume held in direct memory outside the Java heap. Samples are stored in
+ * chunks of whole traces, each under 2 GB, so a volume can be larger than a
+ * Java array and adds nothing to garbage collection pauses. The chunks are
+ * read and written by JavaSeisTraceFile without a copy through the heap.
+ */
+public class OffHeapSeismicVolume extends AbstractTraceVolume {
+
+  /** Largest chunk, in samples */
+  static final int MAX_CHUNK_SAMPLES = 1 << 28;
+
+  private ByteBuffer[] chunks;
+
+  private FloatBuffer[] samples;
+
+  private int tracesPerChunk;
+
+  private long allocatedLength;
+
+  private ByteOrder order = ByteOrder.nativeOrder();
+
+  public OffHeapSeismicVolume(GridDefinition globalGridDefinition) {
+    this(globalGridDefinition, 0);
+  }
+
+  /**
+   * @param globalGridDefinition - grid for the volumes this buffer will hold
+   * @param maxLength - number of samples to allocate, if more than the grid
+   *          needs, so the volume can be reshaped to larger grids
+   */
+  public OffHeapSeismicVolume(GridDefinition globalGridDefinition, long maxLength) {
+    super(globalGridDefinition);
+    allocate(Math.max(maxLength, shapeLength()));
+  }
+
+  @Override
+  public void allocate(long maxLength) {
+    tracesPerChunk = Math.max(1, MAX_CHUNK_SAMPLES / getSampleCount());
+    long chunkLength = (long) tracesPerChunk * getSampleCount();
+    int chunkCount = (int) ((maxLength + chunkLength - 1) / chunkLength);
+    chunks = new ByteBuffer[chunkCount];
+    long remaining = maxLength;
+    for (int i = 0; i < chunkCount; i++) {
+      int length = (int) Math.min(chunkLength, remaining);
+      chunks[i] = ByteBuffer.allocateDirect(length * 4);
+      remaining -= length;
+    }
+    allocatedLength = maxLength;
+    setByteOrder(order);
+  }
+
+  /**
+   * Reshape this volume to hold volumes from a different GridDefinition,
+   * reusing the existing allocation
+   *
+   * @param globalGridDefinition - grid for the volumes this buffer will hold
+   */
+  public void reshape(GridDefinition globalGridDefinition) {
+    if (globalGridDefinition == globalGrid)
+      return;
+    int sampleCount = getSampleCount();
+    setGrids(globalGridDefinition);
+    if (getSampleCount() != sampleCount || shapeLength() > allocatedLength)
+      allocate(Math.max(allocatedLength, shapeLength()));
+  }
+
+  /**
+   * @return number of samples allocated for this volume
+   */
+  public long getAllocatedLength() {
+    return allocatedLength;
+  }
+
+  @Override
+  public void setByteOrder(ByteOrder byteOrder) {
+    order = byteOrder;
+    samples = new FloatBuffer[chunks.length];
+    for (int i = 0; i < chunks.length; i++) {
+      samples[i] = chunks[i].order(order).asFloatBuffer();
+    }
+  }
+
+  @Override
+  public ByteBuffer traceBuffer(long trace, long count) {
+    int chunk = (int) (trace / tracesPerChunk);
+    int first = (int) (trace % tracesPerChunk);
+    int traceCount = (int) Math.min(count, tracesPerChunk - first);
+    int traceBytes = 4 * getSampleCount();
+    ByteBuffer buffer = chunks[chunk].duplicate().order(order);
+    buffer.limit(Math.min(buffer.capacity(), (first + traceCount) * traceBytes));
+    buffer.position(first * traceBytes);
+    return buffer;
+  }
+
+  @Override
+  public void getTrace(long trace, float[] trc, int offset) {
+    FloatBuffer chunk = samples[(int) (trace / tracesPerChunk)].duplicate();
+    chunk.position((int) (trace % tracesPerChunk) * getSampleCount());
+    chunk.get(trc, offset, getSampleCount());
+  }
+
+  @Override
+  public void putTrace(long trace, float[] trc, int offset) {
+    FloatBuffer chunk = samples[(int) (trace / tracesPerChunk)].duplicate();
+    chunk.position((int) (trace % tracesPerChunk) * getSampleCount());
+    chunk.put(trc, offset, getSampleCount());
+  }
+
+  @Override
+  public void getTraces(int frame, int trace, int count, float[] trc, int offset) {
+    // Traces in the same chunk are contiguous, so copy them together
+    long first = trace + (long) volumeShape[1] * frame;
+    while (count > 0) {
+      int inChunk = (int) Math.min(count, tracesPerChunk - first % tracesPerChunk);
+      FloatBuffer chunk = samples[(int) (first / tracesPerChunk)].duplicate();
+      chunk.position((int) (first % tracesPerChunk) * getSampleCount());
+      chunk.get(trc, offset, inChunk * getSampleCount());
+      first += inChunk;
+      offset += inChunk * getSampleCount();
+      count -= inChunk;
+    }
+  }
+
+  @Override
+  public void putTraces(int frame, int trace, int count, float[] trc, int offset) {
+    long first = trace + (long) volumeShape[1] * frame;
+    while (count > 0) {
+      int inChunk = (int) Math.min(count, tracesPerChunk - first % tracesPerChunk);
+      FloatBuffer chunk = samples[(int) (first / tracesPerChunk)].duplicate();
+      chunk.position((int) (first % tracesPerChunk) * getSampleCount());
+      chunk.put(trc, offset, inChunk * getSampleCount());
+      first += inChunk;
+      offset += inChunk * getSampleCount();
+      count -= inChunk;
+    }
+  }
+
+  @Override
+  void getTraceRun(long trace, int sample, int count, float[] trc, int offset) {
+    FloatBuffer chunk = samples[(int) (trace / tracesPerChunk)].duplicate();
+    chunk.position((int) (trace % tracesPerChunk) * getSampleCount() + sample);
+    chunk.get(trc, offset, count);
+  }
+
+  @Override
+  public float getSample(long trace, int sample) {
+    return samples[(int) (trace / tracesPerChunk)].get((int) (trace % tracesPerChunk)
+        * getSampleCount() + sample);
+  }
+
+  @Override
+  public void putSample(long trace, int sample, float value) {
+    samples[(int) (trace / tracesPerChunk)].put((int) (trace % tracesPerChunk) * getSampleCount()
+        + sample, value);
+  }
+}
@@ -1,5 +1,8 @@
 package org.javaseis.volume;
 
+import java.lang.reflect.Array;
+import java.util.Arrays;
+
 import org.javaseis.array.ElementType;
 import org.javaseis.grid.BinGrid;
 import org.javaseis.grid.GridDefinition;
@@ -9,6 +12,7 @@ import beta.javaseis.array.ITraceIterator;
 import beta.javaseis.distributed.Decomposition;
 import beta.javaseis.distributed.DistributedArray;
 import beta.javaseis.parallel.IParallelContext;
+import beta.javaseis.parallel.SharedMap;
 import beta.javaseis.regulargrid.IRegularGrid;
 import beta.javaseis.regulargrid.OrientationType;
 import beta.javaseis.regulargrid.RegularGrid;
@@ -34,8 +38,32 @@ public class SeismicVolume implements ISeismicVolume, IRegularGrid {
 
   int[] volumeShape;
 
+  long allocatedLength;
+
   IParallelContext pc;
 
+  TraceHeaders traceHeaders;
+
+  /**
+   * Trace buffer and position reused by the bulk accessors. The buffer is an
+   * array of the element class, converted to and from float.
+   */
+  private Object scratchTrace;
+
+  private final int[] tracePosition = new int[3];
+
+  /** Number of frames held from each neighbouring task */
+  private int haloWidth;
+
+  /** Frames below and above the local frames, from the last halo exchange */
+  private float[] lowerHalo, upperHalo;
+
+  /** Global index of the first frame in each halo */
+  private int lowerHaloStart, upperHaloStart;
+
+  /** Number of frames received in each halo */
+  private int lowerHaloFrames, upperHaloFrames;
+
   public SeismicVolume(IParallelContext parallelContext, GridDefinition globalGridDefinition) {
     this(parallelContext, globalGridDefinition, BinGrid.simpleBinGrid(
         (int) globalGridDefinition.getAxisLength(1), (int) globalGridDefinition.getAxisLength(1)),
@@ -63,28 +91,120 @@ public class SeismicVolume implements ISeismicVolume, IRegularGrid {
       BinGrid binGridIn, ElementType volumeElementType, int volumeElementCount, int volumeDecompType,
       long maxLength) {
     pc = parallelContext;
-    AxisDefinition[] axis = new AxisDefinition[3];
-    volumeShape = new int[3];
-    long length = 1;
-    for (int i = 0; i < 3; i++) {
-      axis[i] = globalGridDefinition.getAxis(i);
-      volumeShape[i] = (int) axis[i].getLength();
-      length *= volumeShape[i];
-    }
-    maxLength = Math.max(maxLength, length);
-    localGrid = new GridDefinition(3, axis);
     binGrid = binGridIn;
     elementType = volumeElementType;
     elementCount = volumeElementCount;
     decompType = volumeDecompType;
-    allocate(maxLength);
+    setGrids(globalGridDefinition);
+    allocate(Math.max(maxLength, paddedShapeLength()));
+  }
+
+  private void setGrids(GridDefinition globalGridDefinition) {
+    globalGrid = globalGridDefinition;
+    localGrid = volumeGrid(globalGridDefinition);
+    volumeShape = new int[3];
+    for (int i = 0; i < 3; i++) {
+      volumeShape[i] = (int) localGrid.getAxis(i).getLength();
+    }
+  }
+
+  /**
+   * Return the GridDefinition of a single volume from a dataset grid
+   *
+   * @param globalGridDefinition - grid for the dataset
+   * @return grid made of the first three axes of the dataset grid
+   */
+  public static GridDefinition volumeGrid(GridDefinition globalGridDefinition) {
+    AxisDefinition[] axis = new AxisDefinition[3];
+    for (int i = 0; i < 3; i++) {
+      axis[i] = globalGridDefinition.getAxis(i);
+    }
+    return new GridDefinition(3, axis);
+  }
+
+  /**
+   * Return the length a DistributedArray needs to hold volumes from a grid
+   * with a given number of tasks. The last volume axis is split across tasks,
+   * so it is padded to a multiple of the task count.
+   *
+   * @param pc - parallel context the volume is distributed over
+   * @param elementCount - number of elements per sample
+   * @param shape - axis lengths, only the first three are used
+   * @return padded length of the volume
+   */
+  public static long paddedShapeLength(IParallelContext pc, int elementCount, long[] shape) {
+    int[] paddedShape = new int[] { (int) shape[0], (int) shape[1],
+        (int) Decomposition.paddedLength(shape[2], pc.size()) };
+    return DistributedArray.getShapeLength(3, elementCount, paddedShape);
+  }
+
+  private long paddedShapeLength() {
+    return paddedShapeLength(pc, elementCount,
+        new long[] { volumeShape[0], volumeShape[1], volumeShape[2] });
+  }
+
+  /**
+   * @param type - element type of a volume
+   * @return Java primitive class that holds elements of the type
+   */
+  public static Class<?> elementClass(ElementType type) {
+    switch (type) {
+    case BYTE:
+      return byte.class;
+    case SHORT:
+      return short.class;
+    case INT:
+      return int.class;
+    case LONG:
+      return long.class;
+    case FLOAT:
+      return float.class;
+    case DOUBLE:
+      return double.class;
+    default:
+      throw new IllegalArgumentException("Unsupported volume element type " + type);
+    }
   }
 
   @Override
   public void allocate(long maxLength) {
-    volume = new DistributedArray(pc, float.class, 3, elementCount, volumeShape, decompType, maxLength);
+    volume = new DistributedArray(pc, elementClass(elementType), 3, elementCount, volumeShape, decompType, maxLength);
     volume.allocate();
     volumeGrid = new RegularGrid(volume);
+    allocatedLength = maxLength;
+    scratchTrace = null;
+  }
+
+  /**
+   * Reshape this volume to hold volumes from a different GridDefinition,
+   * reusing the existing allocation
+   *
+   * @param globalGridDefinition - grid for the volumes this buffer will hold
+   */
+  public void reshape(GridDefinition globalGridDefinition) {
+    if (globalGridDefinition == globalGrid)
+      return;
+    int[] oldShape = volumeShape;
+    setGrids(globalGridDefinition);
+    if (paddedShapeLength() > allocatedLength)
+      throw new IllegalArgumentException("GridDefinition requires " + paddedShapeLength()
+          + " elements but this volume was allocated with " + allocatedLength);
+    if (!Arrays.equals(oldShape, volumeShape)) {
+      volume.setShape(volumeShape);
+      volumeGrid = new RegularGrid(volume);
+      scratchTrace = null;
+    }
+    // Halos belong to the previous volume, and are sized for its frames
+    if (haloWidth > 0)
+      setHaloWidth(haloWidth);
+  }
+
+  /**
+   * @return number of elements allocated for this volume, which may be larger
+   *         than its current shape
+   */
+  public long getAllocatedLength() {
+    return allocatedLength;
   }
 
   @Override
@@ -188,6 +308,8 @@ public class SeismicVolume implements ISeismicVolume, IRegularGrid {
 
   @Override
   public void copyVolume(ISeismicVolume source) {
+    if (source == this)
+      return;
     if (!source.matches(this))
       throw new IllegalArgumentException("Source volume and this volume do not match");
     this.getDistributedArray().copy(source.getDistributedArray());
@@ -224,4 +346,307 @@ public class SeismicVolume implements ISeismicVolume, IRegularGrid {
   public ITraceIterator getTraceIterator() {
     return volumeGrid.getTraceIterator();
   }
+
+  @Override
+  public TraceHeaders getTraceHeaders() {
+    return traceHeaders;
+  }
+
+  @Override
+  public void setTraceHeaders(TraceHeaders headers) {
+    traceHeaders = headers;
+  }
+
+  private Object scratchTrace() {
+    if (scratchTrace == null)
+      scratchTrace = Array.newInstance(elementClass(elementType), elementCount * volumeShape[0]);
+    return scratchTrace;
+  }
+
+  private void getTrace(int frame, int trace, Object samples) {
+    tracePosition[0] = 0;
+    tracePosition[1] = trace;
+    tracePosition[2] = frame;
+    volume.getTrace(samples, tracePosition);
+  }
+
+  private void putTrace(int frame, int trace, Object samples) {
+    tracePosition[0] = 0;
+    tracePosition[1] = trace;
+    tracePosition[2] = frame;
+    volume.putTrace(samples, tracePosition);
+  }
+
+  /**
+   * Copy elements from a trace buffer to a float array, converting them
+   */
+  private void toFloat(Object trace, int position, float[] samples, int offset, int count) {
+    switch (elementType) {
+    case FLOAT:
+      System.arraycopy(trace, position, samples, offset, count);
+      break;
+    case DOUBLE:
+      double[] d = (double[]) trace;
+      for (int i = 0; i < count; i++)
+        samples[offset + i] = (float) d[position + i];
+      break;
+    case INT:
+      int[] n = (int[]) trace;
+      for (int i = 0; i < count; i++)
+        samples[offset + i] = n[position + i];
+      break;
+    case SHORT:
+      short[] h = (short[]) trace;
+      for (int i = 0; i < count; i++)
+        samples[offset + i] = h[position + i];
+      break;
+    case BYTE:
+      byte[] b = (byte[]) trace;
+      for (int i = 0; i < count; i++)
+        samples[offset + i] = b[position + i];
+      break;
+    default:
+      long[] l = (long[]) trace;
+      for (int i = 0; i < count; i++)
+        samples[offset + i] = l[position + i];
+    }
+  }
+
+  /**
+   * Copy elements from a float array to a trace buffer, rounding them to
+   * integer element types
+   */
+  private void fromFloat(float[] samples, int offset, Object trace, int position, int count) {
+    switch (elementType) {
+    case FLOAT:
+      System.arraycopy(samples, offset, trace, position, count);
+      break;
+    case DOUBLE:
+      double[] d = (double[]) trace;
+      for (int i = 0; i < count; i++)
+        d[position + i] = samples[offset + i];
+      break;
+    case INT:
+      int[] n = (int[]) trace;
+      for (int i = 0; i < count; i++)
+        n[position + i] = Math.round(samples[offset + i]);
+      break;
+    case SHORT:
+      short[] h = (short[]) trace;
+      for (int i = 0; i < count; i++)
+        h[position + i] = (short) Math.round(samples[offset + i]);
+      break;
+    case BYTE:
+      byte[] b = (byte[]) trace;
+      for (int i = 0; i < count; i++)
+        b[position + i] = (byte) Math.round(samples[offset + i]);
+      break;
+    default:
+      long[] l = (long[]) trace;
+      for (int i = 0; i < count; i++)
+        l[position + i] = Math.round((double) samples[offset + i]);
+    }
+  }
+
+  @Override
+  public void getFrame(int frame, float[] samples, int offset) {
+    getTraces(frame, 0, volumeShape[1], samples, offset);
+  }
+
+  @Override
+  public void putFrame(int frame, float[] samples, int offset) {
+    putTraces(frame, 0, volumeShape[1], samples, offset);
+  }
+
+  @Override
+  public void getTraces(int frame, int trace, int count, float[] samples, int offset) {
+    Object trc = scratchTrace();
+    int length = elementCount * volumeShape[0];
+    for (int i = 0; i < count; i++) {
+      getTrace(frame, trace + i, trc);
+      toFloat(trc, 0, samples, offset + i * length, length);
+    }
+  }
+
+  @Override
+  public void putTraces(int frame, int trace, int count, float[] samples, int offset) {
+    Object trc = scratchTrace();
+    int length = elementCount * volumeShape[0];
+    for (int i = 0; i < count; i++) {
+      fromFloat(samples, offset + i * length, trc, 0, length);
+      putTrace(frame, trace + i, trc);
+    }
+  }
+
+  @Override
+  public void getBlock(int[] start, int[] lengths, int[] strides, float[] samples, int offset) {
+    Object trc = scratchTrace();
+    int index = offset;
+    for (int k = 0; k < lengths[2]; k++) {
+      for (int j = 0; j < lengths[1]; j++) {
+        getTrace(start[2] + k * strides[2], start[1] + j * strides[1], trc);
+        for (int i = 0; i < lengths[0]; i++) {
+          toFloat(trc, (start[0] + i * strides[0]) * elementCount, samples, index, elementCount);
+          index += elementCount;
+        }
+      }
+    }
+  }
+
+  @Override
+  public void putBlock(int[] start, int[] lengths, int[] strides, float[] samples, int offset) {
+    Object trc = scratchTrace();
+    int index = offset;
+    for (int k = 0; k < lengths[2]; k++) {
+      for (int j = 0; j < lengths[1]; j++) {
+        int frame = start[2] + k * strides[2];
+        int trace = start[1] + j * strides[1];
+        // Samples outside the block keep their values
+        getTrace(frame, trace, trc);
+        for (int i = 0; i < lengths[0]; i++) {
+          fromFloat(samples, index, trc, (start[0] + i * strides[0]) * elementCount, elementCount);
+          index += elementCount;
+        }
+        putTrace(frame, trace, trc);
+      }
+    }
+  }
+
+  @Override
+  public VolumeCursor getCursor() {
+    return new VolumeCursor(this);
+  }
+
+  /**
+   * Set the number of frames on the decomposed third axis that each task
+   * holds from its neighbours, for stencil operations across task
+   * boundaries. Halos are filled by exchangeHalos, and are emptied and sized
+   * again when the volume is reshaped.
+   *
+   * @param width - number of frames below and above the local frames, at
+   *          most the number of frames each task holds
+   */
+  public void setHaloWidth(int width) {
+    if (width < 0)
+      throw new IllegalArgumentException("Halo width must not be negative: " + width);
+    haloWidth = width;
+    int frameLength = elementCount * volumeShape[0] * volumeShape[1];
+    lowerHalo = new float[width * frameLength];
+    upperHalo = new float[width * frameLength];
+    lowerHaloStart = upperHaloStart = 0;
+    lowerHaloFrames = upperHaloFrames = 0;
+  }
+
+  /**
+   * @return number of frames held from each neighbouring task
+   */
+  public int getHaloWidth() {
+    return haloWidth;
+  }
+
+  /**
+   * Refresh the halos from the current contents of the neighbouring tasks.
+   * This is a collective call. Every task other than the last ones holds the
+   * same number of frames, so halos no wider than that come only from the
+   * tasks of rank one below and one above. Each task publishes its first
+   * frames for the task below and its last frames for the task above. The
+   * parallel context has no point to point transfer, so they are exchanged
+   * with a single SharedMap merge, which gathers every task's boundary frames
+   * on every task, and each task keeps the two addressed to it. Halos are
+   * clipped at the ends of the volume.
+   */
+  public void exchangeHalos() {
+    int localFrames = volumeGrid.getLocalLengths()[2];
+    int firstFrame = (localFrames > 0 ? volumeGrid.localToGlobal(2, 0) : 0);
+    int lastFrame = firstFrame + localFrames - 1;
+    lowerHaloStart = Math.max(0, firstFrame - haloWidth);
+    lowerHaloFrames = firstFrame - lowerHaloStart;
+    upperHaloStart = lastFrame + 1;
+    upperHaloFrames = Math.min(volumeShape[2], upperHaloStart + haloWidth) - upperHaloStart;
+    if (localFrames == 0)
+      lowerHaloFrames = upperHaloFrames = 0;
+    if (haloWidth == 0 || pc.size() == 1)
+      return;
+    int blockFrames = (int) (Decomposition.paddedLength(volumeShape[2], pc.size()) / pc.size());
+    if (haloWidth > blockFrames)
+      throw new IllegalStateException("Halo width " + haloWidth + " is larger than the "
+          + blockFrames + " frames held by each task");
+    int rank = pc.rank();
+    SharedMap boundary = new SharedMap();
+    if (localFrames > 0) {
+      int count = Math.min(haloWidth, localFrames);
+      if (rank > 0)
+        boundary.put(haloKey(rank - 1, true), getFrames(firstFrame, count));
+      if (rank < pc.size() - 1)
+        boundary.put(haloKey(rank + 1, false), getFrames(lastFrame - count + 1, count));
+    }
+    boundary.merge(pc);
+    int frameLength = elementCount * volumeShape[0] * volumeShape[1];
+    if (lowerHaloFrames > 0) {
+      float[] samples = (float[]) boundary.get(haloKey(rank, false));
+      int length = lowerHaloFrames * frameLength;
+      System.arraycopy(samples, samples.length - length, lowerHalo, 0, length);
+    }
+    if (upperHaloFrames > 0) {
+      float[] samples = (float[]) boundary.get(haloKey(rank, true));
+      System.arraycopy(samples, 0, upperHalo, 0, upperHaloFrames * frameLength);
+    }
+  }
+
+  /** @return consecutive frames copied into one array */
+  private float[] getFrames(int first, int count) {
+    int frameLength = elementCount * volumeShape[0] * volumeShape[1];
+    float[] samples = new float[count * frameLength];
+    for (int i = 0; i < count; i++) {
+      getFrame(first + i, samples, i * frameLength);
+    }
+    return samples;
+  }
+
+  /**
+   * @param rank - task the frames are sent to
+   * @param upper - true for frames of its upper halo, false for its lower halo
+   */
+  private static String haloKey(int rank, boolean upper) {
+    return (upper ? "upperHalo" : "lowerHalo") + rank;
+  }
+
+  /**
+   * Copy a frame that is local or held in a halo
+   *
+   * @param frame - index on the third axis
+   * @param samples - destination array
+   * @param offset - index in samples of the first value
+   */
+  public void getHaloFrame(int frame, float[] samples, int offset) {
+    int frameLength = elementCount * volumeShape[0] * volumeShape[1];
+    if (frame >= lowerHaloStart && frame < lowerHaloStart + lowerHaloFrames)
+      System.arraycopy(lowerHalo, (frame - lowerHaloStart) * frameLength, samples, offset,
+          frameLength);
+    else if (frame >= upperHaloStart && frame < upperHaloStart + upperHaloFrames)
+      System.arraycopy(upperHalo, (frame - upperHaloStart) * frameLength, samples, offset,
+          frameLength);
+    else if (volumeGrid.isPositionLocal(new int[] { 0, 0, frame }))
+      getFrame(frame, samples, offset);
+    else
+      throw new IllegalArgumentException("Frame " + frame + " is not local or in a halo");
+  }
+
+  /**
+   * @param position - volume position that is local or held in a halo
+   * @return first element of the sample at the position
+   */
+  public float getHaloSample(int[] position) {
+    int frame = position[2];
+    int index = elementCount * (position[0] + volumeShape[0] * position[1]);
+    int frameLength = elementCount * volumeShape[0] * volumeShape[1];
+    if (frame >= lowerHaloStart && frame < lowerHaloStart + lowerHaloFrames)
+      return lowerHalo[(frame - lowerHaloStart) * frameLength + index];
+    if (frame >= upperHaloStart && frame < upperHaloStart + upperHaloFrames)
+      return upperHalo[(frame - upperHaloStart) * frameLength + index];
+    if (volumeGrid.isPositionLocal(position))
+      return getSample(position);
+    throw new IllegalArgumentException("Position " + Arrays.toString(position)
+        + " is not local or in a halo");
+  }
 }
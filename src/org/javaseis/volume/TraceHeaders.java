@@ -0,0 +1,217 @@
+package org.javaseis.volume;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Trace headers of one volume, stored as one primitive array per header field
+ * and indexed by trace, with the second volume axis varying fastest. Tools
+ * that need a header value scan its column directly, without boxing or an
+ * object per trace. Fields with more than one element store the elements of
+ * each trace together.
+ * <p>
+ * INTEGER and SHORT fields are held in int columns, LONG fields in long
+ * columns, FLOAT fields in float columns and DOUBLE fields in double columns.
+ * Other formats, such as byte strings, are not held.
+ */
+public class TraceHeaders {
+
+  /** Definition of a header field in the trace header record */
+  public static class Field {
+
+    final String label, format;
+
+    final int count, byteOffset;
+
+    /**
+     * @param fieldLabel - field name, such as "GEO_COMP"
+     * @param fieldFormat - JavaSeis format name, such as "INTEGER"
+     * @param elementCount - number of values per trace
+     * @param fieldOffset - offset of the field in the header record
+     */
+    public Field(String fieldLabel, String fieldFormat, int elementCount, int fieldOffset) {
+      label = fieldLabel;
+      format = fieldFormat;
+      count = elementCount;
+      byteOffset = fieldOffset;
+    }
+
+    /** @return field name */
+    public String getLabel() {
+      return label;
+    }
+
+    /** @return JavaSeis format name */
+    public String getFormat() {
+      return format;
+    }
+  }
+
+  private final Map<String, Field> fields = new LinkedHashMap<String, Field>();
+
+  private final Map<String, Object> columns = new LinkedHashMap<String, Object>();
+
+  private final int traceCount;
+
+  /**
+   * @param fieldList - fields to hold, in any supported format
+   * @param tracesPerVolume - number of traces in a volume
+   */
+  public TraceHeaders(List<Field> fieldList, long tracesPerVolume) {
+    traceCount = (int) tracesPerVolume;
+    for (Field field : fieldList) {
+      if (!isSupported(field.format))
+        throw new IllegalArgumentException("Unsupported header format " + field.format + " for "
+            + field.label);
+      int length = traceCount * field.count;
+      Object column;
+      if (field.format.equals("INTEGER") || field.format.equals("SHORT"))
+        column = new int[length];
+      else if (field.format.equals("LONG"))
+        column = new long[length];
+      else if (field.format.equals("FLOAT"))
+        column = new float[length];
+      else
+        column = new double[length];
+      fields.put(field.label, field);
+      columns.put(field.label, column);
+    }
+  }
+
+  /**
+   * @param format - JavaSeis header format name
+   * @return true if fields of the format can be held in a column
+   */
+  public static boolean isSupported(String format) {
+    return "INTEGER".equals(format) || "SHORT".equals(format) || "LONG".equals(format)
+        || "FLOAT".equals(format) || "DOUBLE".equals(format);
+  }
+
+  /** @return number of traces */
+  public int getTraceCount() {
+    return traceCount;
+  }
+
+  /** @return names of the fields held, in record order */
+  public List<String> getLabels() {
+    return Collections.unmodifiableList(new ArrayList<String>(fields.keySet()));
+  }
+
+  /**
+   * @param label - field name
+   * @return true if the field is held
+   */
+  public boolean hasField(String label) {
+    return fields.containsKey(label);
+  }
+
+  private Object column(String label, Class<?> type) {
+    Object column = columns.get(label);
+    if (column == null)
+      throw new IllegalArgumentException("No header field " + label);
+    if (column.getClass() != type)
+      throw new IllegalArgumentException("Header field " + label + " has format "
+          + fields.get(label).format);
+    return column;
+  }
+
+  /**
+   * @param label - name of an INTEGER or SHORT field
+   * @return the column itself, changes are written with the headers
+   */
+  public int[] getIntColumn(String label) {
+    return (int[]) column(label, int[].class);
+  }
+
+  /**
+   * @param label - name of a LONG field
+   * @return the column itself, changes are written with the headers
+   */
+  public long[] getLongColumn(String label) {
+    return (long[]) column(label, long[].class);
+  }
+
+  /**
+   * @param label - name of a FLOAT field
+   * @return the column itself, changes are written with the headers
+   */
+  public float[] getFloatColumn(String label) {
+    return (float[]) column(label, float[].class);
+  }
+
+  /**
+   * @param label - name of a DOUBLE field
+   * @return the column itself, changes are written with the headers
+   */
+  public double[] getDoubleColumn(String label) {
+    return (double[]) column(label, double[].class);
+  }
+
+  /**
+   * Fill the columns from header records
+   *
+   * @param records - records of consecutive traces, from position 0
+   * @param recordLength - bytes in each record
+   * @param firstTrace - trace of the first record
+   * @param count - number of records
+   */
+  void decode(ByteBuffer records, int recordLength, int firstTrace, int count) {
+    for (Field field : fields.values()) {
+      Object column = columns.get(field.label);
+      int values = count * field.count;
+      int first = firstTrace * field.count;
+      for (int v = 0; v < values; v++) {
+        int t = v / field.count;
+        int e = v - t * field.count;
+        int base = t * recordLength + field.byteOffset;
+        if (column instanceof int[]) {
+          ((int[]) column)[first + v] = (field.format.equals("SHORT") ? records.getShort(base + 2
+              * e) : records.getInt(base + 4 * e));
+        } else if (column instanceof long[]) {
+          ((long[]) column)[first + v] = records.getLong(base + 8 * e);
+        } else if (column instanceof float[]) {
+          ((float[]) column)[first + v] = records.getFloat(base + 4 * e);
+        } else {
+          ((double[]) column)[first + v] = records.getDouble(base + 8 * e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Store the columns in header records, leaving other bytes unchanged
+   *
+   * @param records - records of consecutive traces, from position 0
+   * @param recordLength - bytes in each record
+   * @param firstTrace - trace of the first record
+   * @param count - number of records
+   */
+  void encode(ByteBuffer records, int recordLength, int firstTrace, int count) {
+    for (Field field : fields.values()) {
+      Object column = columns.get(field.label);
+      int values = count * field.count;
+      int first = firstTrace * field.count;
+      for (int v = 0; v < values; v++) {
+        int t = v / field.count;
+        int e = v - t * field.count;
+        int base = t * recordLength + field.byteOffset;
+        if (column instanceof int[]) {
+          if (field.format.equals("SHORT"))
+            records.putShort(base + 2 * e, (short) ((int[]) column)[first + v]);
+          else
+            records.putInt(base + 4 * e, ((int[]) column)[first + v]);
+        } else if (column instanceof long[]) {
+          records.putLong(base + 8 * e, ((long[]) column)[first + v]);
+        } else if (column instanceof float[]) {
+          records.putFloat(base + 4 * e, ((float[]) column)[first + v]);
+        } else {
+          records.putDouble(base + 8 * e, ((double[]) column)[first + v]);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,315 @@
+package org.javaseis.volume;
+
+/**
+ * Arithmetic and reduction kernels over traces, frames and the local part of
+ * volumes. Array kernels work on a range of any float array, such as a trace
+ * from an ITraceIterator or a frame from ISeismicVolume.getFrame. Reductions
+ * keep four independent partial results, meant to shorten the dependency
+ * chain of a single accumulator, and the element-wise kernels are simple
+ * counted loops that the JIT compiler may vectorize. Whether either is faster
+ * than a plain loop has not been measured; TraceKernelsBenchmark times them.
+ * <p>
+ * Volume kernels cover the samples local to the calling task, frame by frame.
+ * Results of volume reductions are for the local samples only, so parallel
+ * callers reduce them across tasks.
+ */
+public class TraceKernels {
+
+  private TraceKernels() {
+  }
+
+  /** @return smallest value of a whole array */
+  public static float min(float[] a) {
+    return min(a, 0, a.length);
+  }
+
+  /**
+   * @param a - array
+   * @param offset - first index
+   * @param length - number of values, at least one
+   * @return smallest value in the range
+   */
+  public static float min(float[] a, int offset, int length) {
+    float m0 = a[offset], m1 = m0, m2 = m0, m3 = m0;
+    int end = offset + length;
+    int i = offset;
+    for (; i + 3 < end; i += 4) {
+      m0 = Math.min(m0, a[i]);
+      m1 = Math.min(m1, a[i + 1]);
+      m2 = Math.min(m2, a[i + 2]);
+      m3 = Math.min(m3, a[i + 3]);
+    }
+    for (; i < end; i++) {
+      m0 = Math.min(m0, a[i]);
+    }
+    return Math.min(Math.min(m0, m1), Math.min(m2, m3));
+  }
+
+  /** @return largest value of a whole array */
+  public static float max(float[] a) {
+    return max(a, 0, a.length);
+  }
+
+  /**
+   * @param a - array
+   * @param offset - first index
+   * @param length - number of values, at least one
+   * @return largest value in the range
+   */
+  public static float max(float[] a, int offset, int length) {
+    float m0 = a[offset], m1 = m0, m2 = m0, m3 = m0;
+    int end = offset + length;
+    int i = offset;
+    for (; i + 3 < end; i += 4) {
+      m0 = Math.max(m0, a[i]);
+      m1 = Math.max(m1, a[i + 1]);
+      m2 = Math.max(m2, a[i + 2]);
+      m3 = Math.max(m3, a[i + 3]);
+    }
+    for (; i < end; i++) {
+      m0 = Math.max(m0, a[i]);
+    }
+    return Math.max(Math.max(m0, m1), Math.max(m2, m3));
+  }
+
+  /** @return sum of a whole array */
+  public static double sum(float[] a) {
+    return sum(a, 0, a.length);
+  }
+
+  /**
+   * @param a - array
+   * @param offset - first index
+   * @param length - number of values
+   * @return sum of the range, accumulated in double precision
+   */
+  public static double sum(float[] a, int offset, int length) {
+    double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+    int end = offset + length;
+    int i = offset;
+    for (; i + 3 < end; i += 4) {
+      s0 += a[i];
+      s1 += a[i + 1];
+      s2 += a[i + 2];
+      s3 += a[i + 3];
+    }
+    for (; i < end; i++) {
+      s0 += a[i];
+    }
+    return (s0 + s1) + (s2 + s3);
+  }
+
+  /** @return sum of squares of a whole array */
+  public static double sumOfSquares(float[] a) {
+    return sumOfSquares(a, 0, a.length);
+  }
+
+  /**
+   * @param a - array
+   * @param offset - first index
+   * @param length - number of values
+   * @return sum of the squares of the range, accumulated in double precision
+   */
+  public static double sumOfSquares(float[] a, int offset, int length) {
+    double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+    int end = offset + length;
+    int i = offset;
+    for (; i + 3 < end; i += 4) {
+      s0 += (double) a[i] * a[i];
+      s1 += (double) a[i + 1] * a[i + 1];
+      s2 += (double) a[i + 2] * a[i + 2];
+      s3 += (double) a[i + 3] * a[i + 3];
+    }
+    for (; i < end; i++) {
+      s0 += (double) a[i] * a[i];
+    }
+    return (s0 + s1) + (s2 + s3);
+  }
+
+  /**
+   * Multiply a range by a constant, in place
+   */
+  public static void scale(float[] a, int offset, int length, float factor) {
+    for (int i = offset; i < offset + length; i++) {
+      a[i] *= factor;
+    }
+  }
+
+  /**
+   * Add a range of one array to a range of another, in place
+   *
+   * @param a - array that receives the sum
+   * @param aOffset - first index in a
+   * @param b - array to add
+   * @param bOffset - first index in b
+   * @param length - number of values
+   */
+  public static void add(float[] a, int aOffset, float[] b, int bOffset, int length) {
+    for (int i = 0; i < length; i++) {
+      a[aOffset + i] += b[bOffset + i];
+    }
+  }
+
+  /**
+   * Multiply a range of one array by a range of another, in place
+   *
+   * @param a - array that receives the product
+   * @param aOffset - first index in a
+   * @param b - array to multiply by
+   * @param bOffset - first index in b
+   * @param length - number of values
+   */
+  public static void multiply(float[] a, int aOffset, float[] b, int bOffset, int length) {
+    for (int i = 0; i < length; i++) {
+      a[aOffset + i] *= b[bOffset + i];
+    }
+  }
+
+  /**
+   * Limit a range to lie between two values, in place
+   */
+  public static void clip(float[] a, int offset, int length, float low, float high) {
+    for (int i = offset; i < offset + length; i++) {
+      a[i] = Math.min(high, Math.max(low, a[i]));
+    }
+  }
+
+  /**
+   * Reverse the polarity of a range, in place
+   */
+  public static void reversePolarity(float[] a, int offset, int length) {
+    for (int i = offset; i < offset + length; i++) {
+      a[i] = -a[i];
+    }
+  }
+
+  /**
+   * @return number of values in a frame of a volume
+   */
+  private static int frameLength(ISeismicVolume volume) {
+    int[] lengths = volume.getLengths();
+    return volume.getElementCount() * lengths[0] * lengths[1];
+  }
+
+  /** @return number of frames local to this task */
+  private static int localFrames(ISeismicVolume volume) {
+    return volume.getLocalLengths()[2];
+  }
+
+  /** @return smallest local value of a volume, or +Infinity if none are local */
+  public static float min(ISeismicVolume volume) {
+    float[] frame = new float[frameLength(volume)];
+    float min = Float.POSITIVE_INFINITY;
+    for (int k = 0; k < localFrames(volume); k++) {
+      volume.getFrame(volume.localToGlobal(2, k), frame, 0);
+      min = Math.min(min, min(frame));
+    }
+    return min;
+  }
+
+  /** @return largest local value of a volume, or -Infinity if none are local */
+  public static float max(ISeismicVolume volume) {
+    float[] frame = new float[frameLength(volume)];
+    float max = Float.NEGATIVE_INFINITY;
+    for (int k = 0; k < localFrames(volume); k++) {
+      volume.getFrame(volume.localToGlobal(2, k), frame, 0);
+      max = Math.max(max, max(frame));
+    }
+    return max;
+  }
+
+  /** @return sum of the local values of a volume */
+  public static double sum(ISeismicVolume volume) {
+    float[] frame = new float[frameLength(volume)];
+    double sum = 0;
+    for (int k = 0; k < localFrames(volume); k++) {
+      volume.getFrame(volume.localToGlobal(2, k), frame, 0);
+      sum += sum(frame);
+    }
+    return sum;
+  }
+
+  /** @return sum of the squares of the local values of a volume */
+  public static double sumOfSquares(ISeismicVolume volume) {
+    float[] frame = new float[frameLength(volume)];
+    double sum = 0;
+    for (int k = 0; k < localFrames(volume); k++) {
+      volume.getFrame(volume.localToGlobal(2, k), frame, 0);
+      sum += sumOfSquares(frame);
+    }
+    return sum;
+  }
+
+  /**
+   * Multiply the local values of a volume by a constant
+   */
+  public static void scale(ISeismicVolume volume, float factor) {
+    float[] frame = new float[frameLength(volume)];
+    for (int k = 0; k < localFrames(volume); k++) {
+      int index = volume.localToGlobal(2, k);
+      volume.getFrame(index, frame, 0);
+      scale(frame, 0, frame.length, factor);
+      volume.putFrame(index, frame, 0);
+    }
+  }
+
+  /**
+   * Add the local values of a matching volume to a volume
+   *
+   * @param volume - volume that receives the sum
+   * @param source - volume to add
+   */
+  public static void add(ISeismicVolume volume, ISeismicVolume source) {
+    if (!source.matches(volume))
+      throw new IllegalArgumentException("Source volume and volume do not match");
+    float[] frame = new float[frameLength(volume)];
+    float[] sourceFrame = new float[frame.length];
+    for (int k = 0; k < localFrames(volume); k++) {
+      int index = volume.localToGlobal(2, k);
+      volume.getFrame(index, frame, 0);
+      source.getFrame(index, sourceFrame, 0);
+      add(frame, 0, sourceFrame, 0, frame.length);
+      volume.putFrame(index, frame, 0);
+    }
+  }
+
+  /**
+   * Multiply the local values of a volume by those of a matching volume
+   *
+   * @param volume - volume that receives the product
+   * @param source - volume to multiply by
+   */
+  public static void multiply(ISeismicVolume volume, ISeismicVolume source) {
+    if (!source.matches(volume))
+      throw new IllegalArgumentException("Source volume and volume do not match");
+    float[] frame = new float[frameLength(volume)];
+    float[] sourceFrame = new float[frame.length];
+    for (int k = 0; k < localFrames(volume); k++) {
+      int index = volume.localToGlobal(2, k);
+      volume.getFrame(index, frame, 0);
+      source.getFrame(index, sourceFrame, 0);
+      multiply(frame, 0, sourceFrame, 0, frame.length);
+      volume.putFrame(index, frame, 0);
+    }
+  }
+
+  /**
+   * Limit the local values of a volume to lie between two values
+   */
+  public static void clip(ISeismicVolume volume, float low, float high) {
+    float[] frame = new float[frameLength(volume)];
+    for (int k = 0; k < localFrames(volume); k++) {
+      int index = volume.localToGlobal(2, k);
+      volume.getFrame(index, frame, 0);
+      clip(frame, 0, frame.length, low, high);
+      volume.putFrame(index, frame, 0);
+    }
+  }
+
+  /**
+   * Reverse the polarity of the local values of a volume
+   */
+  public static void reversePolarity(ISeismicVolume volume) {
+    scale(volume, -1f);
+  }
+}
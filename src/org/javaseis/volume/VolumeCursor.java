@@ -0,0 +1,121 @@
+package org.javaseis.volume;
+
+/**
+ * Walks the local traces of a volume one trace at a time, holding the current
+ * trace in a plain array that tools can index directly. Changes are written
+ * back when the cursor moves on if they were marked with set or
+ * markModified. Flat indices number samples of the whole volume with the
+ * first axis varying fastest.
+ */
+public class VolumeCursor {
+
+  private final ISeismicVolume volume;
+
+  private final float[] samples;
+
+  private final int[] lengths, localLengths;
+
+  private final int elementCount;
+
+  private int localTrace, localFrame;
+
+  private int trace, frame;
+
+  private boolean modified;
+
+  public VolumeCursor(ISeismicVolume seismicVolume) {
+    volume = seismicVolume;
+    lengths = volume.getLengths();
+    localLengths = volume.getLocalLengths();
+    elementCount = volume.getElementCount();
+    samples = new float[elementCount * lengths[0]];
+    reset();
+  }
+
+  /**
+   * Move back to before the first local trace, writing back any changes
+   */
+  public void reset() {
+    flush();
+    localTrace = localLengths[1] - 1;
+    localFrame = -1;
+  }
+
+  /**
+   * Move to the next local trace, writing back any changes to the current one
+   *
+   * @return false if there are no more local traces
+   */
+  public boolean next() {
+    flush();
+    if (++localTrace == localLengths[1]) {
+      localTrace = 0;
+      if (++localFrame == localLengths[2])
+        return false;
+      frame = volume.localToGlobal(2, localFrame);
+    }
+    trace = volume.localToGlobal(1, localTrace);
+    volume.getTraces(frame, trace, 1, samples, 0);
+    return true;
+  }
+
+  /**
+   * @return the current trace, with getElementCount() values per sample.
+   *         Call markModified after changing it.
+   */
+  public float[] samples() {
+    return samples;
+  }
+
+  /**
+   * @param index - index in the current trace
+   * @return value at the index
+   */
+  public float get(int index) {
+    return samples[index];
+  }
+
+  /**
+   * @param index - index in the current trace
+   * @param value - new value
+   */
+  public void set(int index, float value) {
+    samples[index] = value;
+    modified = true;
+  }
+
+  /**
+   * Mark the current trace as changed so it is written back
+   */
+  public void markModified() {
+    modified = true;
+  }
+
+  /**
+   * Write the current trace back to the volume if it was changed
+   */
+  public void flush() {
+    if (modified) {
+      volume.putTraces(frame, trace, 1, samples, 0);
+      modified = false;
+    }
+  }
+
+  /** @return index of the current trace on the second axis */
+  public int getTrace() {
+    return trace;
+  }
+
+  /** @return index of the current trace on the third axis */
+  public int getFrame() {
+    return frame;
+  }
+
+  /**
+   * @param sample - sample index in the current trace
+   * @return flat index of the sample in the whole volume
+   */
+  public long flatIndex(int sample) {
+    return ((long) frame * lengths[1] + trace) * lengths[0] + sample;
+  }
+}
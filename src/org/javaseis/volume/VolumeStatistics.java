@@ -0,0 +1,284 @@
+package org.javaseis.volume;
+
+import java.io.Serializable;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+import beta.javaseis.array.ITraceIterator;
+import beta.javaseis.parallel.IParallelContext;
+import beta.javaseis.parallel.SharedMap;
+
+/**
+ * Accumulates the count, minimum, maximum, mean, RMS value, variance and an
+ * optional fixed-bin histogram of samples in one pass over the data.
+ * Accumulators from different threads or tasks are combined with combine, or
+ * across a parallel context with reduce, using the pairwise update of Chan,
+ * Golub and LeVeque so the variance stays accurate for large counts.
+ * <p>
+ * The histogram has a fixed range so accumulators can be combined. Samples
+ * outside the range are counted in the first or last bin.
+ */
+public class VolumeStatistics implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private long count;
+
+  private double min = Double.POSITIVE_INFINITY;
+
+  private double max = Double.NEGATIVE_INFINITY;
+
+  private double mean;
+
+  /** Sum of squared differences from the mean */
+  private double m2;
+
+  private double sumOfSquares;
+
+  private final long[] histogram;
+
+  private final double histogramLow, binWidth;
+
+  /**
+   * Create an accumulator without a histogram
+   */
+  public VolumeStatistics() {
+    this(0, 0, 1);
+  }
+
+  /**
+   * @param bins - number of histogram bins, or 0 for no histogram
+   * @param low - lower limit of the first bin
+   * @param high - upper limit of the last bin
+   */
+  public VolumeStatistics(int bins, double low, double high) {
+    if (bins > 0 && !(high > low))
+      throw new IllegalArgumentException("Histogram range is empty: " + low + " to " + high);
+    histogram = new long[bins];
+    histogramLow = low;
+    binWidth = (bins > 0 ? (high - low) / bins : 1);
+  }
+
+  /**
+   * Create an empty accumulator with exactly the histogram of another, so
+   * the two can be combined
+   *
+   * @param other - accumulator whose histogram bins are copied
+   */
+  private VolumeStatistics(VolumeStatistics other) {
+    histogram = new long[other.histogram.length];
+    histogramLow = other.histogramLow;
+    binWidth = other.binWidth;
+  }
+
+  /**
+   * Add a range of samples
+   *
+   * @param samples - array holding the samples
+   * @param offset - index of the first sample
+   * @param length - number of samples
+   */
+  public void add(float[] samples, int offset, int length) {
+    if (length == 0)
+      return;
+    double partMean = TraceKernels.sum(samples, offset, length) / length;
+    double partM2 = 0;
+    for (int i = offset; i < offset + length; i++) {
+      double d = samples[i] - partMean;
+      partM2 += d * d;
+    }
+    if (histogram.length > 0) {
+      for (int i = offset; i < offset + length; i++) {
+        histogram[bin(samples[i])]++;
+      }
+    }
+    combine(length, TraceKernels.min(samples, offset, length), TraceKernels.max(samples, offset,
+        length), partMean, partM2, TraceKernels.sumOfSquares(samples, offset, length));
+  }
+
+  /**
+   * Add the remaining samples of a buffer, leaving its position unchanged
+   *
+   * @param samples - buffer holding the samples
+   */
+  public void add(FloatBuffer samples) {
+    int length = samples.remaining();
+    if (length == 0)
+      return;
+    int start = samples.position();
+    float partMin = Float.POSITIVE_INFINITY, partMax = Float.NEGATIVE_INFINITY;
+    double sum = 0, sumSquares = 0;
+    for (int i = start; i < start + length; i++) {
+      float sample = samples.get(i);
+      partMin = Math.min(partMin, sample);
+      partMax = Math.max(partMax, sample);
+      sum += sample;
+      sumSquares += (double) sample * sample;
+      if (histogram.length > 0)
+        histogram[bin(sample)]++;
+    }
+    double partMean = sum / length;
+    double partM2 = 0;
+    for (int i = start; i < start + length; i++) {
+      double d = samples.get(i) - partMean;
+      partM2 += d * d;
+    }
+    combine(length, partMin, partMax, partMean, partM2, sumSquares);
+  }
+
+  /**
+   * Add every trace from an iterator
+   *
+   * @param traces - trace iterator, which is left at its end
+   */
+  public void add(ITraceIterator traces) {
+    while (traces.hasNext()) {
+      float[] trace = traces.next();
+      add(trace, 0, trace.length);
+    }
+  }
+
+  /**
+   * Add the samples of a volume that are local to this task
+   *
+   * @param volume - volume to scan frame by frame
+   */
+  public void add(ISeismicVolume volume) {
+    int[] lengths = volume.getLengths();
+    float[] frame = new float[volume.getElementCount() * lengths[0] * lengths[1]];
+    int localFrames = volume.getLocalLengths()[2];
+    for (int k = 0; k < localFrames; k++) {
+      volume.getFrame(volume.localToGlobal(2, k), frame, 0);
+      add(frame, 0, frame.length);
+    }
+  }
+
+  private int bin(float sample) {
+    int bin = (int) Math.floor((sample - histogramLow) / binWidth);
+    return Math.max(0, Math.min(histogram.length - 1, bin));
+  }
+
+  /**
+   * Add the samples counted by another accumulator with the same histogram
+   *
+   * @param other - accumulator to combine with this one
+   */
+  public void combine(VolumeStatistics other) {
+    if (other.histogram.length != histogram.length || other.histogramLow != histogramLow
+        || other.binWidth != binWidth)
+      throw new IllegalArgumentException("Histograms of the accumulators do not match");
+    for (int i = 0; i < histogram.length; i++) {
+      histogram[i] += other.histogram[i];
+    }
+    combine(other.count, other.min, other.max, other.mean, other.m2, other.sumOfSquares);
+  }
+
+  private void combine(long n, double partMin, double partMax, double partMean, double partM2,
+      double partSumOfSquares) {
+    if (n == 0)
+      return;
+    long total = count + n;
+    double delta = partMean - mean;
+    mean += delta * n / total;
+    m2 += partM2 + delta * delta * ((double) count * n / total);
+    count = total;
+    min = Math.min(min, partMin);
+    max = Math.max(max, partMax);
+    sumOfSquares += partSumOfSquares;
+  }
+
+  /**
+   * Combine the accumulators of all tasks, so every task holds the statistics
+   * of all samples. This is a collective call that exchanges the accumulators
+   * in a single merge. Tasks of a single task context never communicate.
+   *
+   * @param pc - parallel context of the tasks
+   */
+  public void reduce(IParallelContext pc) {
+    if (pc.size() == 1)
+      return;
+    SharedMap partials = new SharedMap();
+    partials.put(key(pc.rank()), this.copy());
+    partials.merge(pc);
+    VolumeStatistics total = new VolumeStatistics(this);
+    // Combine in rank order so every task gets identical results
+    for (int rank = 0; rank < pc.size(); rank++) {
+      total.combine((VolumeStatistics) partials.get(key(rank)));
+    }
+    count = total.count;
+    min = total.min;
+    max = total.max;
+    mean = total.mean;
+    m2 = total.m2;
+    sumOfSquares = total.sumOfSquares;
+    System.arraycopy(total.histogram, 0, histogram, 0, histogram.length);
+  }
+
+  private static String key(int rank) {
+    return "statistics" + rank;
+  }
+
+  private VolumeStatistics copy() {
+    VolumeStatistics copy = new VolumeStatistics(this);
+    copy.combine(this);
+    return copy;
+  }
+
+  /** Forget all samples */
+  public void reset() {
+    count = 0;
+    min = Double.POSITIVE_INFINITY;
+    max = Double.NEGATIVE_INFINITY;
+    mean = m2 = sumOfSquares = 0;
+    Arrays.fill(histogram, 0);
+  }
+
+  /** @return number of samples */
+  public long getCount() {
+    return count;
+  }
+
+  /** @return smallest sample, or +Infinity if there are none */
+  public double getMin() {
+    return min;
+  }
+
+  /** @return largest sample, or -Infinity if there are none */
+  public double getMax() {
+    return max;
+  }
+
+  /** @return mean of the samples, or 0 if there are none */
+  public double getMean() {
+    return mean;
+  }
+
+  /** @return root mean square of the samples, or 0 if there are none */
+  public double getRms() {
+    return (count == 0 ? 0 : Math.sqrt(sumOfSquares / count));
+  }
+
+  /** @return population variance of the samples, or 0 if there are none */
+  public double getVariance() {
+    return (count == 0 ? 0 : m2 / count);
+  }
+
+  /** @return copy of the histogram counts */
+  public long[] getHistogram() {
+    return histogram.clone();
+  }
+
+  /**
+   * @param bin - histogram bin
+   * @return lower limit of the bin
+   */
+  public double getBinLow(int bin) {
+    return histogramLow + bin * binWidth;
+  }
+
+  @Override
+  public String toString() {
+    return "count " + count + ", min " + min + ", max " + max + ", mean " + mean + ", rms "
+        + getRms() + ", variance " + getVariance();
+  }
+}
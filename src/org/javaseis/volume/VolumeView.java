@@ -0,0 +1,434 @@
+package org.javaseis.volume;
+
+import java.util.NoSuchElementException;
+
+import org.javaseis.array.ElementType;
+import org.javaseis.grid.GridDefinition;
+import org.javaseis.properties.AxisDefinition;
+
+import beta.javaseis.array.ITraceIterator;
+import beta.javaseis.distributed.Decomposition;
+import beta.javaseis.distributed.DistributedArray;
+import beta.javaseis.parallel.UniprocessorContext;
+import beta.javaseis.regulargrid.IRegularGrid;
+import beta.javaseis.regulargrid.OrientationType;
+import beta.javaseis.regulargrid.RegularGrid;
+
+/**
+ * Window, subset or decimation of another volume that shares its storage.
+ * Position i on each axis of the view is position start + i * stride of the
+ * parent, so reading and writing the view reads and writes the parent without
+ * copying the rest of it. The view's grids have the matching origins and
+ * deltas.
+ * <p>
+ * Frames of the view are local to the task that holds the matching parent
+ * frames, so a view of a decomposed volume is decomposed the same way.
+ * getDistributedArray returns null, use getParent to reach the storage.
+ */
+public class VolumeView implements ISeismicVolume {
+
+  private final ISeismicVolume parent;
+
+  private final int[] start, viewShape, strides;
+
+  private final GridDefinition globalGrid, localGrid;
+
+  /** First view frame that is local, and the number of local frames */
+  private final int firstLocalFrame, localFrames;
+
+  private TraceHeaders traceHeaders;
+
+  /** Parent position reused by sample access */
+  private final int[] parentPosition = new int[3];
+
+  private final int[] parentStart = new int[3];
+
+  private final int[] parentStrides = new int[3];
+
+  /** Block of consecutive traces reused by the trace accessors */
+  private final int[] traceStart = new int[3], traceLengths = new int[3];
+
+  private static final int[] UNIT_STRIDES = new int[] { 1, 1, 1 };
+
+  /** Geometry only grid for orientation and copies, created when needed */
+  private IRegularGrid geometry;
+
+  /**
+   * @param parentVolume - volume to view
+   * @param viewStart - parent position of the first view sample
+   * @param viewLengths - number of samples on each axis of the view
+   * @param viewStrides - parent index increment along each axis, at least 1
+   */
+  public VolumeView(ISeismicVolume parentVolume, int[] viewStart, int[] viewLengths,
+      int[] viewStrides) {
+    int[] parentLengths = parentVolume.getLengths();
+    for (int i = 0; i < 3; i++) {
+      if (viewStrides[i] < 1 || viewLengths[i] < 1 || viewStart[i] < 0
+          || viewStart[i] + (viewLengths[i] - 1) * viewStrides[i] >= parentLengths[i])
+        throw new IllegalArgumentException("View does not fit in axis " + i + " of length "
+            + parentLengths[i]);
+    }
+    parent = parentVolume;
+    start = viewStart.clone();
+    viewShape = viewLengths.clone();
+    strides = viewStrides.clone();
+    globalGrid = viewGrid(parent.getGlobalGrid(), start, viewShape, strides);
+    localGrid = SeismicVolume.volumeGrid(globalGrid);
+    // View frames whose parent frames are local to this task
+    int parentFrames = parent.getLocalLengths()[2];
+    if (parentFrames == 0) {
+      firstLocalFrame = 0;
+      localFrames = 0;
+    } else {
+      int first = parent.localToGlobal(2, 0);
+      int last = first + parentFrames - 1;
+      int lo = Math.max(0, (first - start[2] + strides[2] - 1) / strides[2]);
+      int hi = (last < start[2] ? -1 : Math.min(viewShape[2] - 1, (last - start[2]) / strides[2]));
+      firstLocalFrame = lo;
+      localFrames = Math.max(0, hi - lo + 1);
+    }
+  }
+
+  /**
+   * Create a view of a window of samples in every trace
+   *
+   * @param parent - volume to view
+   * @param firstSample - first sample of the window
+   * @param sampleCount - number of samples in the window
+   * @return view of the window
+   */
+  public static VolumeView window(ISeismicVolume parent, int firstSample, int sampleCount) {
+    int[] lengths = parent.getLengths();
+    lengths[0] = sampleCount;
+    return new VolumeView(parent, new int[] { firstSample, 0, 0 }, lengths, new int[] { 1, 1, 1 });
+  }
+
+  /**
+   * Create a view of ranges of traces and frames
+   *
+   * @param parent - volume to view
+   * @param firstTrace - first index on the second axis
+   * @param traceCount - number of traces
+   * @param firstFrame - first index on the third axis
+   * @param frameCount - number of frames
+   * @return view of the traces
+   */
+  public static VolumeView subset(ISeismicVolume parent, int firstTrace, int traceCount,
+      int firstFrame, int frameCount) {
+    return new VolumeView(parent, new int[] { 0, firstTrace, firstFrame }, new int[] {
+        parent.getLengths()[0], traceCount, frameCount }, new int[] { 1, 1, 1 });
+  }
+
+  /**
+   * Create a view of every n-th sample, trace and frame
+   *
+   * @param parent - volume to view
+   * @param decimation - stride on each axis
+   * @return decimated view
+   */
+  public static VolumeView decimate(ISeismicVolume parent, int[] decimation) {
+    int[] lengths = parent.getLengths();
+    for (int i = 0; i < 3; i++) {
+      lengths[i] = (lengths[i] + decimation[i] - 1) / decimation[i];
+    }
+    return new VolumeView(parent, new int[3], lengths, decimation);
+  }
+
+  /**
+   * Return the grid of a view, with the first three axes of a parent grid
+   * cut down to the view
+   */
+  static GridDefinition viewGrid(GridDefinition grid, int[] start, int[] lengths, int[] strides) {
+    int ndim = grid.getNumDimensions();
+    AxisDefinition[] axes = new AxisDefinition[ndim];
+    for (int i = 0; i < ndim; i++) {
+      AxisDefinition axis = grid.getAxis(i);
+      if (i < 3)
+        axis = new AxisDefinition(axis.getLabel(), axis.getUnits(), axis.getDomain(), lengths[i],
+            axis.getLogicalOrigin() + start[i] * axis.getLogicalDelta(), strides[i]
+                * axis.getLogicalDelta(), axis.getPhysicalOrigin() + start[i]
+                * axis.getPhysicalDelta(), strides[i] * axis.getPhysicalDelta());
+      axes[i] = axis;
+    }
+    return new GridDefinition(ndim, axes);
+  }
+
+  /** @return the volume this view shares storage with */
+  public ISeismicVolume getParent() {
+    return parent;
+  }
+
+  private int[] parentPosition(int[] position) {
+    for (int i = 0; i < 3; i++) {
+      parentPosition[i] = start[i] + position[i] * strides[i];
+    }
+    return parentPosition;
+  }
+
+  /** Set parentStart and parentStrides for a block of the view */
+  private void parentBlock(int[] blockStart, int[] blockStrides) {
+    for (int i = 0; i < 3; i++) {
+      parentStart[i] = start[i] + blockStart[i] * strides[i];
+      parentStrides[i] = blockStrides[i] * strides[i];
+    }
+  }
+
+  @Override
+  public void getBlock(int[] blockStart, int[] lengths, int[] blockStrides, float[] samples,
+      int offset) {
+    parentBlock(blockStart, blockStrides);
+    parent.getBlock(parentStart, lengths, parentStrides, samples, offset);
+  }
+
+  @Override
+  public void putBlock(int[] blockStart, int[] lengths, int[] blockStrides, float[] samples,
+      int offset) {
+    parentBlock(blockStart, blockStrides);
+    parent.putBlock(parentStart, lengths, parentStrides, samples, offset);
+  }
+
+  private void traceBlock(int frame, int trace, int count) {
+    traceStart[1] = trace;
+    traceStart[2] = frame;
+    traceLengths[0] = viewShape[0];
+    traceLengths[1] = count;
+    traceLengths[2] = 1;
+  }
+
+  @Override
+  public void getTraces(int frame, int trace, int count, float[] samples, int offset) {
+    traceBlock(frame, trace, count);
+    getBlock(traceStart, traceLengths, UNIT_STRIDES, samples, offset);
+  }
+
+  @Override
+  public void putTraces(int frame, int trace, int count, float[] samples, int offset) {
+    traceBlock(frame, trace, count);
+    putBlock(traceStart, traceLengths, UNIT_STRIDES, samples, offset);
+  }
+
+  @Override
+  public void getFrame(int frame, float[] samples, int offset) {
+    getTraces(frame, 0, viewShape[1], samples, offset);
+  }
+
+  @Override
+  public void putFrame(int frame, float[] samples, int offset) {
+    putTraces(frame, 0, viewShape[1], samples, offset);
+  }
+
+  @Override
+  public VolumeCursor getCursor() {
+    return new VolumeCursor(this);
+  }
+
+  @Override
+  public GridDefinition getGlobalGrid() {
+    return globalGrid;
+  }
+
+  @Override
+  public GridDefinition getLocalGrid() {
+    return localGrid;
+  }
+
+  /**
+   * @return null, a view is not held in its own DistributedArray
+   */
+  @Override
+  public DistributedArray getDistributedArray() {
+    return null;
+  }
+
+  @Override
+  public void copyVolume(ISeismicVolume source) {
+    if (source == this)
+      return;
+    if (!source.matches(this))
+      throw new IllegalArgumentException("Source volume and this volume do not match");
+    float[] frame = new float[getElementCount() * viewShape[0] * viewShape[1]];
+    for (int k = 0; k < localFrames; k++) {
+      source.getFrame(firstLocalFrame + k, frame, 0);
+      putFrame(firstLocalFrame + k, frame, 0);
+    }
+  }
+
+  @Override
+  public boolean matches(ISeismicVolume volume) {
+    return localGrid.matches(volume.getLocalGrid());
+  }
+
+  @Override
+  public int getElementCount() {
+    return parent.getElementCount();
+  }
+
+  @Override
+  public ElementType getElementType() {
+    return parent.getElementType();
+  }
+
+  @Override
+  public long shapeLength() {
+    return (long) getElementCount() * viewShape[0] * viewShape[1] * viewShape[2];
+  }
+
+  /**
+   * Nothing is allocated, a view uses the storage of its parent
+   */
+  @Override
+  public void allocate(long maxLength) {
+  }
+
+  @Override
+  public ITraceIterator getTraceIterator() {
+    return new TraceIterator();
+  }
+
+  @Override
+  public TraceHeaders getTraceHeaders() {
+    return traceHeaders;
+  }
+
+  @Override
+  public void setTraceHeaders(TraceHeaders headers) {
+    traceHeaders = headers;
+  }
+
+  @Override
+  public OrientationType getOrientation() {
+    return parent.getOrientation();
+  }
+
+  @Override
+  public int getNumDimensions() {
+    return 3;
+  }
+
+  @Override
+  public int[] getLengths() {
+    return viewShape.clone();
+  }
+
+  @Override
+  public int[] getLocalLengths() {
+    return new int[] { viewShape[0], viewShape[1], localFrames };
+  }
+
+  @Override
+  public double[] getDeltas() {
+    double[] deltas = parent.getDeltas();
+    for (int i = 0; i < 3; i++) {
+      deltas[i] *= strides[i];
+    }
+    return deltas;
+  }
+
+  @Override
+  public boolean isPositionLocal(int[] position) {
+    for (int i = 0; i < 3; i++) {
+      if (position[i] < 0 || position[i] >= viewShape[i])
+        return false;
+    }
+    return position[2] >= firstLocalFrame && position[2] < firstLocalFrame + localFrames;
+  }
+
+  @Override
+  public float getSample(int[] position) {
+    return parent.getSample(parentPosition(position));
+  }
+
+  @Override
+  public float getFloat(int[] position) {
+    return parent.getFloat(parentPosition(position));
+  }
+
+  @Override
+  public int getInt(int[] position) {
+    return parent.getInt(parentPosition(position));
+  }
+
+  @Override
+  public double getDouble(int[] position) {
+    return parent.getDouble(parentPosition(position));
+  }
+
+  @Override
+  public void putSample(float val, int[] position) {
+    parent.putSample(val, parentPosition(position));
+  }
+
+  @Override
+  public void putSample(double val, int[] position) {
+    parent.putSample(val, parentPosition(position));
+  }
+
+  @Override
+  public int localToGlobal(int dimension, int index) {
+    return (dimension == 2 ? index + firstLocalFrame : index);
+  }
+
+  @Override
+  public int globalToLocal(int dimension, int index) {
+    return (dimension == 2 ? index - firstLocalFrame : index);
+  }
+
+  @Override
+  public int[] localPosition(int[] pos) {
+    return new int[] { pos[0], pos[1], pos[2] - firstLocalFrame };
+  }
+
+  @Override
+  public void worldCoords(int[] pos, double[] wxyz) {
+    parent.worldCoords(parentPosition(pos), wxyz);
+  }
+
+  @Override
+  public IRegularGrid createCopy() {
+    if (geometry == null) {
+      // The array is never allocated, it only describes the view shape
+      DistributedArray shape = new DistributedArray(new UniprocessorContext(), float.class, 3,
+          getElementCount(), viewShape, Decomposition.BLOCK, 0);
+      geometry = new RegularGrid(shape);
+    }
+    return geometry.createCopy();
+  }
+
+  /**
+   * Iterates over the local traces of the view, reusing one trace array.
+   * Traces given to putTrace replace the trace last returned by next.
+   */
+  class TraceIterator implements ITraceIterator {
+
+    private final float[] samples = new float[getElementCount() * viewShape[0]];
+
+    private int trace = viewShape[1] - 1, frame = firstLocalFrame - 1;
+
+    @Override
+    public boolean hasNext() {
+      return trace + 1 < viewShape[1] || frame + 1 < firstLocalFrame + localFrames;
+    }
+
+    @Override
+    public float[] next() {
+      if (!hasNext())
+        throw new NoSuchElementException();
+      if (++trace == viewShape[1]) {
+        trace = 0;
+        frame++;
+      }
+      getTraces(frame, trace, 1, samples, 0);
+      return samples;
+    }
+
+    @Override
+    public void putTrace(float[] trc) {
+      putTraces(frame, trace, 1, trc, 0);
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -0,0 +1,226 @@
+package org.javaseis.volume.test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+import org.javaseis.array.IMultiArray;
+import org.javaseis.array.MultiArray;
+import org.javaseis.grid.GridDefinition;
+import org.javaseis.io.Seisio;
+import org.javaseis.util.SeisException;
+import org.javaseis.volume.AbstractTraceVolume;
+import org.javaseis.volume.JavaSeisTraceFile;
+import org.javaseis.volume.MappedSeismicVolume;
+import org.javaseis.volume.OffHeapSeismicVolume;
+import org.javaseis.volume.TraceHeaders;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that JavaSeisTraceFile reads the samples Seisio wrote into off-heap
+ * and mapped volumes, that traces in missing extents read as zeros, and that
+ * numeric trace headers survive a write and read.
+ */
+public class JTestJavaSeisTraceFile {
+
+  private static final int[] SHAPE = new int[] { 12, 5, 4, 3 };
+  private static final String dataFolder = System.getProperty("java.io.tmpdir");
+  private static final String DATASET = "tempTraceFile.js";
+  private static final String HEADER_DATASET = "tempTraceHeaders.js";
+
+  @Before
+  @After
+  public void deleteDatasets() {
+    deleteDataFolder(new File(dataFolder, DATASET));
+    deleteDataFolder(new File(dataFolder, HEADER_DATASET));
+  }
+
+  private static void deleteDataFolder(File file) {
+    if (file.isDirectory()) {
+      File[] files = file.listFiles();
+      if (files != null) {
+        for (File subFile : files) {
+          deleteDataFolder(subFile);
+        }
+      }
+    }
+    file.delete();
+  }
+
+  private static float expectedSample(int sample, int trace, int frame, int volume) {
+    return 1 + sample + 100 * trace + 1000 * frame + 10000 * volume;
+  }
+
+  private static void writeDataset() throws SeisException {
+    Seisio sio = new Seisio(new File(dataFolder, DATASET).getPath(), GridDefinition.getDefault(
+        SHAPE.length, SHAPE));
+    sio.create();
+    IMultiArray frame = MultiArray.factory(2, float.class, 1, SHAPE);
+    float[] trace = new float[SHAPE[0]];
+    int[] position = new int[SHAPE.length];
+    for (int v = 0; v < SHAPE[3]; v++) {
+      position[3] = v;
+      for (int k = 0; k < SHAPE[2]; k++) {
+        position[2] = k;
+        for (int j = 0; j < SHAPE[1]; j++) {
+          position[1] = j;
+          for (int i = 0; i < SHAPE[0]; i++) {
+            trace[i] = expectedSample(i, j, k, v);
+          }
+          frame.putTrace(trace, position);
+        }
+        position[1] = 0;
+        sio.writeMultiArray(frame, position);
+      }
+    }
+    sio.close();
+  }
+
+  /**
+   * Read every volume into a volume of each kind and compare all samples. If
+   * missingExtent is not negative, traces stored in that extent must be zero.
+   */
+  private static void checkVolumes(JavaSeisTraceFile file, int missingExtent)
+      throws SeisException {
+    GridDefinition grid = GridDefinition.getDefault(3, new int[] { SHAPE[0], SHAPE[1], SHAPE[2] });
+    AbstractTraceVolume[] volumes = new AbstractTraceVolume[] { new OffHeapSeismicVolume(grid),
+        new MappedSeismicVolume(grid) };
+    float[] trace = new float[SHAPE[0]];
+    int[] position = new int[3];
+    for (AbstractTraceVolume volume : volumes) {
+      for (int v = 0; v < SHAPE[3]; v++) {
+        file.read(v, volume);
+        for (int k = 0; k < SHAPE[2]; k++) {
+          position[2] = k;
+          for (int j = 0; j < SHAPE[1]; j++) {
+            position[1] = j;
+            long index = volume.traceIndex(position);
+            volume.getTrace(index, trace);
+            long offset = file.volumeOffset(v) + index * file.getTraceBytes();
+            for (int i = 0; i < SHAPE[0]; i++) {
+              boolean missing = (offset + 4 * i) / file.getExtentSize() == missingExtent;
+              Assert.assertEquals(volume.getClass().getSimpleName() + " volume " + v + " trace "
+                  + index, (missing ? 0 : expectedSample(i, j, k, v)), trace[i], 0f);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testReadOffHeapAndMapped() throws SeisException {
+    writeDataset();
+    JavaSeisTraceFile file = new JavaSeisTraceFile(dataFolder, DATASET, "r");
+    try {
+      checkVolumes(file, -1);
+    } finally {
+      file.close();
+    }
+  }
+
+  @Test
+  public void testMissingExtentReadsZeros() throws SeisException {
+    writeDataset();
+    JavaSeisTraceFile file = new JavaSeisTraceFile(dataFolder, DATASET, "r");
+    // Remove the extent that holds the last volume, as if it was never written.
+    // Which traces that covers depends on the extent size Seisio chose.
+    int missingExtent = (int) (file.volumeOffset(SHAPE[3] - 1) / file.getExtentSize());
+    File extent = file.extentFile(missingExtent);
+    Assert.assertTrue("Extent " + extent + " was not written", extent.delete());
+    try {
+      checkVolumes(file, missingExtent);
+    } finally {
+      file.close();
+    }
+  }
+
+  /**
+   * Write the description of a dataset without trace samples, with one header
+   * field of each numeric format and header extents that split records
+   */
+  private static void writeHeaderDataset() throws IOException {
+    File folder = new File(dataFolder, HEADER_DATASET);
+    Assert.assertTrue(folder.mkdirs());
+    writeXml(new File(folder, "FileProperties.xml"), "<parset name=\"FileProperties\">\n"
+        + par("TraceFormat", "FLOAT") + par("ByteOrder", "LITTLE_ENDIAN")
+        + par("AxisLengths", SHAPE[0] + " " + SHAPE[1] + " " + SHAPE[2] + " " + SHAPE[3])
+        + par("HeaderLengthBytes", "24") + "</parset>\n<parset name=\"TraceProperties\">\n"
+        + field("COUNT", "INTEGER", 1, 0) + field("PAIR", "SHORT", 2, 4)
+        + field("TIME", "FLOAT", 1, 8) + field("DEPTH", "DOUBLE", 1, 16) + "</parset>\n");
+    writeXml(new File(folder, "TraceFile.xml"), par("VFIO_EXTSIZE", "4096")
+        + par("VFIO_EXTNAME", "TraceFile"));
+    writeXml(new File(folder, "TraceHeaders.xml"), par("VFIO_EXTSIZE", "100")
+        + par("VFIO_EXTNAME", "TraceHeaders"));
+  }
+
+  private static String par(String name, String value) {
+    return "<par name=\"" + name + "\"> " + value + " </par>\n";
+  }
+
+  private static String field(String label, String format, int count, int offset) {
+    return "<parset name=\"entry_" + label + "\">\n" + par("label", label)
+        + par("format", format) + par("elementCount", Integer.toString(count))
+        + par("byteOffset", Integer.toString(offset)) + "</parset>\n";
+  }
+
+  private static void writeXml(File file, String body) throws IOException {
+    Writer writer = new FileWriter(file);
+    try {
+      writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<parset name=\"JavaSeis\">\n"
+          + body + "</parset>\n");
+    } finally {
+      writer.close();
+    }
+  }
+
+  @Test
+  public void testHeaderRoundTrip() throws IOException, SeisException {
+    writeHeaderDataset();
+    JavaSeisTraceFile file = new JavaSeisTraceFile(dataFolder, HEADER_DATASET, "rw");
+    try {
+      Assert.assertTrue(file.hasHeaders());
+      // Headers that were never written read as zeros
+      TraceHeaders headers = file.createHeaders();
+      file.readHeaders(1, headers);
+      Assert.assertEquals(0, headers.getIntColumn("COUNT")[3]);
+      Assert.assertEquals(0, headers.getDoubleColumn("DEPTH")[3], 0);
+      for (int v = 0; v < SHAPE[3]; v++) {
+        headers = file.createHeaders();
+        int[] count = headers.getIntColumn("COUNT");
+        int[] pair = headers.getIntColumn("PAIR");
+        float[] time = headers.getFloatColumn("TIME");
+        double[] depth = headers.getDoubleColumn("DEPTH");
+        for (int t = 0; t < headers.getTraceCount(); t++) {
+          count[t] = 100000 * v - 7 * t;
+          pair[2 * t] = -t - v;
+          pair[2 * t + 1] = 1000 * v + t;
+          time[t] = 0.5f * t + v;
+          depth[t] = t / 3.0 + 1e6 * v;
+        }
+        file.writeHeaders(v, headers);
+      }
+      for (int v = 0; v < SHAPE[3]; v++) {
+        headers = file.createHeaders();
+        file.readHeaders(v, headers);
+        int[] count = headers.getIntColumn("COUNT");
+        int[] pair = headers.getIntColumn("PAIR");
+        float[] time = headers.getFloatColumn("TIME");
+        double[] depth = headers.getDoubleColumn("DEPTH");
+        for (int t = 0; t < headers.getTraceCount(); t++) {
+          Assert.assertEquals(100000 * v - 7 * t, count[t]);
+          Assert.assertEquals(-t - v, pair[2 * t]);
+          Assert.assertEquals(1000 * v + t, pair[2 * t + 1]);
+          Assert.assertEquals(0.5f * t + v, time[t], 0f);
+          Assert.assertEquals(t / 3.0 + 1e6 * v, depth[t], 0);
+        }
+      }
+    } finally {
+      file.close();
+    }
+  }
+}
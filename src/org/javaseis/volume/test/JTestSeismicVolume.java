@@ -1,5 +1,321 @@
 package org.javaseis.volume.test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.javaseis.array.ElementType;
+import org.javaseis.grid.BinGrid;
+import org.javaseis.grid.GridDefinition;
+import org.javaseis.volume.CompressedSeismicVolume;
+import org.javaseis.volume.ISeismicVolume;
+import org.javaseis.volume.OffHeapSeismicVolume;
+import org.javaseis.volume.SeismicVolume;
+import org.javaseis.volume.TraceKernels;
+import org.javaseis.volume.VolumeCursor;
+import org.javaseis.volume.VolumeStatistics;
+import org.javaseis.volume.VolumeView;
+import org.junit.Assert;
+import org.junit.Test;
+
+import beta.javaseis.array.ITraceIterator;
+import beta.javaseis.distributed.Decomposition;
+import beta.javaseis.parallel.IParallelContext;
+import beta.javaseis.parallel.ParallelTask;
+import beta.javaseis.parallel.ParallelTaskExecutor;
+import beta.javaseis.parallel.UniprocessorContext;
+
 public class JTestSeismicVolume {
 
+  private static final int[] SHAPE = new int[] { 7, 5, 4 };
+
+  private static float value(int sample, int trace, int frame) {
+    return sample + SHAPE[0] * (trace + SHAPE[1] * frame);
+  }
+
+  private static void fill(ISeismicVolume volume) {
+    float[] frame = new float[SHAPE[0] * SHAPE[1]];
+    for (int k = 0; k < SHAPE[2]; k++) {
+      for (int j = 0; j < SHAPE[1]; j++) {
+        for (int i = 0; i < SHAPE[0]; i++) {
+          frame[i + SHAPE[0] * j] = value(i, j, k);
+        }
+      }
+      volume.putFrame(k, frame, 0);
+    }
+  }
+
+  private static void checkBulkAccess(ISeismicVolume volume, float tolerance) {
+    fill(volume);
+    int[] position = new int[3];
+    for (position[2] = 0; position[2] < SHAPE[2]; position[2]++) {
+      for (position[1] = 0; position[1] < SHAPE[1]; position[1]++) {
+        for (position[0] = 0; position[0] < SHAPE[0]; position[0]++) {
+          Assert.assertEquals(value(position[0], position[1], position[2]),
+              volume.getSample(position), tolerance);
+        }
+      }
+    }
+    float[] traces = new float[1 + 2 * SHAPE[0]];
+    volume.getTraces(3, 2, 2, traces, 1);
+    Assert.assertEquals(value(0, 2, 3), traces[1], tolerance);
+    Assert.assertEquals(value(SHAPE[0] - 1, 3, 3), traces[2 * SHAPE[0]], tolerance);
+
+    int[] start = new int[] { 1, 0, 1 };
+    int[] lengths = new int[] { 3, 2, 2 };
+    int[] strides = new int[] { 2, 3, 2 };
+    float[] block = new float[12];
+    volume.getBlock(start, lengths, strides, block, 0);
+    Assert.assertEquals(value(1, 0, 1), block[0], tolerance);
+    Assert.assertEquals(value(5, 3, 3), block[11], tolerance);
+    for (int i = 0; i < block.length; i++) {
+      block[i] = -block[i];
+    }
+    volume.putBlock(start, lengths, strides, block, 0);
+    Assert.assertEquals(-value(3, 3, 1), volume.getSample(new int[] { 3, 3, 1 }), tolerance);
+    Assert.assertEquals(value(2, 3, 1), volume.getSample(new int[] { 2, 3, 1 }), tolerance);
+
+    VolumeCursor cursor = volume.getCursor();
+    int traceCount = 0;
+    while (cursor.next()) {
+      cursor.set(0, cursor.flatIndex(0));
+      traceCount++;
+    }
+    Assert.assertEquals(SHAPE[1] * SHAPE[2], traceCount);
+    Assert.assertEquals(value(0, 4, 2), volume.getSample(new int[] { 0, 4, 2 }), tolerance);
+  }
+
+  @Test
+  public void testHeapBulkAccess() {
+    checkBulkAccess(new SeismicVolume(new UniprocessorContext(), GridDefinition.getDefault(3,
+        SHAPE)), 0f);
+  }
+
+  @Test
+  public void testOffHeapBulkAccess() {
+    checkBulkAccess(new OffHeapSeismicVolume(GridDefinition.getDefault(3, SHAPE)), 0f);
+  }
+
+  @Test
+  public void testDoubleBulkAccess() {
+    checkBulkAccess(new SeismicVolume(new UniprocessorContext(), GridDefinition.getDefault(3,
+        SHAPE), BinGrid.simpleBinGrid(SHAPE[1], SHAPE[1]), ElementType.DOUBLE, 1,
+        Decomposition.BLOCK, 0), 0f);
+  }
+
+  @Test
+  public void testCompressedVolume() {
+    CompressedSeismicVolume volume = new CompressedSeismicVolume(GridDefinition.getDefault(3,
+        SHAPE));
+    // Test values are at most 139, so every sample is within 0.003 of its value
+    checkBulkAccess(volume, 0.003f);
+    float[] trace = new float[SHAPE[0]];
+    for (int i = 0; i < SHAPE[0]; i++) {
+      trace[i] = (float) Math.sin(0.7 * i);
+    }
+    volume.putTrace(3, trace);
+    float[] decoded = new float[SHAPE[0]];
+    volume.getTrace(3, decoded);
+    for (int i = 0; i < SHAPE[0]; i++) {
+      Assert.assertEquals(trace[i], decoded[i], volume.getScale(3) / 2);
+    }
+    volume.putSample(3, 0, 10f);
+    Assert.assertEquals(10f, volume.getSample(3, 0), volume.getScale(3) / 2);
+    Assert.assertEquals(trace[1], volume.getSample(3, 1), volume.getScale(3));
+  }
+
+  @Test
+  public void testTraceKernels() {
+    // Odd lengths and offsets exercise the unrolled loops and their remainders
+    float[] a = new float[] { 9, 3, -2, 5, 7, -4, 1, 6, 0 };
+    Assert.assertEquals(-4f, TraceKernels.min(a, 1, 7), 0f);
+    Assert.assertEquals(7f, TraceKernels.max(a, 1, 5), 0f);
+    Assert.assertEquals(16.0, TraceKernels.sum(a, 1, 7), 0.0);
+    Assert.assertEquals(140.0, TraceKernels.sumOfSquares(a, 1, 7), 0.0);
+    TraceKernels.clip(a, 0, a.length, -3, 6);
+    Assert.assertEquals(6f, a[0], 0f);
+    Assert.assertEquals(-3f, a[5], 0f);
+
+    OffHeapSeismicVolume volume = new OffHeapSeismicVolume(GridDefinition.getDefault(3, SHAPE));
+    fill(volume);
+    TraceKernels.reversePolarity(volume);
+    Assert.assertEquals(-value(SHAPE[0] - 1, SHAPE[1] - 1, SHAPE[2] - 1), TraceKernels.min(volume),
+        0f);
+    Assert.assertEquals(0f, TraceKernels.max(volume), 0f);
+    int count = SHAPE[0] * SHAPE[1] * SHAPE[2];
+    Assert.assertEquals(-count * (count - 1) / 2.0, TraceKernels.sum(volume), 0.0);
+  }
+
+  @Test
+  public void testVolumeStatistics() {
+    float[] a = new float[] { -3, 1, 4, 1, 5, -9, 2, 6 };
+    VolumeStatistics whole = new VolumeStatistics(4, -10, 10);
+    whole.add(a, 0, a.length);
+    // Partials combined from two threads give the same result
+    VolumeStatistics first = new VolumeStatistics(4, -10, 10);
+    VolumeStatistics second = new VolumeStatistics(4, -10, 10);
+    first.add(a, 0, 3);
+    second.add(a, 3, 5);
+    first.combine(second);
+    for (VolumeStatistics stats : new VolumeStatistics[] { whole, first }) {
+      Assert.assertEquals(8, stats.getCount());
+      Assert.assertEquals(-9, stats.getMin(), 0);
+      Assert.assertEquals(6, stats.getMax(), 0);
+      Assert.assertEquals(0.875, stats.getMean(), 1e-12);
+      Assert.assertEquals(Math.sqrt(173 / 8.0), stats.getRms(), 1e-12);
+      Assert.assertEquals(173 / 8.0 - 0.875 * 0.875, stats.getVariance(), 1e-12);
+      Assert.assertArrayEquals(new long[] { 1, 1, 4, 2 }, stats.getHistogram());
+    }
+  }
+
+  @Test
+  public void testVolumeView() {
+    OffHeapSeismicVolume volume = new OffHeapSeismicVolume(GridDefinition.getDefault(3, SHAPE));
+    fill(volume);
+    VolumeView view = new VolumeView(volume, new int[] { 2, 1, 0 }, new int[] { 3, 2, 2 },
+        new int[] { 1, 2, 3 });
+    Assert.assertArrayEquals(new int[] { 3, 2, 2 }, view.getLengths());
+    Assert.assertEquals(value(4, 3, 3), view.getSample(new int[] { 2, 1, 1 }), 0f);
+    float[] frame = new float[6];
+    view.getFrame(1, frame, 0);
+    Assert.assertEquals(value(2, 1, 3), frame[0], 0f);
+    Assert.assertEquals(value(4, 3, 3), frame[5], 0f);
+    // Writes go to the parent
+    view.putSample(-1f, new int[] { 0, 0, 0 });
+    Assert.assertEquals(-1f, volume.getSample(new int[] { 2, 1, 0 }), 0f);
+    int traceCount = 0;
+    ITraceIterator traces = VolumeView.window(volume, 5, 2).getTraceIterator();
+    while (traces.hasNext()) {
+      Assert.assertEquals(2, traces.next().length);
+      traceCount++;
+    }
+    Assert.assertEquals(SHAPE[1] * SHAPE[2], traceCount);
+    Assert.assertArrayEquals(new int[] { 4, 3, 2 }, VolumeView.decimate(volume,
+        new int[] { 2, 2, 2 }).getLengths());
+  }
+
+  private static final int HALO_WIDTH = 2;
+
+  private static final List<String> haloErrors = new ArrayList<String>();
+
+  private static synchronized void haloError(String message) {
+    haloErrors.add(message);
+  }
+
+  private static float haloValue(int sample, int trace, int frame) {
+    return sample + 10 * trace + 100 * frame;
+  }
+
+  /**
+   * Fills its local frames, exchanges halos and checks every frame it can
+   * reach, before and after a reshape
+   */
+  public static class HaloTask extends ParallelTask {
+    @Override
+    public void run() {
+      IParallelContext pc = getParallelContext();
+      SeismicVolume volume = new SeismicVolume(pc, GridDefinition.getDefault(3,
+          new int[] { 3, 2, 7 }));
+      volume.setHaloWidth(HALO_WIDTH);
+      checkHalos(pc, volume);
+      volume.reshape(GridDefinition.getDefault(3, new int[] { 4, 2, 5 }));
+      checkHalos(pc, volume);
+    }
+
+    private void checkHalos(IParallelContext pc, SeismicVolume volume) {
+      int[] shape = volume.getLengths();
+      int localFrames = volume.getLocalLengths()[2];
+      float[] frame = new float[shape[0] * shape[1]];
+      for (int k = 0; k < localFrames; k++) {
+        int global = volume.localToGlobal(2, k);
+        for (int j = 0; j < shape[1]; j++) {
+          for (int i = 0; i < shape[0]; i++) {
+            frame[i + shape[0] * j] = haloValue(i, j, global);
+          }
+        }
+        volume.putFrame(global, frame, 0);
+      }
+      volume.exchangeHalos();
+      if (localFrames == 0)
+        return;
+      int first = volume.localToGlobal(2, 0);
+      int last = first + localFrames - 1;
+      String task = "Task " + pc.rank() + " shape " + Arrays.toString(shape);
+      for (int k = Math.max(0, first - HALO_WIDTH); k <= Math.min(shape[2] - 1, last
+          + HALO_WIDTH); k++) {
+        volume.getHaloFrame(k, frame, 0);
+        for (int j = 0; j < shape[1]; j++) {
+          for (int i = 0; i < shape[0]; i++) {
+            if (frame[i + shape[0] * j] != haloValue(i, j, k))
+              haloError(task + " frame " + k + " sample " + i + " trace " + j);
+            if (volume.getHaloSample(new int[] { i, j, k }) != haloValue(i, j, k))
+              haloError(task + " position " + Arrays.toString(new int[] { i, j, k }));
+          }
+        }
+      }
+      int outside = (first - HALO_WIDTH > 0 ? first - HALO_WIDTH - 1 : last + HALO_WIDTH + 1);
+      if (outside < shape[2]) {
+        try {
+          volume.getHaloFrame(outside, frame, 0);
+          haloError(task + " read frame " + outside + " outside its halos");
+        } catch (IllegalArgumentException e) {
+          // Expected
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testExchangeHalos() throws Exception {
+    haloErrors.clear();
+    ParallelTaskExecutor.runTasks(HaloTask.class, 3);
+    Assert.assertEquals(new ArrayList<String>(), haloErrors);
+  }
+
+  /** Statistics of every task after reduce, indexed by rank */
+  private static final VolumeStatistics[] reducedStatistics = new VolumeStatistics[3];
+
+  /** Samples added by a task, which depend only on its rank */
+  private static float[] statisticsSamples(int rank) {
+    float[] samples = new float[5 + rank];
+    for (int i = 0; i < samples.length; i++) {
+      samples[i] = -4.55f + 0.37f * (i + 3 * rank);
+    }
+    return samples;
+  }
+
+  /** Reduces statistics whose bin width is not exactly representable */
+  public static class StatisticsTask extends ParallelTask {
+    @Override
+    public void run() {
+      IParallelContext pc = getParallelContext();
+      VolumeStatistics stats = new VolumeStatistics(50, -4.6, -2.6);
+      float[] samples = statisticsSamples(pc.rank());
+      stats.add(samples, 0, samples.length);
+      stats.reduce(pc);
+      synchronized (reducedStatistics) {
+        reducedStatistics[pc.rank()] = stats;
+      }
+    }
+  }
+
+  @Test
+  public void testReduceStatistics() throws Exception {
+    VolumeStatistics whole = new VolumeStatistics(50, -4.6, -2.6);
+    for (int rank = 0; rank < reducedStatistics.length; rank++) {
+      float[] samples = statisticsSamples(rank);
+      whole.add(samples, 0, samples.length);
+    }
+    Arrays.fill(reducedStatistics, null);
+    ParallelTaskExecutor.runTasks(StatisticsTask.class, reducedStatistics.length);
+    for (VolumeStatistics stats : reducedStatistics) {
+      Assert.assertEquals(whole.getCount(), stats.getCount());
+      Assert.assertEquals(whole.getMin(), stats.getMin(), 0);
+      Assert.assertEquals(whole.getMax(), stats.getMax(), 0);
+      Assert.assertEquals(whole.getMean(), stats.getMean(), 1e-12);
+      Assert.assertEquals(whole.getVariance(), stats.getVariance(), 1e-12);
+      Assert.assertArrayEquals(whole.getHistogram(), stats.getHistogram());
+      Assert.assertEquals(-4.6 + 0.04 * 49, stats.getBinLow(49), 1e-12);
+    }
+  }
 }
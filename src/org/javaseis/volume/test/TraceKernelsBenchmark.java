@@ -0,0 +1,64 @@
+package org.javaseis.volume.test;
+
+import org.javaseis.volume.TraceKernels;
+
+import edu.mines.jtk.util.ArrayMath;
+
+/**
+ * Times the TraceKernels reductions against the per trace scalar loops that
+ * tools used before, on a volume's worth of traces. Run with a warm-up count
+ * and a trace length, for example "TraceKernelsBenchmark 20 1500". This is a
+ * rough timing loop, not a harness, and no results have been recorded for
+ * it.
+ */
+public class TraceKernelsBenchmark {
+
+  private static final int TRACE_COUNT = 20000;
+
+  private static float sink;
+
+  public static void main(String[] args) {
+    int repeats = (args.length > 0 ? Integer.parseInt(args[0]) : 20);
+    int sampleCount = (args.length > 1 ? Integer.parseInt(args[1]) : 1500);
+    float[][] traces = new float[TRACE_COUNT][sampleCount];
+    for (float[] trace : traces) {
+      ArrayMath.rand(trace);
+    }
+    // The first rounds let the JIT compiler settle, only the last is reported
+    for (int r = 0; r < repeats; r++) {
+      long t0 = System.nanoTime();
+      float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+      for (float[] trace : traces) {
+        min = Math.min(min, ArrayMath.min(trace));
+        max = Math.max(max, ArrayMath.max(trace));
+      }
+      long t1 = System.nanoTime();
+      float kmin = Float.MAX_VALUE, kmax = -Float.MAX_VALUE;
+      for (float[] trace : traces) {
+        kmin = Math.min(kmin, TraceKernels.min(trace));
+        kmax = Math.max(kmax, TraceKernels.max(trace));
+      }
+      long t2 = System.nanoTime();
+      double sum = 0;
+      for (float[] trace : traces) {
+        for (int i = 0; i < trace.length; i++) {
+          sum += (double) trace[i] * trace[i];
+        }
+      }
+      long t3 = System.nanoTime();
+      double ksum = 0;
+      for (float[] trace : traces) {
+        ksum += TraceKernels.sumOfSquares(trace);
+      }
+      long t4 = System.nanoTime();
+      sink += min + max + kmin + kmax + (float) (sum + ksum);
+      if (r == repeats - 1) {
+        double samples = (double) TRACE_COUNT * sampleCount;
+        System.out.println("Samples per ns, scalar loop vs TraceKernels:");
+        System.out.printf("  min/max        %.2f  %.2f%n", samples / (t1 - t0), samples / (t2 - t1));
+        System.out.printf("  sum of squares %.2f  %.2f%n", samples / (t3 - t2), samples / (t4 - t3));
+      }
+    }
+    System.out.println("(checksum " + sink + ")");
+  }
+}